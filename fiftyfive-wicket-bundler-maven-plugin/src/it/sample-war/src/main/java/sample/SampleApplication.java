@@ -0,0 +1,45 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample;
+
+import fiftyfive.wicket.css.MergedCssBuilder;
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.util.tester.DummyHomePage;
+
+public class SampleApplication extends WebApplication
+{
+    @Override
+    public Class<? extends WebPage> getHomePage()
+    {
+        return DummyHomePage.class;
+    }
+
+    @Override
+    protected void init()
+    {
+        super.init();
+        // Merge only in deployment mode, as a typical application would
+        if(usesDeploymentConfig())
+        {
+            new MergedCssBuilder()
+                .setPath("/styles/all.css")
+                .addCss(SampleApplication.class, "one.css")
+                .addCss(SampleApplication.class, "two.css")
+                .install(this);
+        }
+    }
+}
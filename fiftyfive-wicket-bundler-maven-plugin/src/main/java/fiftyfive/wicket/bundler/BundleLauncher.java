@@ -0,0 +1,88 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.bundler;
+
+import java.io.File;
+
+import fiftyfive.wicket.resource.StaticBundleGenerator;
+
+import org.apache.wicket.RuntimeConfigurationType;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.util.tester.BaseWicketTester;
+
+/**
+ * Starts a web application in deployment mode and writes its merged resources with
+ * {@link StaticBundleGenerator}. {@link BundleMojo} loads this class within the project's class
+ * loader rather than the plugin's, so that it links against the project's own versions of
+ * Wicket and fiftyfive-wicket-core; for that reason those are only {@code provided}
+ * dependencies of the plugin.
+ *
+ * @since 4.1
+ */
+public class BundleLauncher
+{
+    /**
+     * System property that Wicket consults first when determining the configuration type.
+     */
+    static final String CONFIGURATION_PROPERTY = "wicket.configuration";
+
+    /**
+     * Instantiates the given application class, initializes it in deployment mode within a
+     * {@link BaseWicketTester} using {@code webappDirectory} as the servlet context root, and
+     * writes all of its merged resources.
+     *
+     * @param applicationClassName Fully-qualified name of the {@link WebApplication} subclass
+     *                             whose {@code init()} method installs the merged resources
+     * @param webappDirectory The exploded web application directory
+     * @param bundleDirectory Directory, relative to {@code webappDirectory}, where the bundles
+     *                        will be written
+     * @return the number of bundles written
+     */
+    public static int generate(String applicationClassName,
+                               File webappDirectory,
+                               String bundleDirectory)
+        throws Exception
+    {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        WebApplication app = (WebApplication) Class.forName(
+            applicationClassName, true, loader).newInstance();
+
+        String configuration = System.getProperty(CONFIGURATION_PROPERTY);
+        System.setProperty(CONFIGURATION_PROPERTY, RuntimeConfigurationType.DEPLOYMENT.name());
+        BaseWicketTester tester = null;
+        try
+        {
+            tester = new BaseWicketTester(app, webappDirectory.getAbsolutePath());
+            return new StaticBundleGenerator(webappDirectory, bundleDirectory).write(app);
+        }
+        finally
+        {
+            if(tester != null) tester.destroy();
+            if(null == configuration)
+            {
+                System.clearProperty(CONFIGURATION_PROPERTY);
+            }
+            else
+            {
+                System.setProperty(CONFIGURATION_PROPERTY, configuration);
+            }
+        }
+    }
+
+    private BundleLauncher()
+    {
+    }
+}
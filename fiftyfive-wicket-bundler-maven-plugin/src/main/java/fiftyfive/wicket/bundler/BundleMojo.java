@@ -0,0 +1,150 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.bundler;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Writes the merged resources of a fiftyfive-wicket application to static, fingerprinted files
+ * in the exploded WAR directory, so that they can be served without any merging at runtime.
+ * <p>
+ * The application class is instantiated and initialized using the project's compile and runtime
+ * classpaths, as it would be in the servlet container, and every merged resource that it
+ * installs (e.g. with {@code MergedJavaScriptBuilder} or {@code MergedCssBuilder}) is written to
+ * disk. The application is started in deployment mode, so that it installs the same resources
+ * and JavaScript compressor that it would in production. The actual work is done by
+ * {@code fiftyfive.wicket.resource.StaticBundleGenerator}; this mojo simply sets up the
+ * classpath and invokes it via {@link BundleLauncher}. The compile classpath is included so
+ * that {@code provided} dependencies such as the servlet API, which the container would supply,
+ * are available.
+ * <pre class="example">
+ * &lt;plugin&gt;
+ *   &lt;groupId&gt;com.55minutes&lt;/groupId&gt;
+ *   &lt;artifactId&gt;fiftyfive-wicket-bundler-maven-plugin&lt;/artifactId&gt;
+ *   &lt;configuration&gt;
+ *     &lt;applicationClass&gt;com.mycompany.WicketApplication&lt;/applicationClass&gt;
+ *   &lt;/configuration&gt;
+ *   &lt;executions&gt;
+ *     &lt;execution&gt;
+ *       &lt;goals&gt;&lt;goal&gt;bundle&lt;/goal&gt;&lt;/goals&gt;
+ *     &lt;/execution&gt;
+ *   &lt;/executions&gt;
+ * &lt;/plugin&gt;</pre>
+ *
+ * @goal bundle
+ * @phase prepare-package
+ * @requiresDependencyResolution test
+ * @since 4.1
+ */
+public class BundleMojo extends AbstractMojo
+{
+    static final String LAUNCHER_CLASS = "fiftyfive.wicket.bundler.BundleLauncher";
+
+    /**
+     * @parameter expression="${project}"
+     * @required
+     * @readonly
+     */
+    private MavenProject project;
+
+    /**
+     * Fully-qualified name of the WebApplication subclass that installs the merged resources.
+     *
+     * @parameter
+     * @required
+     */
+    private String applicationClass;
+
+    /**
+     * The exploded web application directory into which the bundles and manifest are written.
+     *
+     * @parameter default-value="${project.build.directory}/${project.build.finalName}"
+     * @required
+     */
+    private File webappDirectory;
+
+    /**
+     * Directory, relative to the web application root, where the bundles are written.
+     *
+     * @parameter default-value="bundles"
+     * @required
+     */
+    private String bundleDirectory;
+
+    public void execute() throws MojoExecutionException
+    {
+        ClassLoader original = Thread.currentThread().getContextClassLoader();
+        try
+        {
+            ClassLoader loader = newProjectClassLoader();
+            Thread.currentThread().setContextClassLoader(loader);
+
+            Method generate = loader.loadClass(LAUNCHER_CLASS).getMethod(
+                "generate", String.class, File.class, String.class);
+            Object count = generate.invoke(
+                null, this.applicationClass, this.webappDirectory, this.bundleDirectory);
+
+            getLog().info("Wrote " + count + " merged bundle(s) to " + this.webappDirectory);
+        }
+        catch(InvocationTargetException ite)
+        {
+            throw new MojoExecutionException(
+                "Failed to generate bundles for " + this.applicationClass, ite.getCause());
+        }
+        catch(Exception e)
+        {
+            throw new MojoExecutionException(
+                "Failed to generate bundles for " + this.applicationClass, e);
+        }
+        finally
+        {
+            Thread.currentThread().setContextClassLoader(original);
+        }
+    }
+
+    /**
+     * Constructs a class loader from the project's compile classpath, which includes the
+     * project's own compiled classes, fiftyfive-wicket-core and {@code provided} dependencies,
+     * followed by any {@code runtime} dependencies, and finally this plugin's own classes so
+     * that {@link BundleLauncher} can be loaded alongside them. The plugin's class loader is
+     * deliberately not the parent: otherwise {@code BundleLauncher} would be loaded from there,
+     * where Wicket is not available.
+     */
+    private ClassLoader newProjectClassLoader() throws Exception
+    {
+        Set<Object> elements = new LinkedHashSet<Object>();
+        elements.addAll(this.project.getCompileClasspathElements());
+        elements.addAll(this.project.getRuntimeClasspathElements());
+        URL[] urls = new URL[elements.size() + 1];
+        int i = 0;
+        for(Object element : elements)
+        {
+            urls[i++] = new File((String) element).toURI().toURL();
+        }
+        urls[i] = getClass().getProtectionDomain().getCodeSource().getLocation();
+        return new URLClassLoader(urls, ClassLoader.getSystemClassLoader().getParent());
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.css;
+
+/**
+ * Minifies a CSS stylesheet. This is the CSS counterpart to Wicket's
+ * {@link org.apache.wicket.javascript.IJavaScriptCompressor IJavaScriptCompressor}, and can be
+ * used to plug a third-party minifier into {@link CssCompressorTransformer}. A conservative
+ * implementation is provided by {@link SimpleCssCompressor}.
+ *
+ * @since 4.1
+ */
+public interface CssCompressor
+{
+    /**
+     * Returns a minified copy of the given stylesheet.
+     */
+    String compress(String original);
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.css;
+
+import java.io.IOException;
+
+import fiftyfive.wicket.resource.MergedResourceTransformer;
+
+import org.apache.wicket.request.resource.ResourceReference;
+
+
+/**
+ * Minifies the CSS members of a merged resource using a {@link CssCompressor}. Members whose
+ * names do not end in {@code .css} are left untouched.
+ * <pre class="example">
+ * new MergedCssBuilder()
+ *     .setPath("/styles/all.css")
+ *     .addTransformer(new CssCompressorTransformer())
+ *     .addCss(...)
+ *     .install(this);</pre>
+ *
+ * @since 4.1
+ */
+public class CssCompressorTransformer implements MergedResourceTransformer
+{
+    private final CssCompressor compressor;
+    private final String encoding;
+
+    /**
+     * Creates a transformer that uses {@link SimpleCssCompressor} and assumes UTF-8 encoding.
+     */
+    public CssCompressorTransformer()
+    {
+        this(SimpleCssCompressor.INSTANCE, "UTF-8");
+    }
+
+    /**
+     * @param compressor The compressor to use
+     * @param encoding The character encoding of the stylesheets
+     */
+    public CssCompressorTransformer(CssCompressor compressor, String encoding)
+    {
+        this.compressor = compressor;
+        this.encoding = encoding;
+    }
+
+    public byte[] transform(ResourceReference ref, byte[] bytes) throws IOException
+    {
+        if(!ref.getName().endsWith(".css")) return bytes;
+        return this.compressor.compress(new String(bytes, this.encoding)).getBytes(this.encoding);
+    }
+}
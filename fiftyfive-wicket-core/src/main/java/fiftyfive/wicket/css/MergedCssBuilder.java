@@ -16,6 +16,8 @@
 package fiftyfive.wicket.css;
 
 import fiftyfive.wicket.resource.MergedResourceBuilder;
+import fiftyfive.wicket.resource.MergedResourceCodec;
+import fiftyfive.wicket.resource.MergedResourceTransformer;
 import org.apache.wicket.Component;
 import org.apache.wicket.behavior.Behavior;
 import org.apache.wicket.markup.html.IHeaderResponse;
@@ -73,6 +75,70 @@ public class MergedCssBuilder extends MergedResourceBuilder
        return (MergedCssBuilder) super.setPath(path);
     }
     
+    /**
+     * {@inheritDoc}
+     */
+    public MergedCssBuilder setCacheInMemory(boolean cacheInMemory)
+    {
+        return (MergedCssBuilder) super.setCacheInMemory(cacheInMemory);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public MergedCssBuilder setServeFromFiles(boolean serveFromFiles)
+    {
+        return (MergedCssBuilder) super.setServeFromFiles(serveFromFiles);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public MergedCssBuilder setUseSendfile(boolean useSendfile)
+    {
+        return (MergedCssBuilder) super.setUseSendfile(useSendfile);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public MergedCssBuilder setVersionByContent(boolean versionByContent)
+    {
+        return (MergedCssBuilder) super.setVersionByContent(versionByContent);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public MergedCssBuilder setSourceMap(boolean sourceMap)
+    {
+        return (MergedCssBuilder) super.setSourceMap(sourceMap);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public MergedCssBuilder setPreload(boolean preload)
+    {
+        return (MergedCssBuilder) super.setPreload(preload);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public MergedCssBuilder addCodec(MergedResourceCodec codec)
+    {
+        return (MergedCssBuilder) super.addCodec(codec);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public MergedCssBuilder addTransformer(MergedResourceTransformer transformer)
+    {
+        return (MergedCssBuilder) super.addTransformer(transformer);
+    }
+    
     /**
      * Sets the CSS media type that will be used for the merged CSS resources.
      * By default the merged CSS will not have a media type, meaning it will
@@ -107,6 +173,15 @@ public class MergedCssBuilder extends MergedResourceBuilder
         return this;
     }
     
+    /**
+     * Returns {@code "style"}.
+     */
+    @Override
+    protected String getPreloadType()
+    {
+        return "style";
+    }
+    
     protected Behavior newContributor(final ResourceReference ref)
     {
         return new Behavior() {
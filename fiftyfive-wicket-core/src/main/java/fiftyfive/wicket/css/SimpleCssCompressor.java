@@ -0,0 +1,128 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.css;
+
+/**
+ * A fast, conservative CSS minifier that makes a single pass over the stylesheet. It removes
+ * comments (except those beginning with {@code /*!}, which by convention hold license text),
+ * collapses runs of whitespace, removes whitespace around braces, semicolons, commas and
+ * child combinators, and drops the last semicolon of each block. String literals are left
+ * untouched. It does not rewrite values (colors, units, etc.); use a third-party
+ * {@link CssCompressor} for that.
+ *
+ * @since 4.1
+ */
+public class SimpleCssCompressor implements CssCompressor
+{
+    public static final SimpleCssCompressor INSTANCE = new SimpleCssCompressor();
+
+    public String compress(String original)
+    {
+        StringBuilder out = new StringBuilder(original.length());
+        int len = original.length();
+        boolean pendingSpace = false;
+
+        for(int i=0; i<len; i++)
+        {
+            char c = original.charAt(i);
+
+            // Comments
+            if('/' == c && i+1 < len && '*' == original.charAt(i+1))
+            {
+                int end = original.indexOf("*/", i+2);
+                end = end < 0 ? len : end + 2;
+                if(i+2 < len && '!' == original.charAt(i+2))
+                {
+                    appendSpace(out, pendingSpace);
+                    out.append(original, i, end);
+                    pendingSpace = false;
+                }
+                i = end - 1;
+                continue;
+            }
+
+            // Whitespace is collapsed, and dropped entirely next to punctuation
+            if(Character.isWhitespace(c))
+            {
+                pendingSpace = true;
+                continue;
+            }
+            if(isPunctuation(c))
+            {
+                if(';' == c && i+1 < len && nextSignificant(original, i+1) == '}')
+                {
+                    pendingSpace = false;
+                    continue;
+                }
+                if(out.length() > 0 && ' ' == out.charAt(out.length() - 1))
+                {
+                    out.setLength(out.length() - 1);
+                }
+                out.append(c);
+                pendingSpace = false;
+                continue;
+            }
+            appendSpace(out, pendingSpace);
+            pendingSpace = false;
+
+            // String literals are copied verbatim
+            if('"' == c || '\'' == c)
+            {
+                int end = i + 1;
+                while(end < len && original.charAt(end) != c)
+                {
+                    if('\\' == original.charAt(end)) end++;
+                    end++;
+                }
+                end = Math.min(end + 1, len);
+                out.append(original, i, end);
+                i = end - 1;
+                continue;
+            }
+            out.append(c);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Appends a single space if whitespace was skipped and the previous character does not
+     * make it redundant.
+     */
+    private static void appendSpace(StringBuilder out, boolean pendingSpace)
+    {
+        if(pendingSpace && out.length() > 0 && !isPunctuation(out.charAt(out.length() - 1)))
+        {
+            out.append(' ');
+        }
+    }
+
+    private static boolean isPunctuation(char c)
+    {
+        return '{' == c || '}' == c || ';' == c || ',' == c || '>' == c;
+    }
+
+    /**
+     * Returns the next character at or after {@code start} that is not whitespace, or zero.
+     */
+    private static char nextSignificant(String s, int start)
+    {
+        for(int i=start; i<s.length(); i++)
+        {
+            if(!Character.isWhitespace(s.charAt(i))) return s.charAt(i);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.io.IOException;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.WicketRuntimeException;
+
+import org.apache.wicket.request.IRequestCycle;
+import org.apache.wicket.request.IRequestHandler;
+
+import org.apache.wicket.request.http.WebRequest;
+import org.apache.wicket.request.http.WebResponse;
+
+import org.apache.wicket.util.time.Duration;
+import org.apache.wicket.util.time.Time;
+
+
+/**
+ * Base class for handlers that serve a merged resource whose total length is known before the
+ * response is written, as opposed to {@link MergedResourceRequestHandler}, which delegates to
+ * each individual resource in turn.
+ * <p>
+ * This class takes care of the HTTP protocol details that such handlers have in common:
+ * <ul>
+ * <li>Last-Modified, ETag and caching headers are sent with every response.</li>
+ * <li>If-None-Match is evaluated against the ETag and takes precedence over If-Modified-Since,
+ *     which is evaluated against the last modified time. Either way a 304 response can be sent
+ *     without touching any of the underlying resources.</li>
+ * <li>A single HTTP/1.1 byte range may be requested with the Range header, optionally
+ *     guarded by If-Range, in which case 206 Partial Content is sent.</li>
+ * <li>The Content-Length header is always set.</li>
+ * </ul>
+ *
+ * @since 4.1
+ */
+public abstract class AbstractMergedResourceRequestHandler implements IRequestHandler
+{
+    private Duration cacheDuration;
+    private boolean sendLastModified = true;
+
+    public void respond(IRequestCycle requestCycle)
+    {
+        WebRequest request = (WebRequest) requestCycle.getRequest();
+        WebResponse response = (WebResponse) requestCycle.getResponse();
+
+        setHeaders(response);
+
+        if(isNotModified(request))
+        {
+            response.setStatus(304);
+            return;
+        }
+
+        if(getContentType() != null)
+        {
+            response.setContentType(getContentType());
+        }
+
+        long length = selectRepresentation(request, response);
+        ByteRange range = getRequestedRange(request, length);
+        if(ByteRange.UNSATISFIABLE == range)
+        {
+            response.setHeader("Content-Range", range.toContentRange(length));
+            response.setStatus(416);
+            return;
+        }
+        if(range != null)
+        {
+            response.setStatus(206);
+            response.setHeader("Content-Range", range.toContentRange(length));
+        }
+        else
+        {
+            range = new ByteRange(0, length - 1);
+        }
+
+        response.setContentLength(range.getLength());
+        if(range.getLength() > 0)
+        {
+            try
+            {
+                writeBody(response, range.getFirst(), range.getLength());
+            }
+            catch(IOException ioe)
+            {
+                throw new WicketRuntimeException(ioe);
+            }
+        }
+    }
+
+    public void detach(IRequestCycle requestCycle)
+    {
+    }
+
+    /**
+     * Overrides the application's default resource cache duration for this response. This is
+     * used when the request URL is fingerprinted with the hash of the current content, in
+     * which case the response can safely be cached for the maximum duration.
+     *
+     * @return {@code this} for chaining
+     */
+    public AbstractMergedResourceRequestHandler setCacheDuration(Duration cacheDuration)
+    {
+        this.cacheDuration = cacheDuration;
+        return this;
+    }
+
+    /**
+     * Controls whether the Last-Modified header is sent and If-Modified-Since is honored. When
+     * disabled, conditional requests are decided by the ETag alone. This is useful in a
+     * cluster, where each node may see different modification times for the same content. The
+     * default is {@code true}.
+     *
+     * @return {@code this} for chaining
+     */
+    public AbstractMergedResourceRequestHandler setSendLastModified(boolean sendLastModified)
+    {
+        this.sendLastModified = sendLastModified;
+        return this;
+    }
+
+    /**
+     * Returns a strong entity tag for the content, in quoted form, or {@code null}.
+     */
+    protected abstract String getETag();
+
+    /**
+     * Returns the aggregate last modified time of the content, or {@code null}.
+     */
+    protected abstract Time getLastModified();
+
+    /**
+     * Returns the content type of the merged resource, or {@code null} if it is not known.
+     */
+    protected abstract String getContentType();
+
+    /**
+     * Chooses which representation of the content will be sent (for example, compressed or
+     * uncompressed), sets any headers that describe it, and returns its length in bytes.
+     */
+    protected abstract long selectRepresentation(WebRequest request, WebResponse response);
+
+    /**
+     * Writes {@code length} bytes of the selected representation, starting at {@code offset},
+     * to the response.
+     */
+    protected abstract void writeBody(WebResponse response, long offset, long length)
+        throws IOException;
+
+    /**
+     * Sets the headers that are sent with every response, including 304 responses.
+     */
+    protected void setHeaders(WebResponse response)
+    {
+        Time lastModified = lastModifiedHeader();
+        if(lastModified != null)
+        {
+            response.setLastModifiedTime(lastModified);
+        }
+        if(getETag() != null)
+        {
+            response.setHeader("ETag", getETag());
+        }
+        response.setHeader("Accept-Ranges", "bytes");
+        configureCache(response);
+    }
+
+    /**
+     * Sets the caching headers of the response according to the application's default resource
+     * cache duration, just as Wicket would for an individual package resource, unless a
+     * {@link #setCacheDuration cache duration} has been set explicitly.
+     */
+    protected void configureCache(WebResponse response)
+    {
+        Duration duration = this.cacheDuration;
+        if(null == duration)
+        {
+            duration = Application.get().getResourceSettings().getDefaultCacheDuration();
+        }
+        if(duration.getMilliseconds() > 0)
+        {
+            response.enableCaching(duration, WebResponse.CacheScope.PUBLIC);
+        }
+        else
+        {
+            response.disableCaching();
+        }
+    }
+
+    /**
+     * Returns {@code true} if the browser's cached copy is current. If the request has an
+     * If-None-Match header, it alone is used to decide; otherwise the If-Modified-Since header is
+     * compared to the last modified time of the merged content.
+     */
+    protected boolean isNotModified(WebRequest request)
+    {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if(ifNoneMatch != null && getETag() != null)
+        {
+            return MergedResourceRequestHandler.matchesETag(ifNoneMatch, getETag());
+        }
+
+        Time lastModified = lastModifiedHeader();
+        if(null == lastModified) return false;
+
+        Time ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        if(null == ifModifiedSince) return false;
+
+        return ifModifiedSince.getMilliseconds() >= truncateToSeconds(lastModified);
+    }
+
+    /**
+     * Returns the byte range requested by the Range header, {@code null} if the full content
+     * should be sent, or {@link ByteRange#UNSATISFIABLE}. The Range header is ignored if an
+     * If-Range header is present and does not match the current ETag or last modified time.
+     */
+    protected ByteRange getRequestedRange(WebRequest request, long length)
+    {
+        String range = request.getHeader("Range");
+        if(null == range) return null;
+
+        String ifRange = request.getHeader("If-Range");
+        if(ifRange != null)
+        {
+            ifRange = ifRange.trim();
+            if(ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+            {
+                // If-Range requires a strong comparison
+                if(!ifRange.equals(getETag())) return null;
+            }
+            else
+            {
+                Time since = request.getDateHeader("If-Range");
+                Time lastModified = lastModifiedHeader();
+                if(null == since || null == lastModified ||
+                   since.getMilliseconds() < truncateToSeconds(lastModified))
+                {
+                    return null;
+                }
+            }
+        }
+        return ByteRange.parse(range, length);
+    }
+
+    /**
+     * Returns the last modified time to be used for HTTP headers, or {@code null} if
+     * {@link #setSendLastModified sending it} has been disabled.
+     */
+    private Time lastModifiedHeader()
+    {
+        return this.sendLastModified ? getLastModified() : null;
+    }
+
+    /**
+     * Truncate milliseconds since HTTP date headers have only second precision.
+     */
+    private static long truncateToSeconds(Time time)
+    {
+        return time.getMilliseconds() / 1000 * 1000;
+    }
+}
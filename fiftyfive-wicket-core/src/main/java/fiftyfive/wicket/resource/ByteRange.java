@@ -0,0 +1,120 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+/**
+ * A single, inclusive byte range as requested by an HTTP/1.1 Range header. Only single ranges
+ * are supported; requests for multiple ranges are answered with the full content, which the
+ * specification permits.
+ *
+ * @since 4.1
+ */
+public class ByteRange
+{
+    /**
+     * Returned by {@link #parse parse()} when the requested range lies entirely outside of the
+     * content, which must be answered with 416 Requested Range Not Satisfiable.
+     */
+    public static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+    private final long first;
+    private final long last;
+
+    /**
+     * Parses the value of a Range header for content of the given length. Returns {@code null}
+     * if the header is absent, malformed, asks for multiple ranges or uses a unit other than
+     * bytes; in all of those cases the full content should be sent. Returns
+     * {@link #UNSATISFIABLE} if the range cannot be satisfied.
+     */
+    public static ByteRange parse(String header, long length)
+    {
+        if(null == header) return null;
+
+        header = header.trim();
+        if(!header.startsWith("bytes=") || header.indexOf(',') >= 0) return null;
+
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if(dash < 0) return null;
+
+        try
+        {
+            String firstSpec = spec.substring(0, dash).trim();
+            String lastSpec = spec.substring(dash + 1).trim();
+
+            if(firstSpec.length() == 0)
+            {
+                // Suffix range: the last N bytes
+                long suffix = Long.parseLong(lastSpec);
+                if(suffix <= 0) return UNSATISFIABLE;
+                return new ByteRange(Math.max(0, length - suffix), length - 1);
+            }
+
+            long first = Long.parseLong(firstSpec);
+            long last = lastSpec.length() == 0 ? length - 1 : Long.parseLong(lastSpec);
+            if(last < first) return null;
+            if(first >= length) return UNSATISFIABLE;
+            return new ByteRange(first, Math.min(last, length - 1));
+        }
+        catch(NumberFormatException nfe)
+        {
+            return null;
+        }
+    }
+
+    public ByteRange(long first, long last)
+    {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Offset of the first byte in the range.
+     */
+    public long getFirst()
+    {
+        return this.first;
+    }
+
+    /**
+     * Offset of the last byte in the range (inclusive).
+     */
+    public long getLast()
+    {
+        return this.last;
+    }
+
+    /**
+     * Number of bytes in the range.
+     */
+    public long getLength()
+    {
+        return this.last - this.first + 1;
+    }
+
+    /**
+     * Returns the value of the Content-Range header that describes this range within content of
+     * the given total length.
+     */
+    public String toContentRange(long total)
+    {
+        if(this == UNSATISFIABLE)
+        {
+            return "bytes */" + total;
+        }
+        return "bytes " + this.first + "-" + this.last + "/" + total;
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+/**
+ * Reports whether a CDN host is currently able to serve resources. {@link SimpleCDN} consults
+ * the health check every time it renders a URL, so implementations must be fast and
+ * thread-safe; an implementation that probes hosts over the network should do so in the
+ * background and only report the latest result here.
+ *
+ * @see ManualCDNHealthCheck
+ * @since 4.1
+ */
+public interface CDNHealthCheck
+{
+    /**
+     * Returns {@code true} if the host with the given base URL is available.
+     */
+    boolean isHealthy(String baseUrl);
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+/**
+ * Chooses which CDN host {@link SimpleCDN} should use for a given resource. Implementations
+ * must be thread-safe, and should return the same host for the same path every time so that
+ * browsers do not download the same resource from several hosts.
+ *
+ * @since 4.1
+ */
+public interface CDNHostSelector
+{
+    /**
+     * Returns the base URL of the CDN host to use for the resource with the given local path,
+     * for example {@code "//cdn1.example.com"}, or {@code null} if the resource should be
+     * served locally.
+     *
+     * @param path The URL of the resource as rendered by Wicket without a CDN, for example
+     *             {@code "wicket/resource/com.mycompany.WicketApplication/test.css"}
+     */
+    String selectHost(String path);
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.wicket.request.IRequestCycle;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.request.http.WebRequest;
+import org.apache.wicket.request.http.WebResponse;
+
+import org.apache.wicket.util.time.Time;
+
+
+/**
+ * Responds with a {@link MergedResourceContent} that has already been concatenated in memory.
+ * Unlike {@link MergedResourceRequestHandler}, this handler does not delegate to the individual
+ * resources at request time. The entire response is sent with a single write, and the
+ * Content-Length header is always set. Conditional and Range requests are handled as described
+ * in {@link AbstractMergedResourceRequestHandler}.
+ * <p>
+ * If {@link MergedResourceCodec codecs} are supplied, the first one whose encoding is acceptable
+ * according to the request's Accept-Encoding header is used to send a pre-compressed variant of
+ * the content. In that case the Content-Encoding header is set, and Vary: Accept-Encoding is
+ * always sent so that intermediate caches keep the variants apart. Each encoding has its own
+ * strong ETag, formed by appending the encoding to the ETag of the content (e.g.
+ * {@code "<sha1>-gzip"}), so that byte ranges of different encodings are never combined.
+ * If-None-Match accepts the ETag of any encoding, since they all represent the same content.
+ * <p>
+ * If {@link #setUseSendfile sendfile} is enabled and the servlet container advertises support
+ * for it (currently Apache Tomcat's NIO and APR connectors, via the
+ * {@code org.apache.tomcat.sendfile.support} request attribute), the body is not written by
+ * this handler at all. Instead the content is spooled to a file in the application's temporary
+ * directory once per version (see {@link MergedResourceContent#getSpoolFile}) and the
+ * container is asked to transmit that file after the request thread has been returned to the
+ * pool. Slow clients then no longer hold a request thread for the duration of the transfer.
+ * Otherwise the body is written synchronously as usual.
+ *
+ * @since 4.1
+ */
+public class CachedMergedResourceRequestHandler extends AbstractMergedResourceRequestHandler
+{
+    private MergedResourceContent content;
+    private List<MergedResourceCodec> codecs;
+    private byte[] body;
+    private MergedResourceCodec selectedCodec;
+    private boolean useSendfile = false;
+    
+    static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    public CachedMergedResourceRequestHandler(MergedResourceContent content)
+    {
+        this(content, Collections.<MergedResourceCodec>emptyList());
+    }
+
+    /**
+     * @param content The merged content to serve
+     * @param codecs The codecs that may be used to compress the response, in order of preference
+     */
+    public CachedMergedResourceRequestHandler(MergedResourceContent content,
+                                              List<MergedResourceCodec> codecs)
+    {
+        this.content = content;
+        this.codecs = codecs;
+    }
+
+    /**
+     * Enables handing the body off to the container's asynchronous sendfile facility, when the
+     * container supports it. The default is {@code false}.
+     *
+     * @return {@code this} for chaining
+     */
+    public CachedMergedResourceRequestHandler setUseSendfile(boolean useSendfile)
+    {
+        this.useSendfile = useSendfile;
+        return this;
+    }
+
+    /**
+     * Chooses the encoding before any headers are set, since the ETag depends on it.
+     */
+    @Override
+    public void respond(IRequestCycle requestCycle)
+    {
+        this.selectedCodec = negotiateCodec((WebRequest) requestCycle.getRequest());
+        super.respond(requestCycle);
+    }
+
+    @Override
+    public void detach(IRequestCycle requestCycle)
+    {
+        this.content = null;
+        this.codecs = null;
+        this.body = null;
+        this.selectedCodec = null;
+    }
+
+    /**
+     * Returns the content being served by this handler.
+     */
+    protected MergedResourceContent getContent()
+    {
+        return this.content;
+    }
+
+    /**
+     * Returns the ETag of the selected encoding.
+     */
+    @Override
+    protected String getETag()
+    {
+        return encodedETag(this.content.getETag(), this.selectedCodec);
+    }
+
+    /**
+     * Returns {@code true} if the If-None-Match header matches the ETag of the content in any
+     * encoding, or otherwise if the content has not been modified according to the default rules.
+     */
+    @Override
+    protected boolean isNotModified(WebRequest request)
+    {
+        if(super.isNotModified(request)) return true;
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        String etag = this.content.getETag();
+        if(null == ifNoneMatch || null == etag) return false;
+
+        if(MergedResourceRequestHandler.matchesETag(ifNoneMatch, etag)) return true;
+        for(MergedResourceCodec codec : this.codecs)
+        {
+            if(MergedResourceRequestHandler.matchesETag(ifNoneMatch, encodedETag(etag, codec)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected Time getLastModified()
+    {
+        return this.content.getLastModified();
+    }
+
+    @Override
+    protected String getContentType()
+    {
+        return this.content.getContentType();
+    }
+
+    @Override
+    protected void setHeaders(WebResponse response)
+    {
+        super.setHeaders(response);
+        if(!this.codecs.isEmpty())
+        {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+    }
+
+    @Override
+    protected long selectRepresentation(WebRequest request, WebResponse response)
+    {
+        this.body = this.content.getBytes();
+        MergedResourceCodec codec = this.selectedCodec;
+        if(codec != null)
+        {
+            this.body = this.content.getEncodedBytes(codec);
+            response.setHeader("Content-Encoding", codec.getEncoding());
+        }
+        return this.body.length;
+    }
+
+    @Override
+    protected void writeBody(WebResponse response, long offset, long length) throws IOException
+    {
+        if(this.useSendfile && sendfile(offset, length)) return;
+
+        if(0 == offset && this.body.length == length)
+        {
+            response.write(this.body);
+        }
+        else
+        {
+            response.write(Arrays.copyOfRange(this.body, (int) offset, (int) (offset + length)));
+        }
+    }
+
+    /**
+     * If the container supports sendfile, spools the selected representation to a file and
+     * asks the container to transmit the given range of it asynchronously. Returns
+     * {@code false} if sendfile is not supported, in which case nothing has been done.
+     */
+    protected boolean sendfile(long offset, long length) throws IOException
+    {
+        Object container = RequestCycle.get().getRequest().getContainerRequest();
+        if(!(container instanceof HttpServletRequest)) return false;
+
+        HttpServletRequest http = (HttpServletRequest) container;
+        if(!Boolean.TRUE.equals(http.getAttribute(SENDFILE_SUPPORT))) return false;
+
+        File file = this.content.getSpoolFile(this.selectedCodec);
+        http.setAttribute(SENDFILE_FILENAME, file.getAbsolutePath());
+        http.setAttribute(SENDFILE_START, Long.valueOf(offset));
+        http.setAttribute(SENDFILE_END, Long.valueOf(offset + length));
+        return true;
+    }
+
+    /**
+     * Returns the first codec whose encoding is accepted by the request's Accept-Encoding header,
+     * or {@code null} if the response should be sent uncompressed.
+     */
+    protected MergedResourceCodec negotiateCodec(WebRequest request)
+    {
+        if(this.codecs.isEmpty()) return null;
+
+        String accept = request.getHeader("Accept-Encoding");
+        if(null == accept) return null;
+
+        for(MergedResourceCodec codec : this.codecs)
+        {
+            if(isAccepted(accept, codec.getEncoding())) return codec;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the strong ETag of the given encoding of the content, which is the ETag of the
+     * content with the encoding appended inside the quotes. Returns the ETag unchanged if
+     * {@code codec} is {@code null}.
+     */
+    static String encodedETag(String etag, MergedResourceCodec codec)
+    {
+        if(null == etag || null == codec || !etag.endsWith("\"")) return etag;
+        return etag.substring(0, etag.length() - 1) + "-" + codec.getEncoding() + "\"";
+    }
+
+    /**
+     * Returns {@code true} if the given Accept-Encoding header value lists the encoding without
+     * a quality value of zero. The {@code *} wildcard is consulted only if the encoding is not
+     * listed by name, regardless of the order of the two, so that {@code *;q=0, gzip} accepts
+     * gzip and {@code gzip;q=0, *} does not.
+     */
+    static boolean isAccepted(String acceptEncoding, String encoding)
+    {
+        boolean wildcard = false;
+        for(String token : acceptEncoding.split(","))
+        {
+            String[] parts = token.split(";");
+            String name = parts[0].trim();
+            if(name.equalsIgnoreCase(encoding))
+            {
+                return hasNonZeroQuality(parts);
+            }
+            if(name.equals("*"))
+            {
+                wildcard = hasNonZeroQuality(parts);
+            }
+        }
+        return wildcard;
+    }
+
+    /**
+     * Returns {@code false} if the parameters of an Accept-Encoding token include a quality
+     * value of zero, or one that cannot be parsed.
+     */
+    private static boolean hasNonZeroQuality(String[] parts)
+    {
+        for(int i=1; i<parts.length; i++)
+        {
+            String param = parts[i].trim();
+            if(param.startsWith("q="))
+            {
+                try
+                {
+                    return Double.parseDouble(param.substring(2).trim()) > 0;
+                }
+                catch(NumberFormatException ignore)
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.wicket.WicketRuntimeException;
+
+import org.apache.wicket.util.lang.Args;
+
+
+/**
+ * Chooses a CDN host by consistent hashing of the resource path. Each host is placed on a hash
+ * ring at many points; a resource is assigned to the first host found on the ring at or after
+ * the hash of its path. As a result, a given resource is always served from the same host, and
+ * adding or removing a host only moves the resources that hashed to that host rather than
+ * reshuffling all of them. Either way, browser caches stay warm.
+ * <p>
+ * The ring is computed once at construction time and is never modified, so lookups are
+ * thread-safe without locking.
+ *
+ * @since 4.1
+ */
+public class ConsistentHashHostSelector implements CDNHostSelector
+{
+    /**
+     * Number of points on the ring for each host. More points give a more even distribution.
+     */
+    private static final int POINTS_PER_HOST = 160;
+
+    private final List<String> hosts;
+    private final TreeMap<Integer,String> ring;
+
+    /**
+     * @param baseUrls The base URLs of the CDN hosts, for example
+     *                 {@code "//cdn1.example.com"}. At least one is required.
+     */
+    public ConsistentHashHostSelector(String... baseUrls)
+    {
+        Args.notNull(baseUrls, "baseUrls");
+        if(0 == baseUrls.length)
+        {
+            throw new IllegalArgumentException("At least one CDN host is required");
+        }
+        this.hosts = Collections.unmodifiableList(Arrays.asList(baseUrls.clone()));
+        this.ring = new TreeMap<Integer,String>();
+        for(String host : this.hosts)
+        {
+            for(int i=0; i<POINTS_PER_HOST; i++)
+            {
+                this.ring.put(hash(host + "#" + i), host);
+            }
+        }
+    }
+
+    /**
+     * Returns the base URLs of all hosts, in the order they were given.
+     */
+    public List<String> getHosts()
+    {
+        return this.hosts;
+    }
+
+    public String selectHost(String path)
+    {
+        if(1 == this.hosts.size()) return this.hosts.get(0);
+
+        Map.Entry<Integer,String> entry = this.ring.ceilingEntry(hash(path));
+        if(null == entry)
+        {
+            entry = this.ring.firstEntry();
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * Returns the first four bytes of the MD5 digest of the string, as an int.
+     */
+    static int hash(String str)
+    {
+        try
+        {
+            byte[] d = MessageDigest.getInstance("MD5").digest(str.getBytes("UTF-8"));
+            return ((d[0] & 0xff) << 24) | ((d[1] & 0xff) << 16) | ((d[2] & 0xff) << 8) |
+                   (d[3] & 0xff);
+        }
+        catch(NoSuchAlgorithmException nsae)
+        {
+            throw new WicketRuntimeException(nsae);
+        }
+        catch(UnsupportedEncodingException uee)
+        {
+            throw new WicketRuntimeException(uee);
+        }
+    }
+}
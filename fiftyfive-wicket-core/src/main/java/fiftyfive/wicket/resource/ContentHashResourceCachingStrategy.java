@@ -0,0 +1,249 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.wicket.WicketRuntimeException;
+
+import org.apache.wicket.request.http.WebResponse;
+import org.apache.wicket.request.resource.AbstractResource;
+import org.apache.wicket.request.resource.PackageResource;
+import org.apache.wicket.request.resource.caching.IResourceCachingStrategy;
+import org.apache.wicket.request.resource.caching.IStaticCacheableResource;
+import org.apache.wicket.request.resource.caching.ResourceUrl;
+
+import org.apache.wicket.util.io.IOUtils;
+import org.apache.wicket.util.lang.Objects;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.ResourceStreamNotFoundException;
+import org.apache.wicket.util.time.Time;
+
+
+/**
+ * Fingerprints resource URLs with a SHA-1 hash of the resource's contents, rather than its
+ * last modified time. For example, {@code styles/all.css} becomes
+ * {@code styles/all-3f786850e387550fdab836ed7e6dc881de23001b.css}.
+ * <p>
+ * Because the fingerprint depends only on the bytes being served, touching a file without
+ * changing it leaves the URL alone, while any change to its contents produces a new URL even
+ * if the file's modification time went backwards. Every node of a cluster therefore renders
+ * the same URL for the same content, no matter when the application was unpacked on that node.
+ * That in turn makes it safe to let browsers and proxies cache fingerprinted URLs for a year.
+ * <p>
+ * Hashes are remembered per resource and recomputed only when the resource's last modified
+ * time changes. Package resources are identified by their scope, name, locale, style and
+ * variation, since Wicket creates a new resource object each time a reference is resolved. At
+ * most {@link #setMaxCacheSize 1000} hashes are remembered; the least recently used are
+ * discarded first. For merged resources, {@link MergedResourceMapper} recognizes this strategy and
+ * fingerprints the bundle URL with the hash of the entire merged content, which it computes
+ * once per version of the bundle. A request whose fingerprint matches the current content is
+ * served with the {@link WebResponse#MAX_CACHE_DURATION maximum} cache duration.
+ * <p>
+ * Install it like this:
+ * <pre class="example">
+ * getResourceSettings().setCachingStrategy(new ContentHashResourceCachingStrategy());</pre>
+ *
+ * @since 4.1
+ */
+public class ContentHashResourceCachingStrategy implements IResourceCachingStrategy
+{
+    private static final Pattern FINGERPRINT =
+        Pattern.compile("^(.+)-([0-9a-f]{40})(\\.[^./]*)?$");
+
+    private int maxCacheSize = 1000;
+    private final Map<Object,VersionedHash> hashes =
+        new LinkedHashMap<Object,VersionedHash>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object,VersionedHash> eldest)
+            {
+                return size() > ContentHashResourceCachingStrategy.this.maxCacheSize;
+            }
+        };
+
+    /**
+     * Returns the fingerprint embedded in the given file name, or {@code null} if the file name
+     * has not been decorated by this strategy.
+     */
+    public static String getFingerprint(String fileName)
+    {
+        Matcher m = FINGERPRINT.matcher(fileName);
+        return m.matches() ? m.group(2) : null;
+    }
+
+    /**
+     * Sets the maximum number of resource hashes that are remembered. The default is 1000.
+     *
+     * @return {@code this} for chaining
+     */
+    public ContentHashResourceCachingStrategy setMaxCacheSize(int maxCacheSize)
+    {
+        synchronized(this.hashes)
+        {
+            this.maxCacheSize = maxCacheSize;
+            this.hashes.clear();
+        }
+        return this;
+    }
+
+    public void decorateUrl(ResourceUrl url, IStaticCacheableResource resource)
+    {
+        String hash = getContentHash(resource);
+        if(hash != null)
+        {
+            decorateUrl(url, hash);
+        }
+    }
+
+    /**
+     * Fingerprints the URL with a hash that has already been computed by the caller. This is
+     * used by {@link MergedResourceMapper} to fingerprint a bundle with the hash of its merged
+     * content.
+     *
+     * @param hash A lowercase, 40 character hex SHA-1 hash
+     */
+    public void decorateUrl(ResourceUrl url, String hash)
+    {
+        String fileName = url.getFileName();
+        int dot = fileName.lastIndexOf('.');
+        if(dot > 0)
+        {
+            url.setFileName(fileName.substring(0, dot) + "-" + hash + fileName.substring(dot));
+        }
+        else
+        {
+            url.setFileName(fileName + "-" + hash);
+        }
+    }
+
+    public void undecorateUrl(ResourceUrl url)
+    {
+        Matcher m = FINGERPRINT.matcher(url.getFileName());
+        if(m.matches())
+        {
+            url.setFileName(m.group(1) + (m.group(3) != null ? m.group(3) : ""));
+        }
+    }
+
+    /**
+     * Since the URL of a fingerprinted resource changes whenever its contents change, the
+     * response may be cached publicly for the maximum duration.
+     */
+    public void decorateResponse(AbstractResource.ResourceResponse response,
+                                 IStaticCacheableResource resource)
+    {
+        response.setCacheDuration(WebResponse.MAX_CACHE_DURATION);
+        response.setCacheScope(WebResponse.CacheScope.PUBLIC);
+    }
+
+    /**
+     * Returns the SHA-1 hash of the contents of the resource, or {@code null} if it cannot be
+     * read. The hash is remembered and recomputed only if the resource's last modified time
+     * changes.
+     */
+    protected String getContentHash(IStaticCacheableResource resource)
+    {
+        IResourceStream stream = resource.getCacheableResourceStream();
+        if(null == stream) return null;
+
+        Object key = getCacheKey(resource);
+        Time lastModified = stream.lastModifiedTime();
+        VersionedHash current;
+        synchronized(this.hashes)
+        {
+            current = this.hashes.get(key);
+        }
+        if(current != null && Objects.equal(current.version, lastModified))
+        {
+            try { stream.close(); } catch(Exception ignore) {}
+            return current.hash;
+        }
+        current = new VersionedHash(lastModified, MergedResourceContent.sha1Hex(read(stream)));
+        synchronized(this.hashes)
+        {
+            this.hashes.put(key, current);
+        }
+        return current.hash;
+    }
+
+    /**
+     * Returns the key under which the hash of the given resource is remembered. Package
+     * resources are identified by what they refer to rather than by identity, since a new
+     * instance is created every time a reference is resolved.
+     */
+    protected Object getCacheKey(IStaticCacheableResource resource)
+    {
+        if(resource instanceof PackageResource)
+        {
+            PackageResource pr = (PackageResource) resource;
+            return Arrays.<Serializable>asList(
+                pr.getScope().getName(),
+                pr.getName(),
+                pr.getLocale(),
+                pr.getStyle(),
+                pr.getVariation());
+        }
+        return resource;
+    }
+
+    /**
+     * Reads the entire stream, translating any i/o exceptions into WicketRuntimeException.
+     * Closes the stream cleanly no matter what.
+     */
+    private static byte[] read(IResourceStream stream)
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try
+        {
+            IOUtils.copy(stream.getInputStream(), buffer);
+            return buffer.toByteArray();
+        }
+        catch(IOException ioe)
+        {
+            throw new WicketRuntimeException(ioe);
+        }
+        catch(ResourceStreamNotFoundException rsnfe)
+        {
+            throw new WicketRuntimeException(rsnfe);
+        }
+        finally
+        {
+            try { stream.close(); } catch(Exception ignore) {}
+        }
+    }
+
+    /**
+     * A content hash and the last modified time from which it was computed.
+     */
+    private static class VersionedHash
+    {
+        private final Time version;
+        private final String hash;
+
+        private VersionedHash(Time version, String hash)
+        {
+            this.version = version;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.wicket.request.IRequestCycle;
+
+import org.apache.wicket.request.http.WebRequest;
+import org.apache.wicket.request.http.WebResponse;
+
+import org.apache.wicket.util.time.Time;
+
+
+/**
+ * Responds with a merged resource by streaming the underlying {@link MergedResourceFiles} to the
+ * servlet output stream with {@link java.nio.channels.FileChannel#transferTo
+ * FileChannel.transferTo()}, so that the merged content is never held in memory as a whole.
+ * Note that this is not zero-copy: since the servlet output stream is not a file or socket
+ * channel, the JDK copies each chunk through a small temporary buffer. Conditional and Range
+ * requests are handled as described in {@link AbstractMergedResourceRequestHandler}.
+ * <p>
+ * If any of the files has changed since it was located, the files are measured again before
+ * any header is written, so that Content-Length and Content-Range match the body actually
+ * sent. The ETag, which was computed for the old content, is dropped for that response.
+ *
+ * @since 4.1
+ */
+public class FileMergedResourceRequestHandler extends AbstractMergedResourceRequestHandler
+{
+    private MergedResourceFiles files;
+    private String etag;
+
+    /**
+     * @param files The files that make up the merged resource
+     * @param etag A strong entity tag for the merged content, in quoted form, or {@code null}
+     */
+    public FileMergedResourceRequestHandler(MergedResourceFiles files, String etag)
+    {
+        this.files = files;
+        this.etag = etag;
+    }
+
+    @Override
+    public void respond(IRequestCycle requestCycle)
+    {
+        if(this.files.isModified())
+        {
+            this.files = this.files.refresh();
+            this.etag = null;
+        }
+        super.respond(requestCycle);
+    }
+
+    @Override
+    public void detach(IRequestCycle requestCycle)
+    {
+        this.files = null;
+        this.etag = null;
+    }
+
+    @Override
+    protected String getETag()
+    {
+        return this.etag;
+    }
+
+    @Override
+    protected Time getLastModified()
+    {
+        return this.files.getLastModified();
+    }
+
+    @Override
+    protected String getContentType()
+    {
+        return this.files.getContentType();
+    }
+
+    @Override
+    protected long selectRepresentation(WebRequest request, WebResponse response)
+    {
+        return this.files.getLength();
+    }
+
+    @Override
+    protected void writeBody(WebResponse response, long offset, long length) throws IOException
+    {
+        // Make sure any headers Wicket is holding back are sent before we bypass it
+        response.flush();
+
+        WritableByteChannel target;
+        Object container = response.getContainerResponse();
+        if(container instanceof HttpServletResponse)
+        {
+            OutputStream out = ((HttpServletResponse) container).getOutputStream();
+            target = Channels.newChannel(out);
+        }
+        else
+        {
+            target = new ResponseChannel(response);
+        }
+        this.files.transferTo(offset, length, target);
+    }
+
+    /**
+     * Adapts a WebResponse to a WritableByteChannel, for containers that do not expose an
+     * HttpServletResponse.
+     */
+    private static class ResponseChannel implements WritableByteChannel
+    {
+        private final WebResponse response;
+
+        private ResponseChannel(WebResponse response)
+        {
+            this.response = response;
+        }
+
+        public int write(ByteBuffer src)
+        {
+            byte[] bytes = new byte[src.remaining()];
+            src.get(bytes);
+            this.response.write(bytes);
+            return bytes.length;
+        }
+
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        public void close()
+        {
+        }
+    }
+}
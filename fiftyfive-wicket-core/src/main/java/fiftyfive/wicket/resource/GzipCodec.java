@@ -0,0 +1,50 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses merged resources using the JDK's built-in gzip implementation.
+ *
+ * @since 4.1
+ */
+public class GzipCodec implements MergedResourceCodec
+{
+    public static final GzipCodec INSTANCE = new GzipCodec();
+
+    public String getEncoding()
+    {
+        return "gzip";
+    }
+
+    public byte[] encode(byte[] bytes) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+        try
+        {
+            gzip.write(bytes);
+        }
+        finally
+        {
+            gzip.close();
+        }
+        return buffer.toByteArray();
+    }
+}
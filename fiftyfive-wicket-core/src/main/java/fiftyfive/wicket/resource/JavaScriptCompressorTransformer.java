@@ -0,0 +1,71 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.io.IOException;
+
+import org.apache.wicket.Application;
+
+import org.apache.wicket.javascript.IJavaScriptCompressor;
+
+import org.apache.wicket.request.resource.ResourceReference;
+
+
+/**
+ * Minifies the JavaScript members of a merged resource using an
+ * {@link IJavaScriptCompressor}. By default the compressor configured in the application's
+ * {@link org.apache.wicket.settings.IResourceSettings#getJavaScriptCompressor resource settings}
+ * is used, which in a default Wicket application is enabled only in deployment mode. Members
+ * whose names do not end in {@code .js} are left untouched.
+ *
+ * @since 4.1
+ */
+public class JavaScriptCompressorTransformer implements MergedResourceTransformer
+{
+    private final IJavaScriptCompressor compressor;
+    private final String encoding;
+
+    /**
+     * Creates a transformer that uses the application's JavaScript compressor, and assumes
+     * UTF-8 encoding.
+     */
+    public JavaScriptCompressorTransformer()
+    {
+        this(null, "UTF-8");
+    }
+
+    /**
+     * @param compressor The compressor to use, or {@code null} to use the application's
+     * @param encoding The character encoding of the scripts
+     */
+    public JavaScriptCompressorTransformer(IJavaScriptCompressor compressor, String encoding)
+    {
+        this.compressor = compressor;
+        this.encoding = encoding;
+    }
+
+    public byte[] transform(ResourceReference ref, byte[] bytes) throws IOException
+    {
+        IJavaScriptCompressor c = this.compressor;
+        if(null == c)
+        {
+            c = Application.get().getResourceSettings().getJavaScriptCompressor();
+        }
+        if(null == c || !ref.getName().endsWith(".js")) return bytes;
+
+        return c.compress(new String(bytes, this.encoding)).getBytes(this.encoding);
+    }
+}
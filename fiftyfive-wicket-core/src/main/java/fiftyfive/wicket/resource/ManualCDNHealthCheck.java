@@ -0,0 +1,58 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * A {@link CDNHealthCheck} whose answers are set explicitly by calling
+ * {@link #setHealthy setHealthy()}. All hosts are healthy until marked otherwise. This is
+ * useful for tests, and as a switch that operators can flip (for example from a JMX bean or an
+ * admin page) to take a CDN host out of rotation, or that a background monitor can update.
+ *
+ * @since 4.1
+ */
+public class ManualCDNHealthCheck implements CDNHealthCheck
+{
+    private final Set<String> down =
+        Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+    public boolean isHealthy(String baseUrl)
+    {
+        return !this.down.contains(baseUrl);
+    }
+
+    /**
+     * Marks the host with the given base URL as healthy or unhealthy.
+     *
+     * @return {@code this} for chaining
+     */
+    public ManualCDNHealthCheck setHealthy(String baseUrl, boolean healthy)
+    {
+        if(healthy)
+        {
+            this.down.remove(baseUrl);
+        }
+        else
+        {
+            this.down.add(baseUrl);
+        }
+        return this;
+    }
+}
@@ -16,9 +16,11 @@
 package fiftyfive.wicket.resource;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 import org.apache.wicket.Component;
+import org.apache.wicket.MetaDataKey;
 
 import org.apache.wicket.behavior.Behavior;
 
@@ -27,6 +29,10 @@ import org.apache.wicket.markup.html.IHeaderResponse;
 import org.apache.wicket.protocol.http.WebApplication;
 
 import org.apache.wicket.request.IRequestMapper;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.request.handler.resource.ResourceReferenceRequestHandler;
+import org.apache.wicket.request.http.WebRequest;
+import org.apache.wicket.request.http.WebResponse;
 import org.apache.wicket.request.mapper.parameter.PageParametersEncoder;
 import org.apache.wicket.request.resource.PackageResourceReference;
 import org.apache.wicket.request.resource.ResourceReference;
@@ -59,13 +65,26 @@ import org.apache.wicket.util.IProvider;
  */
 public abstract class MergedResourceBuilder
 {
+    private static final MetaDataKey<HashSet<String>> PRELOADED_KEY =
+        new MetaDataKey<HashSet<String>>() {};
+    
     private String path;
     private boolean frozen = false;
+    private boolean cacheInMemory = false;
+    private boolean serveFromFiles = false;
+    private boolean useSendfile = false;
+    private boolean versionByContent = false;
+    private boolean sourceMap = false;
+    private boolean preload = false;
+    private List<MergedResourceCodec> codecs;
+    private List<MergedResourceTransformer> transformers;
     private List<ResourceReference> references;
     
     public MergedResourceBuilder()
     {
         this.references = new ArrayList<ResourceReference>();
+        this.codecs = new ArrayList<MergedResourceCodec>();
+        this.transformers = new ArrayList<MergedResourceTransformer>();
     }
     
     /**
@@ -80,6 +99,161 @@ public abstract class MergedResourceBuilder
         return this;
     }
     
+    /**
+     * Enables in-memory caching of the merged resource. When enabled, the resources are
+     * concatenated once into a byte array and served with a single write and an accurate
+     * Content-Length header. The cached bytes are rebuilt only when one of the resources
+     * changes. The default is {@code false}.
+     * 
+     * @return {@code this} for chaining
+     * 
+     * @see MergedResourceMapper#setCacheInMemory
+     * @since 4.1
+     */
+    public MergedResourceBuilder setCacheInMemory(boolean cacheInMemory)
+    {
+        this.cacheInMemory = cacheInMemory;
+        return this;
+    }
+    
+    /**
+     * Enables handing the merged resource off to the servlet container's asynchronous sendfile
+     * facility, on containers that support it (e.g. Tomcat's NIO and APR connectors). The
+     * request thread is then released as soon as the response headers are prepared, rather
+     * than being held while slow clients download the bundle. Enabling this implies
+     * {@link #setCacheInMemory setCacheInMemory(true)}. The default is {@code false}.
+     * <p>
+     * Support is detected per request through Tomcat's
+     * {@code org.apache.tomcat.sendfile.support} request attribute. On any other container,
+     * or on a Tomcat connector without sendfile (such as the default BIO connector), the
+     * setting is silently ignored and the bundle is written with ordinary blocking I/O on the
+     * request thread. No warning is logged in that case.
+     * 
+     * @return {@code this} for chaining
+     * 
+     * @see MergedResourceMapper#setUseSendfile
+     * @since 4.1
+     */
+    public MergedResourceBuilder setUseSendfile(boolean useSendfile)
+    {
+        this.useSendfile = useSendfile;
+        return this;
+    }
+    
+    /**
+     * Derives the version of the merged resource from the contents of its resources rather
+     * than their modification times. URLs are fingerprinted with a hash of the merged content
+     * regardless of the application's caching strategy, and the Last-Modified header is not
+     * sent. Use this in a cluster where each node may see different modification times for
+     * the same files, so that every node renders the same URLs and answers conditional
+     * requests the same way. Bundles written at build time by {@link StaticBundleGenerator}
+     * are already versioned by content and are unaffected. The default is {@code false}.
+     * 
+     * @return {@code this} for chaining
+     * 
+     * @see MergedResourceMapper#setVersionByContent
+     * @since 4.1
+     */
+    public MergedResourceBuilder setVersionByContent(boolean versionByContent)
+    {
+        this.versionByContent = versionByContent;
+        return this;
+    }
+    
+    /**
+     * Enables serving the merged resource directly from the files on disk that back each
+     * resource (for example in an exploded WAR), streaming them to the client without first
+     * loading the merged content into memory. Range
+     * requests are supported and the Content-Length header is sent. If any resource is not a
+     * plain file, the merged resource is served as usual. The default is {@code false}.
+     * 
+     * @return {@code this} for chaining
+     * 
+     * @see MergedResourceMapper#setServeFromFiles
+     * @since 4.1
+     */
+    public MergedResourceBuilder setServeFromFiles(boolean serveFromFiles)
+    {
+        this.serveFromFiles = serveFromFiles;
+        return this;
+    }
+    
+    /**
+     * Registers a codec that will be used to pre-compress the merged resource, for example
+     * {@link GzipCodec#INSTANCE}. The compressed bytes are computed once per version of the
+     * merged resource and are chosen based on the browser's Accept-Encoding header. Adding a
+     * codec implies {@link #setCacheInMemory setCacheInMemory(true)}.
+     * 
+     * @return {@code this} for chaining
+     * 
+     * @see MergedResourceMapper#addCodec
+     * @since 4.1
+     */
+    public MergedResourceBuilder addCodec(MergedResourceCodec codec)
+    {
+        this.codecs.add(codec);
+        return this;
+    }
+    
+    /**
+     * Adds a transformer, such as a minifier, through which each resource is passed before it
+     * is merged. Transformers run in the order they are added, once per version of each
+     * resource: when one resource changes, only that resource is transformed again. Adding a
+     * transformer implies {@link #setCacheInMemory setCacheInMemory(true)}.
+     * 
+     * @return {@code this} for chaining
+     * 
+     * @see MergedResourcePipeline
+     * @see JavaScriptCompressorTransformer
+     * @see fiftyfive.wicket.css.CssCompressorTransformer
+     * @since 4.1
+     */
+    public MergedResourceBuilder addTransformer(MergedResourceTransformer transformer)
+    {
+        this.transformers.add(transformer);
+        return this;
+    }
+    
+    /**
+     * Enables a source map for the merged resource, served at the merged resource's path with
+     * {@code .map} appended. The map embeds the original source of each resource so that
+     * browser developer tools can show which file each part of the bundle came from. Enabling
+     * this implies {@link #setCacheInMemory setCacheInMemory(true)}. The default is
+     * {@code false}.
+     * 
+     * @return {@code this} for chaining
+     * 
+     * @see MergedResourcePipeline
+     * @since 4.1
+     */
+    public MergedResourceBuilder setSourceMap(boolean sourceMap)
+    {
+        this.sourceMap = sourceMap;
+        return this;
+    }
+    
+    /**
+     * Enables a {@code Link: <url>; rel=preload} HTTP response header for the merged resource
+     * whenever the {@link #buildHeaderContributor header contributor} is attached to a page
+     * being rendered. The header is added while the page is being configured, before any
+     * markup is rendered, so browsers that honor it can start downloading the merged resource
+     * before they have parsed the {@code <head>}. It is not sent for Ajax requests. The default
+     * is {@code false}.
+     * <p>
+     * HTTP/2 push and 103 Early Hints are not used, since they cannot be sent through the
+     * Servlet 2.5 API. Front-end proxies that convert preload headers into either of those
+     * (as several CDNs and HTTP/2 terminating proxies do) will benefit automatically.
+     * 
+     * @return {@code this} for chaining
+     * 
+     * @since 4.1
+     */
+    public MergedResourceBuilder setPreload(boolean preload)
+    {
+        this.preload = preload;
+        return this;
+    }
+    
     /**
      * @deprecated Please use {@link #install install()} instead.
      */
@@ -119,6 +293,12 @@ public abstract class MergedResourceBuilder
      * with request mappers directly (e.g. you need to wrap or combine them in clever ways).
      * Most applications will be better served by {@link #install install()}, which
      * handles creating the mapper and mounting it in one easy step.
+     * <p>
+     * The mapper re-checks the modification times of the resources at the application's
+     * {@link org.apache.wicket.settings.IResourceSettings#getResourcePollFrequency resource poll frequency},
+     * so the poll frequency should be configured before this method is called. If the merged
+     * resource was written to disk at build time by {@link StaticBundleGenerator}, the mapper
+     * will link to that static file when the application is in deployment mode.
      * 
      * @throws IllegalStateException if a path or resources have not been
      *         specified prior to calling this method.
@@ -129,7 +309,7 @@ public abstract class MergedResourceBuilder
     {
         if(!this.frozen) assertRequiredOptionsAndFreeze();
 
-        return new MergedResourceMapper(
+        MergedResourceMapper mapper = new MergedResourceMapper(
             this.path,
             this.references,
             new PageParametersEncoder(),
@@ -140,6 +320,32 @@ public abstract class MergedResourceBuilder
                     return app.getResourceSettings().getCachingStrategy();
                 }
             });
+        boolean usePipeline = this.sourceMap || !this.transformers.isEmpty();
+        mapper.setCacheInMemory(
+            this.cacheInMemory || this.useSendfile || usePipeline || !this.codecs.isEmpty());
+        if(usePipeline)
+        {
+            String fileName = this.path.substring(this.path.lastIndexOf('/') + 1);
+            mapper.setPipeline(new MergedResourcePipeline(
+                this.transformers,
+                this.sourceMap ? fileName + ".map" : null));
+        }
+        mapper.setUseSendfile(this.useSendfile);
+        mapper.setVersionByContent(this.versionByContent);
+        mapper.setServeFromFiles(this.serveFromFiles);
+        mapper.setLastModifiedPollFrequency(app.getResourceSettings().getResourcePollFrequency());
+        // Pre-built bundles would hide edits to the source files during development
+        if(app.usesDeploymentConfig())
+        {
+            mapper.setStaticPath(
+                StaticBundleGenerator.loadManifest(app.getServletContext()).getProperty(
+                    mapper.getPath()));
+        }
+        for(MergedResourceCodec codec : this.codecs)
+        {
+            mapper.addCodec(codec);
+        }
+        return mapper;
     }
     
     /**
@@ -153,6 +359,15 @@ public abstract class MergedResourceBuilder
     {
         if(!this.frozen) assertRequiredOptionsAndFreeze();
         return new Behavior() {
+            @Override
+            public void onConfigure(Component comp)
+            {
+                if(MergedResourceBuilder.this.preload)
+                {
+                    renderPreloadHeader(comp);
+                }
+            }
+            
             @Override
             public void renderHead(Component comp, IHeaderResponse response)
             {
@@ -165,6 +380,50 @@ public abstract class MergedResourceBuilder
         };
     }
     
+    /**
+     * Adds a {@code Link: <url>; rel=preload} header for the merged resource to the current
+     * response, unless the request is an Ajax request, the subclass does not support preloading,
+     * or the same header has already been added during this request.
+     * 
+     * @since 4.1
+     */
+    protected void renderPreloadHeader(Component comp)
+    {
+        String type = getPreloadType();
+        RequestCycle cycle = RequestCycle.get();
+        if(null == type || null == cycle) return;
+        if(!(cycle.getRequest() instanceof WebRequest)) return;
+        if(!(cycle.getResponse() instanceof WebResponse)) return;
+        if(((WebRequest) cycle.getRequest()).isAjax()) return;
+        
+        ResourceReference ref = this.references.get(0);
+        CharSequence url = cycle.urlFor(new ResourceReferenceRequestHandler(ref));
+        HashSet<String> preloaded = cycle.getMetaData(PRELOADED_KEY);
+        if(null == preloaded)
+        {
+            preloaded = new HashSet<String>();
+            cycle.setMetaData(PRELOADED_KEY, preloaded);
+        }
+        if(preloaded.add(url.toString()))
+        {
+            ((WebResponse) cycle.getResponse()).addHeader(
+                "Link",
+                "<" + url + ">; rel=preload; as=" + type);
+        }
+    }
+    
+    /**
+     * Returns the value of the {@code as} attribute of the preload header for this kind of
+     * resource, for example {@code "script"}, or {@code null} if preloading is not supported.
+     * The default implementation returns {@code null}.
+     * 
+     * @since 4.1
+     */
+    protected String getPreloadType()
+    {
+        return null;
+    }
+    
     /**
      * Add a resource to the list of merged resources.
      * 
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.io.IOException;
+
+/**
+ * Compresses merged resource content into a particular HTTP content encoding, like
+ * {@code gzip}. Codecs are registered with
+ * {@link MergedResourceBuilder#addCodec MergedResourceBuilder.addCodec()}; each merged bundle
+ * is encoded at most once per version and the result is kept in memory alongside the
+ * uncompressed bytes.
+ * <p>
+ * fiftyfive-wicket ships with {@link GzipCodec}. Other encodings, such as brotli, can be
+ * supported by implementing this interface with a third-party compression library.
+ *
+ * @since 4.1
+ */
+public interface MergedResourceCodec
+{
+    /**
+     * Returns the token used for this encoding in the Accept-Encoding and Content-Encoding
+     * HTTP headers, for example {@code "gzip"} or {@code "br"}.
+     */
+    String getEncoding();
+
+    /**
+     * Returns a compressed copy of the given bytes. The input array must not be modified.
+     */
+    byte[] encode(byte[] bytes) throws IOException;
+}
@@ -0,0 +1,508 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.WicketRuntimeException;
+
+import org.apache.wicket.protocol.http.WebApplication;
+
+import org.apache.wicket.request.resource.IResource;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.request.resource.caching.IStaticCacheableResource;
+
+import org.apache.wicket.util.io.IOUtils;
+import org.apache.wicket.util.lang.Packages;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.ResourceStreamNotFoundException;
+import org.apache.wicket.util.time.Time;
+
+
+/**
+ * An immutable, fully concatenated copy of a merged resource that is held in memory so that it
+ * can be served with a single write and an accurate Content-Length. Instances are built by
+ * {@link MergedResourceMapper} when in-memory caching is enabled, and are tagged with the
+ * aggregate last modified time of the resources they were built from. The mapper uses that
+ * time to decide when the content is stale and must be rebuilt.
+ * <p>
+ * Note that the bytes are read directly from each resource's
+ * {@link IStaticCacheableResource#getCacheableResourceStream cacheable stream}. Any
+ * post-processing that Wicket would normally apply when serving an individual resource (for
+ * example a configured JavaScript compressor) is not applied, unless it is part of the
+ * {@link MergedResourcePipeline pipeline} passed to
+ * {@link #load(List,Time,MergedResourcePipeline) load()}.
+ * <p>
+ * Compressed variants of the content are produced on demand by
+ * {@link #getEncodedBytes getEncodedBytes()} and are remembered for the lifetime of this
+ * instance, so the same bytes are never compressed twice. Likewise the strong
+ * {@link #getETag ETag} is computed once from a SHA-1 hash of the merged bytes.
+ * <p>
+ * For containers that can transmit files asynchronously (see
+ * {@link CachedMergedResourceRequestHandler}), each variant can also be
+ * {@link #getSpoolFile spooled} to a file in the web application's temporary directory, once
+ * per instance. The owner of the content must call {@link #deleteSpoolFiles deleteSpoolFiles()}
+ * once the content has been replaced, so that old versions do not accumulate on disk.
+ *
+ * @since 4.1
+ */
+public class MergedResourceContent
+{
+    private final byte[] bytes;
+    private final String contentType;
+    private final Time lastModified;
+    private final Map<String,byte[]> encoded;
+    private volatile String etag;
+    private final Map<String,File> spooled;
+    private boolean spoolDeleted;
+    private MergedResourceContent sourceMap;
+
+    /**
+     * Reads every resource in the list and concatenates the results. Returns {@code null} if
+     * any of the resources is not an {@link IStaticCacheableResource}, since in that case there
+     * is no way to read its contents outside of a request.
+     *
+     * @param resources The resources to merge, in order
+     * @param lastModified The aggregate last modified time of the resources; may be
+     *                     {@code null} if it is not known
+     */
+    public static MergedResourceContent load(List<ResourceReference> resources, Time lastModified)
+    {
+        return load(resources, lastModified, null);
+    }
+
+    /**
+     * Like {@link #load(List,Time)}, but runs each resource through the given pipeline before
+     * concatenating it. When a pipeline is used, each resource is guaranteed to start on a new
+     * line, and if the pipeline produces a source map, a {@code sourceMappingURL} comment is
+     * appended and the map is available from {@link #getSourceMap getSourceMap()}.
+     *
+     * @param pipeline The transformation pipeline; may be {@code null}
+     */
+    public static MergedResourceContent load(List<ResourceReference> resources,
+                                             Time lastModified,
+                                             MergedResourcePipeline pipeline)
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        String contentType = null;
+        String mapName = null != pipeline ? pipeline.getSourceMapName() : null;
+        SourceMapWriter map = null != mapName ? new SourceMapWriter() : null;
+
+        for(ResourceReference ref : resources)
+        {
+            IResource res = ref.getResource();
+            if(!(res instanceof IStaticCacheableResource)) return null;
+
+            IResourceStream stream = ((IStaticCacheableResource) res).getCacheableResourceStream();
+            if(null == stream) return null;
+
+            if(null == contentType)
+            {
+                contentType = contentType(ref, stream);
+            }
+            if(null == pipeline)
+            {
+                copy(stream, buffer);
+            }
+            else
+            {
+                append(ref, stream, pipeline, buffer, map);
+            }
+        }
+
+        if(null == map)
+        {
+            return new MergedResourceContent(buffer.toByteArray(), contentType, lastModified);
+        }
+        String generated = mapName.substring(0, mapName.length() - 4);
+        String comment = generated.endsWith(".css") ?
+            "/*# sourceMappingURL=" + mapName + " */\n" :
+            "//# sourceMappingURL=" + mapName + "\n";
+        writeUtf8(comment, buffer);
+
+        MergedResourceContent merged = new MergedResourceContent(
+            buffer.toByteArray(), contentType, lastModified);
+        merged.sourceMap = new MergedResourceContent(
+            toUtf8(map.toJson(generated)), "application/json", lastModified);
+        return merged;
+    }
+
+    public MergedResourceContent(byte[] bytes, String contentType, Time lastModified)
+    {
+        this.bytes = bytes;
+        this.contentType = contentType;
+        this.lastModified = lastModified;
+        this.encoded = new HashMap<String,byte[]>();
+        this.spooled = new HashMap<String,File>();
+    }
+
+    /**
+     * Returns the merged bytes. The array is shared and must not be modified.
+     */
+    public byte[] getBytes()
+    {
+        return this.bytes;
+    }
+
+    /**
+     * Returns the content type of the first resource in the merged list, or {@code null} if it
+     * could not be determined.
+     */
+    public String getContentType()
+    {
+        return this.contentType;
+    }
+
+    /**
+     * Returns the source map for this content, or {@code null} if none was produced.
+     *
+     * @see MergedResourcePipeline
+     */
+    public MergedResourceContent getSourceMap()
+    {
+        return this.sourceMap;
+    }
+
+    /**
+     * Returns the aggregate last modified time that was in effect when this content was built.
+     * May be {@code null}.
+     */
+    public Time getLastModified()
+    {
+        return this.lastModified;
+    }
+
+    /**
+     * Returns the number of bytes in the merged content.
+     */
+    public int getLength()
+    {
+        return this.bytes.length;
+    }
+
+    /**
+     * Returns a strong entity tag for the merged content, in the quoted form expected by the
+     * ETag HTTP header. The tag is a SHA-1 hash of the merged bytes, so it only changes when
+     * the content itself changes.
+     */
+    public String getETag()
+    {
+        if(null == this.etag)
+        {
+            this.etag = "\"" + sha1Hex(this.bytes) + "\"";
+        }
+        return this.etag;
+    }
+
+    /**
+     * Returns the merged bytes compressed with the given codec. The compression is performed the
+     * first time a given encoding is requested; subsequent calls return the same array, which
+     * must not be modified.
+     */
+    public byte[] getEncodedBytes(MergedResourceCodec codec)
+    {
+        synchronized(this.encoded)
+        {
+            byte[] result = this.encoded.get(codec.getEncoding());
+            if(null == result)
+            {
+                try
+                {
+                    result = codec.encode(this.bytes);
+                }
+                catch(IOException ioe)
+                {
+                    throw new WicketRuntimeException(ioe);
+                }
+                this.encoded.put(codec.getEncoding(), result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Returns a file containing the merged bytes, compressed with the given codec if it is not
+     * {@code null}. The file is written to the {@link #getSpoolDirectory spool directory} the
+     * first time a given encoding is requested, and is kept until
+     * {@link #deleteSpoolFiles deleteSpoolFiles()} is called.
+     */
+    public File getSpoolFile(MergedResourceCodec codec) throws IOException
+    {
+        String key = null == codec ? "identity" : codec.getEncoding();
+        synchronized(this.spooled)
+        {
+            File file = this.spooled.get(key);
+            if(null == file)
+            {
+                file = File.createTempFile("merged-", "." + key, getSpoolDirectory());
+                if(this.spoolDeleted)
+                {
+                    // Requested by a response that was already in flight when this content was
+                    // replaced; nobody will delete this file later, so let the JVM do it.
+                    file.deleteOnExit();
+                }
+                OutputStream out = new FileOutputStream(file);
+                try
+                {
+                    out.write(null == codec ? this.bytes : getEncodedBytes(codec));
+                }
+                finally
+                {
+                    IOUtils.closeQuietly(out);
+                }
+                if(!this.spoolDeleted) this.spooled.put(key, file);
+            }
+            return file;
+        }
+    }
+
+    /**
+     * Deletes any files written by {@link #getSpoolFile getSpoolFile()}. Called by the owner of
+     * this content once it has been replaced by a newer version.
+     */
+    public void deleteSpoolFiles()
+    {
+        synchronized(this.spooled)
+        {
+            this.spoolDeleted = true;
+            for(File file : this.spooled.values())
+            {
+                if(!file.delete() && file.exists())
+                {
+                    file.deleteOnExit();
+                }
+            }
+            this.spooled.clear();
+        }
+    }
+
+    /**
+     * Returns the directory in which {@link #getSpoolFile getSpoolFile()} writes its files. This
+     * is a {@code merged-resources} subdirectory of the temporary directory that the servlet
+     * container provides to the web application via the
+     * {@code javax.servlet.context.tempdir} context attribute, so that the container cleans it
+     * up along with the application. Returns {@code null}, meaning the system temporary
+     * directory, if there is no such attribute.
+     */
+    protected File getSpoolDirectory()
+    {
+        if(!Application.exists() || !(Application.get() instanceof WebApplication)) return null;
+
+        Object tempdir = WebApplication.get().getServletContext().getAttribute(
+            "javax.servlet.context.tempdir");
+        if(!(tempdir instanceof File)) return null;
+
+        File dir = new File((File) tempdir, "merged-resources");
+        if(!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) return null;
+        return dir;
+    }
+
+    /**
+     * Returns the content type of the stream, falling back to the application's mime type
+     * mapping for the name of the resource.
+     */
+    static String contentType(ResourceReference ref, IResourceStream stream)
+    {
+        String contentType = stream.getContentType();
+        if(null == contentType)
+        {
+            contentType = Application.get().getMimeType(ref.getName());
+        }
+        return contentType;
+    }
+
+    /**
+     * Returns the SHA-1 digest of the given bytes as a lowercase hex string.
+     */
+    static String sha1Hex(byte[] bytes)
+    {
+        return toHex(newSha1().digest(bytes));
+    }
+
+    /**
+     * Returns the SHA-1 digest of the concatenated contents of the given resources as a
+     * lowercase hex string, the same as {@code sha1Hex(load(resources, null).getBytes())}, but
+     * reading each resource in small chunks rather than loading the merged content into memory.
+     * Returns {@code null} under the same conditions as {@link #load(List,Time) load()}.
+     */
+    static String sha1Hex(List<ResourceReference> resources)
+    {
+        MessageDigest sha1 = newSha1();
+        byte[] chunk = new byte[8192];
+        for(ResourceReference ref : resources)
+        {
+            IResource res = ref.getResource();
+            if(!(res instanceof IStaticCacheableResource)) return null;
+
+            IResourceStream stream = ((IStaticCacheableResource) res).getCacheableResourceStream();
+            if(null == stream) return null;
+            try
+            {
+                InputStream is = stream.getInputStream();
+                for(int n = is.read(chunk); n >= 0; n = is.read(chunk))
+                {
+                    sha1.update(chunk, 0, n);
+                }
+            }
+            catch(IOException ioe)
+            {
+                throw new WicketRuntimeException(ioe);
+            }
+            catch(ResourceStreamNotFoundException rsnfe)
+            {
+                throw new WicketRuntimeException(rsnfe);
+            }
+            finally
+            {
+                try { stream.close(); } catch(Exception ignore) {}
+            }
+        }
+        return toHex(sha1.digest());
+    }
+
+    private static MessageDigest newSha1()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch(NoSuchAlgorithmException nsae)
+        {
+            throw new WicketRuntimeException(nsae);
+        }
+    }
+
+    private static String toHex(byte[] digest)
+    {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for(byte b : digest)
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Runs the stream through the pipeline and appends the result to the buffer, followed by a
+     * newline if the result does not already end with one. Records the member in the source
+     * map, if there is one.
+     */
+    private static void append(ResourceReference ref,
+                               IResourceStream stream,
+                               MergedResourcePipeline pipeline,
+                               ByteArrayOutputStream buffer,
+                               SourceMapWriter map)
+    {
+        MergedResourcePipeline.Member member;
+        try
+        {
+            member = pipeline.process(ref, stream);
+        }
+        catch(IOException ioe)
+        {
+            throw new WicketRuntimeException(ioe);
+        }
+        catch(ResourceStreamNotFoundException rsnfe)
+        {
+            throw new WicketRuntimeException(rsnfe);
+        }
+
+        byte[] bytes = member.transformed;
+        buffer.write(bytes, 0, bytes.length);
+        int lines = 0;
+        for(byte b : bytes)
+        {
+            if('\n' == b) lines++;
+        }
+        if(0 == bytes.length || bytes[bytes.length - 1] != '\n')
+        {
+            buffer.write('\n');
+            lines++;
+        }
+        if(map != null)
+        {
+            String source = Packages.absolutePath(ref.getScope(), ref.getName());
+            map.addMember(source, fromUtf8(member.original), lines, !member.isTransformed());
+        }
+    }
+
+    private static void writeUtf8(String str, ByteArrayOutputStream buffer)
+    {
+        byte[] bytes = toUtf8(str);
+        buffer.write(bytes, 0, bytes.length);
+    }
+
+    private static byte[] toUtf8(String str)
+    {
+        try
+        {
+            return str.getBytes("UTF-8");
+        }
+        catch(UnsupportedEncodingException uee)
+        {
+            throw new WicketRuntimeException(uee);
+        }
+    }
+
+    private static String fromUtf8(byte[] bytes)
+    {
+        try
+        {
+            return new String(bytes, "UTF-8");
+        }
+        catch(UnsupportedEncodingException uee)
+        {
+            throw new WicketRuntimeException(uee);
+        }
+    }
+
+    /**
+     * Copy the contents of the stream into the buffer and translate any i/o exceptions into
+     * WicketRuntimeException. Close the stream cleanly no matter what.
+     */
+    private static void copy(IResourceStream stream, ByteArrayOutputStream buffer)
+    {
+        try
+        {
+            IOUtils.copy(stream.getInputStream(), buffer);
+        }
+        catch(IOException ioe)
+        {
+            throw new WicketRuntimeException(ioe);
+        }
+        catch(ResourceStreamNotFoundException rsnfe)
+        {
+            throw new WicketRuntimeException(rsnfe);
+        }
+        finally
+        {
+            try { stream.close(); } catch(Exception ignore) {}
+        }
+    }
+}
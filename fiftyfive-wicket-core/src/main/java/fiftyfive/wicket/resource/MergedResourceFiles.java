@@ -0,0 +1,240 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+import org.apache.wicket.request.resource.IResource;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.request.resource.caching.IStaticCacheableResource;
+
+import org.apache.wicket.util.io.IOUtils;
+import org.apache.wicket.util.resource.FileResourceStream;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.UrlResourceStream;
+import org.apache.wicket.util.time.Time;
+
+
+/**
+ * The list of files on disk that make up a merged resource, for example when the application
+ * is deployed as an exploded WAR. Merged content described this way can be streamed to the client
+ * with {@link FileChannel#transferTo FileChannel.transferTo()}, without first being merged into
+ * a single byte array, and any byte range of it can be served without reading the rest.
+ * <p>
+ * The length and modification time of each file are captured when the list is constructed.
+ * Because Wicket only notices changes to resources when it next polls them, a file may be
+ * edited after it was located but before that poll. Use {@link #isModified} to detect this
+ * before any headers are written, and {@link #refresh} to measure the files again.
+ *
+ * @since 4.1
+ */
+public class MergedResourceFiles
+{
+    private final File[] files;
+    private final long[] lengths;
+    private final long[] modified;
+    private final long totalLength;
+    private final String contentType;
+    private final Time lastModified;
+
+    /**
+     * Finds the file backing each resource in the list. Returns {@code null} if any of the
+     * resources is not an {@link IStaticCacheableResource} backed by a plain file, for example
+     * if it is packaged inside a JAR.
+     *
+     * @param resources The resources to merge, in order
+     * @param lastModified The aggregate last modified time of the resources; may be
+     *                     {@code null} if it is not known
+     */
+    public static MergedResourceFiles locate(List<ResourceReference> resources, Time lastModified)
+    {
+        File[] files = new File[resources.size()];
+        String contentType = null;
+
+        for(int i=0; i<files.length; i++)
+        {
+            ResourceReference ref = resources.get(i);
+            IResource res = ref.getResource();
+            if(!(res instanceof IStaticCacheableResource)) return null;
+
+            IResourceStream stream = ((IStaticCacheableResource) res).getCacheableResourceStream();
+            files[i] = toFile(stream);
+            if(null == files[i] || !files[i].isFile()) return null;
+
+            if(null == contentType)
+            {
+                contentType = MergedResourceContent.contentType(ref, stream);
+            }
+        }
+        return new MergedResourceFiles(files, contentType, lastModified);
+    }
+
+    public MergedResourceFiles(File[] files, String contentType, Time lastModified)
+    {
+        this.files = files;
+        this.contentType = contentType;
+        this.lastModified = lastModified;
+
+        long total = 0;
+        this.lengths = new long[files.length];
+        this.modified = new long[files.length];
+        for(int i=0; i<files.length; i++)
+        {
+            this.lengths[i] = files[i].length();
+            this.modified[i] = files[i].lastModified();
+            total += this.lengths[i];
+        }
+        this.totalLength = total;
+    }
+
+    /**
+     * Returns the content type of the first resource in the merged list, or {@code null} if it
+     * could not be determined.
+     */
+    public String getContentType()
+    {
+        return this.contentType;
+    }
+
+    /**
+     * Returns the aggregate last modified time that was in effect when the files were located.
+     * May be {@code null}.
+     */
+    public Time getLastModified()
+    {
+        return this.lastModified;
+    }
+
+    /**
+     * Returns the sum of the lengths of all the files, as measured when they were located.
+     */
+    public long getLength()
+    {
+        return this.totalLength;
+    }
+
+    /**
+     * Returns {@code true} if the length or modification time of any of the files on disk
+     * differs from what was measured when this list was constructed.
+     */
+    public boolean isModified()
+    {
+        for(int i=0; i<this.files.length; i++)
+        {
+            if(this.files[i].length() != this.lengths[i] ||
+               this.files[i].lastModified() != this.modified[i])
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a new list of the same files, measured again. Its last modified time is the
+     * most recent modification time of any of the files, or the previous aggregate time if
+     * that is later.
+     */
+    public MergedResourceFiles refresh()
+    {
+        long latest = null == this.lastModified ? 0 : this.lastModified.getMilliseconds();
+        for(File file : this.files)
+        {
+            latest = Math.max(latest, file.lastModified());
+        }
+        return new MergedResourceFiles(this.files, this.contentType, Time.millis(latest));
+    }
+
+    /**
+     * Transfers {@code length} bytes of the merged content, starting at {@code offset}, to the
+     * target channel. The files are opened only as needed and are never read into memory as a
+     * whole.
+     *
+     * @throws IOException if a file cannot be read or has been truncated since it was located
+     */
+    public void transferTo(long offset, long length, WritableByteChannel target)
+        throws IOException
+    {
+        long position = offset;
+        long remaining = length;
+
+        for(int i=0; i<this.files.length && remaining > 0; i++)
+        {
+            if(position >= this.lengths[i])
+            {
+                position -= this.lengths[i];
+                continue;
+            }
+
+            long count = Math.min(this.lengths[i] - position, remaining);
+            FileInputStream fis = new FileInputStream(this.files[i]);
+            try
+            {
+                FileChannel channel = fis.getChannel();
+                long done = 0;
+                while(done < count)
+                {
+                    long sent = channel.transferTo(position + done, count - done, target);
+                    if(sent <= 0)
+                    {
+                        throw new IOException("File was truncated: " + this.files[i]);
+                    }
+                    done += sent;
+                }
+            }
+            finally
+            {
+                IOUtils.closeQuietly(fis);
+            }
+            remaining -= count;
+            position = 0;
+        }
+    }
+
+    /**
+     * Returns the file that backs the given stream, or {@code null} if it is not a plain file.
+     */
+    static File toFile(IResourceStream stream)
+    {
+        if(stream instanceof FileResourceStream)
+        {
+            return ((FileResourceStream) stream).getFile();
+        }
+        if(stream instanceof UrlResourceStream)
+        {
+            URL url = ((UrlResourceStream) stream).getURL();
+            if("file".equals(url.getProtocol()))
+            {
+                try
+                {
+                    return new File(url.toURI());
+                }
+                catch(URISyntaxException use)
+                {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -15,6 +15,7 @@
  */
 package fiftyfive.wicket.resource;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.wicket.request.IRequestHandler;
@@ -23,6 +24,7 @@ import org.apache.wicket.request.Request;
 import org.apache.wicket.request.Url;
 
 import org.apache.wicket.request.handler.resource.ResourceReferenceRequestHandler;
+import org.apache.wicket.request.http.WebResponse;
 
 import org.apache.wicket.request.mapper.AbstractMapper;
 import org.apache.wicket.request.mapper.parameter.IPageParametersEncoder;
@@ -35,23 +37,86 @@ import org.apache.wicket.request.resource.caching.IStaticCacheableResource;
 import org.apache.wicket.request.resource.caching.ResourceUrl;
 
 import org.apache.wicket.util.IProvider;
+import org.apache.wicket.util.lang.Objects;
 import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.string.Strings;
+import org.apache.wicket.util.time.Duration;
 import org.apache.wicket.util.time.Time;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 
 /**
  * Maps a single, static URL to a list of resources. When that URL is requested, respond by
  * merging all the resources together by delegating to {@link MergedResourceRequestHandler}.
+ * <p>
+ * If {@link #setCacheInMemory in-memory caching} is enabled, the merged result is instead
+ * concatenated once into a {@link MergedResourceContent} and served by
+ * {@link CachedMergedResourceRequestHandler}. The cached content is rebuilt only when the
+ * aggregate last modified time of the resources changes. Pre-compressed variants of the cached
+ * content can be served by registering one or more {@link #addCodec codecs}.
+ * <p>
+ * Alternatively, if {@link #setServeFromFiles serving from files} is enabled and every resource
+ * is a plain file on disk (e.g. in an exploded WAR), the merged result is streamed directly from
+ * those files by {@link FileMergedResourceRequestHandler}, without being copied into memory.
+ * Both of these modes send a Content-Length header and support HTTP/1.1 Range requests.
+ * <p>
+ * In either mode, a strong ETag is computed from a SHA-1 hash of the merged content. The hash is
+ * computed once per version of the merged resource (i.e. whenever the aggregate last modified
+ * time changes) and is used to answer If-None-Match requests.
+ * <p>
+ * If the application's caching strategy is a {@link ContentHashResourceCachingStrategy}, the
+ * same hash is used to fingerprint the URL of the merged resource. When in-memory caching or
+ * serving from files is enabled, requests that carry the fingerprint of the current content
+ * are then cached by the browser for the maximum duration.
+ * <p>
+ * A {@link #setPipeline pipeline} of transformers, such as minifiers, can be applied to the
+ * in-memory content. If the pipeline produces a source map, it is served next to the merged
+ * resource; for example the map for {@code scripts/all.js} is {@code scripts/all.js.map}.
+ * <p>
+ * In a cluster, each node may see different modification times for the same resources (for
+ * example because each node unpacked the WAR at a different time). If
+ * {@link #setVersionByContent versioning by content} is enabled, the mapper behaves as though
+ * {@link ContentHashResourceCachingStrategy} were in effect regardless of the application's
+ * caching strategy, and the Last-Modified header is not sent, so that every node renders the
+ * same URLs and makes the same 304 decisions for the same content. Modification times are
+ * then used only internally, to decide when the content must be read and hashed again.
+ * <p>
+ * Determining the aggregate last modified time requires opening every resource, so the result
+ * is remembered and only re-checked according to the
+ * {@link #setLastModifiedPollFrequency poll frequency}. {@link MergedResourceBuilder} sets this
+ * to the application's resource poll frequency, which means that in deployment mode the
+ * resources are checked only once.
+ * <p>
+ * If the bundle has been written to disk ahead of time by {@link StaticBundleGenerator}, the
+ * mapper can be told to {@link #setStaticPath link to that static file} instead. Requests to
+ * the mount path are still answered by merging the resources.
  * 
  * @since 3.0
  */
 public class MergedResourceMapper extends AbstractMapper implements IRequestMapper
 {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MergedResourceMapper.class);
+    
     protected final String[] mountSegments;
     protected final List<ResourceReference> resources;
     protected final IPageParametersEncoder parametersEncoder;
     protected final IProvider<? extends IResourceCachingStrategy> cachingStrategy;
     
+    private volatile boolean cacheInMemory = false;
+    private volatile MergedResourceContent content;
+    private volatile boolean serveFromFiles = false;
+    private volatile boolean useSendfile = false;
+    private volatile ContentHashResourceCachingStrategy versionByContent;
+    private volatile MergedResourcePipeline pipeline;
+    private volatile MergedResourceFiles files;
+    private final List<MergedResourceCodec> codecs = new ArrayList<MergedResourceCodec>();
+    private volatile VersionedETag etag;
+    private volatile Duration lastModifiedPollFrequency = Duration.NONE;
+    private volatile LastModified lastModified;
+    private String staticPath;
+    
     public MergedResourceMapper(String path,
                                 List<ResourceReference> resources,
                                 IPageParametersEncoder parametersEncoder,
@@ -64,6 +129,190 @@ public class MergedResourceMapper extends AbstractMapper implements IRequestMapp
         this.cachingStrategy = cachingStrategy;
     }
     
+    /**
+     * Enables or disables in-memory caching of the merged bytes. When enabled, the resources
+     * are concatenated once per version and served from memory with a single write and a
+     * correct Content-Length. This only works if every resource is an
+     * {@link IStaticCacheableResource}; otherwise the mapper falls back to merging on every
+     * request. The default is {@code false}.
+     * 
+     * @return {@code this} for chaining
+     * 
+     * @since 4.1
+     */
+    public MergedResourceMapper setCacheInMemory(boolean cacheInMemory)
+    {
+        this.cacheInMemory = cacheInMemory;
+        return this;
+    }
+    
+    public boolean isCacheInMemory()
+    {
+        return this.cacheInMemory;
+    }
+    
+    /**
+     * Enables or disables handing in-memory content off to the servlet container's
+     * asynchronous sendfile facility, where supported. This frees the request thread as soon as
+     * the headers are prepared instead of holding it while slow clients download the bundle.
+     * Only has an effect when {@link #setCacheInMemory in-memory caching} is enabled. The
+     * default is {@code false}.
+     * 
+     * @return {@code this} for chaining
+     * 
+     * @see CachedMergedResourceRequestHandler#setUseSendfile
+     * @since 4.1
+     */
+    public MergedResourceMapper setUseSendfile(boolean useSendfile)
+    {
+        this.useSendfile = useSendfile;
+        return this;
+    }
+    
+    public boolean isUseSendfile()
+    {
+        return this.useSendfile;
+    }
+    
+    /**
+     * Enables or disables deriving the version of the merged resource solely from its contents.
+     * When enabled, the URL is fingerprinted with a hash of the merged content no matter what
+     * caching strategy the application uses, and the Last-Modified header is omitted so that
+     * conditional requests are decided by the ETag alone. This makes URLs and 304 responses
+     * identical across the nodes of a cluster. The default is {@code false}.
+     * 
+     * @return {@code this} for chaining
+     * 
+     * @since 4.1
+     */
+    public MergedResourceMapper setVersionByContent(boolean versionByContent)
+    {
+        this.versionByContent =
+            versionByContent ? new ContentHashResourceCachingStrategy() : null;
+        return this;
+    }
+    
+    public boolean isVersionByContent()
+    {
+        return this.versionByContent != null;
+    }
+    
+    /**
+     * Sets the pipeline through which each resource is passed when the merged content is built
+     * in memory. Only has an effect when {@link #setCacheInMemory in-memory caching} is
+     * enabled. The default is {@code null}, meaning resources are concatenated as-is.
+     * 
+     * @return {@code this} for chaining
+     * 
+     * @since 4.1
+     */
+    public MergedResourceMapper setPipeline(MergedResourcePipeline pipeline)
+    {
+        this.pipeline = pipeline;
+        replaceContent(null);
+        return this;
+    }
+    
+    public MergedResourcePipeline getPipeline()
+    {
+        return this.pipeline;
+    }
+    
+    /**
+     * Enables or disables serving the merged resource directly from the files that back each
+     * resource, streaming them with
+     * {@link java.nio.channels.FileChannel#transferTo FileChannel.transferTo()} instead of
+     * merging them first.
+     * This only works if every resource is a plain file on disk; otherwise the mapper falls
+     * back to merging on every request. If {@link #setCacheInMemory in-memory caching} is also
+     * enabled, it takes precedence. The default is {@code false}.
+     * 
+     * @return {@code this} for chaining
+     * 
+     * @since 4.1
+     */
+    public MergedResourceMapper setServeFromFiles(boolean serveFromFiles)
+    {
+        this.serveFromFiles = serveFromFiles;
+        return this;
+    }
+    
+    public boolean isServeFromFiles()
+    {
+        return this.serveFromFiles;
+    }
+    
+    /**
+     * Registers a codec that will be used to serve pre-compressed variants of the merged
+     * content to browsers that accept its encoding. Codecs are consulted in the order they are
+     * added. Codecs only have an effect when {@link #setCacheInMemory in-memory caching} is
+     * enabled.
+     * 
+     * @return {@code this} for chaining
+     * 
+     * @since 4.1
+     */
+    public MergedResourceMapper addCodec(MergedResourceCodec codec)
+    {
+        this.codecs.add(codec);
+        return this;
+    }
+    
+    /**
+     * Sets how often the resources are re-examined to determine the aggregate last modified
+     * time. A value of {@code null} means the resources are examined only once and never
+     * re-checked, which is appropriate when resources cannot change (e.g. in deployment mode).
+     * The default is {@link Duration#NONE}, meaning the resources are examined every time the
+     * last modified time is needed.
+     * 
+     * @return {@code this} for chaining
+     * 
+     * @see org.apache.wicket.settings.IResourceSettings#getResourcePollFrequency
+     * @since 4.1
+     */
+    public MergedResourceMapper setLastModifiedPollFrequency(Duration frequency)
+    {
+        this.lastModifiedPollFrequency = frequency;
+        this.lastModified = null;
+        return this;
+    }
+    
+    public Duration getLastModifiedPollFrequency()
+    {
+        return this.lastModifiedPollFrequency;
+    }
+    
+    /**
+     * Sets the path, relative to the root of the web application, of a pre-built static copy of
+     * the merged resource. When set, URLs rendered for the resources of this mapper point to
+     * that file rather than to the mount path. The default is {@code null}.
+     * 
+     * @return {@code this} for chaining
+     * 
+     * @see StaticBundleGenerator
+     * @since 4.1
+     */
+    public MergedResourceMapper setStaticPath(String staticPath)
+    {
+        this.staticPath = staticPath;
+        return this;
+    }
+    
+    public String getStaticPath()
+    {
+        return this.staticPath;
+    }
+    
+    /**
+     * Returns the path at which this mapper is mounted, without a leading slash.
+     * 
+     * @since 4.1
+     */
+    public String getPath()
+    {
+        return Strings.join("/", this.mountSegments);
+    }
+    
     public int getCompatibilityScore(Request request)
     {
         return 0;
@@ -72,6 +321,7 @@ public class MergedResourceMapper extends AbstractMapper implements IRequestMapp
     public IRequestHandler mapRequest(Request request)
     {
         PageParameters parameters = null;
+        String fingerprint = null;
         List<String> requestSegments = request.getUrl().getSegments();
         
         if(requestSegments.size() < this.mountSegments.length)
@@ -88,20 +338,58 @@ public class MergedResourceMapper extends AbstractMapper implements IRequestMapp
                     this.mountSegments.length,
                     this.parametersEncoder);
                 
+                IResourceCachingStrategy strategy = getCachingStrategy();
+                if(strategy instanceof ContentHashResourceCachingStrategy)
+                {
+                    fingerprint = ContentHashResourceCachingStrategy.getFingerprint(segment);
+                }
                 ResourceUrl resourceUrl = new ResourceUrl(segment, parameters);
-                this.cachingStrategy.get().undecorateUrl(resourceUrl);
+                strategy.undecorateUrl(resourceUrl);
                 segment = resourceUrl.getFileName();
             }
             if(!segment.equals(this.mountSegments[i]))
             {
+                if(i+1 == this.mountSegments.length && isSourceMapName(segment))
+                {
+                    return mapSourceMapRequest();
+                }
                 return null;
             }
         }
         
+        Time lastModified = getAggregateLastModifiedTime();
+        AbstractMergedResourceRequestHandler handler = null;
+        if(this.cacheInMemory)
+        {
+            MergedResourceContent merged = getMergedContent(lastModified);
+            if(merged != null)
+            {
+                handler = new CachedMergedResourceRequestHandler(merged, this.codecs)
+                    .setUseSendfile(this.useSendfile);
+            }
+        }
+        if(null == handler && this.serveFromFiles)
+        {
+            MergedResourceFiles merged = getMergedFiles(lastModified);
+            if(merged != null)
+            {
+                handler = new FileMergedResourceRequestHandler(merged, getETag(lastModified));
+            }
+        }
+        if(handler != null)
+        {
+            handler.setSendLastModified(!isVersionByContent());
+            if(fingerprint != null && fingerprint.equals(getContentHash(lastModified)))
+            {
+                handler.setCacheDuration(WebResponse.MAX_CACHE_DURATION);
+            }
+            return handler;
+        }
         return new MergedResourceRequestHandler(
             this.resources,
             parameters,
-            getLastModifiedTime(getLastModifiedReference()));
+            isVersionByContent() ? null : lastModified,
+            getETag(lastModified));
     }
 
     public Url mapHandler(IRequestHandler requestHandler)
@@ -120,6 +408,11 @@ public class MergedResourceMapper extends AbstractMapper implements IRequestMapp
         }
         
         if(!matched) return null;
+        
+        if(this.staticPath != null)
+        {
+            return Url.parse(this.staticPath);
+        }
 
         Url url = new Url();
         PageParameters parameters = new PageParameters(handler.getPageParameters());
@@ -136,32 +429,251 @@ public class MergedResourceMapper extends AbstractMapper implements IRequestMapp
         return encodePageParameters(url, parameters, this.parametersEncoder);
     }
     
+    /**
+     * Decorates the file name using the application's caching strategy. Normally this is done
+     * using the most recently modified resource. If the strategy is a
+     * {@link ContentHashResourceCachingStrategy}, the hash of the entire merged content is used
+     * instead.
+     */
     protected String applyCachingStrategy(String fileName, PageParameters parameters)
     {
         ResourceUrl resourceUrl = new ResourceUrl(fileName, parameters);
+        IResourceCachingStrategy strategy = getCachingStrategy();
+        if(strategy instanceof ContentHashResourceCachingStrategy)
+        {
+            String hash = getContentHash(getAggregateLastModifiedTime());
+            if(hash != null)
+            {
+                ((ContentHashResourceCachingStrategy) strategy).decorateUrl(resourceUrl, hash);
+                return resourceUrl.getFileName();
+            }
+        }
         ResourceReference lastMod = getLastModifiedReference();
         IResource res = lastMod.getResource();
         if(res instanceof IStaticCacheableResource)
         {
-            this.cachingStrategy.get().decorateUrl(resourceUrl, (IStaticCacheableResource) res);
+            strategy.decorateUrl(resourceUrl, (IStaticCacheableResource) res);
         }
         return resourceUrl.getFileName();
     }
     
+    /**
+     * Returns {@code true} if the given file name is that of the source map produced by the
+     * pipeline.
+     */
+    private boolean isSourceMapName(String fileName)
+    {
+        MergedResourcePipeline p = this.pipeline;
+        return p != null && this.cacheInMemory && fileName.equals(p.getSourceMapName());
+    }
+    
+    /**
+     * Returns a handler for the source map of the current in-memory content, or {@code null} if
+     * there is none.
+     */
+    private IRequestHandler mapSourceMapRequest()
+    {
+        MergedResourceContent merged = getMergedContent(getAggregateLastModifiedTime());
+        if(null == merged || null == merged.getSourceMap()) return null;
+        return new CachedMergedResourceRequestHandler(merged.getSourceMap())
+            .setSendLastModified(!isVersionByContent());
+    }
+    
+    /**
+     * Returns the caching strategy used to decorate and undecorate the URL of the merged
+     * resource: the application's strategy, or a {@link ContentHashResourceCachingStrategy}
+     * if {@link #setVersionByContent versioning by content} is enabled.
+     * 
+     * @since 4.1
+     */
+    protected IResourceCachingStrategy getCachingStrategy()
+    {
+        IResourceCachingStrategy strategy = this.versionByContent;
+        return strategy != null ? strategy : this.cachingStrategy.get();
+    }
+    
+    /**
+     * Returns the in-memory merged content for the given aggregate last modified time, building
+     * it if it has not been built yet or if the cached copy is for a different time. Returns
+     * {@code null} if the resources cannot be merged in memory, in which case in-memory caching
+     * is turned off for this mapper.
+     * 
+     * @since 4.1
+     */
+    protected MergedResourceContent getMergedContent(Time lastModified)
+    {
+        MergedResourceContent current = this.content;
+        if(current != null && Objects.equal(current.getLastModified(), lastModified))
+        {
+            return current;
+        }
+        synchronized(this)
+        {
+            current = this.content;
+            if(null == current || !Objects.equal(current.getLastModified(), lastModified))
+            {
+                current = MergedResourceContent.load(
+                    this.resources, lastModified, this.pipeline);
+                if(null == current)
+                {
+                    LOGGER.warn(
+                        "Resources mounted at {} cannot be cached in memory because at least " +
+                        "one is not an IStaticCacheableResource; merging on every request.",
+                        getPath());
+                    this.cacheInMemory = false;
+                }
+                replaceContent(current);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Replaces the in-memory merged content and deletes any files spooled for the content it
+     * replaces.
+     */
+    private synchronized void replaceContent(MergedResourceContent current)
+    {
+        MergedResourceContent previous = this.content;
+        this.content = current;
+        if(previous != null && previous != current)
+        {
+            previous.deleteSpoolFiles();
+        }
+    }
+    
+    /**
+     * Returns the files that make up the merged resource for the given aggregate last modified
+     * time, locating them if they have not been located yet or if the cached list is for a
+     * different time. Returns {@code null} if the resources are not all plain files, in which
+     * case serving from files is turned off for this mapper.
+     * 
+     * @since 4.1
+     */
+    protected MergedResourceFiles getMergedFiles(Time lastModified)
+    {
+        MergedResourceFiles current = this.files;
+        if(null == current || !Objects.equal(current.getLastModified(), lastModified))
+        {
+            current = MergedResourceFiles.locate(this.resources, lastModified);
+            if(null == current)
+            {
+                LOGGER.warn(
+                    "Resources mounted at {} cannot be served from files because at least " +
+                    "one is not a plain file; merging on every request.",
+                    getPath());
+                this.serveFromFiles = false;
+            }
+            this.files = current;
+        }
+        return current;
+    }
+    
+    /**
+     * Returns a strong ETag for the merged content having the given aggregate last modified
+     * time. The merged content is hashed only when the last modified time changes, by streaming
+     * each resource through the digest rather than loading the merged content into memory; if
+     * it is cached in memory, the ETag of the cached content is used. Returns {@code null} if
+     * the content cannot be read outside of a request.
+     * 
+     * @since 4.1
+     */
+    protected String getETag(Time lastModified)
+    {
+        if(this.cacheInMemory)
+        {
+            MergedResourceContent merged = getMergedContent(lastModified);
+            if(merged != null) return merged.getETag();
+        }
+        VersionedETag current = this.etag;
+        if(current != null && Objects.equal(current.version, lastModified))
+        {
+            return current.etag;
+        }
+        String hash = MergedResourceContent.sha1Hex(this.resources);
+        current = new VersionedETag(lastModified, hash != null ? "\"" + hash + "\"" : null);
+        this.etag = current;
+        return current.etag;
+    }
+    
+    /**
+     * Returns the SHA-1 hash of the merged content having the given aggregate last modified time,
+     * as a 40 character hex string. Like the {@link #getETag ETag}, the hash is computed only
+     * when the last modified time changes. Returns {@code null} if the content cannot be read
+     * outside of a request.
+     * 
+     * @since 4.1
+     */
+    protected String getContentHash(Time lastModified)
+    {
+        String etag = getETag(lastModified);
+        return etag != null ? etag.substring(1, etag.length() - 1) : null;
+    }
+    
+    /**
+     * Returns the most recently modified resource. The answer is remembered and re-checked only
+     * as often as the {@link #setLastModifiedPollFrequency poll frequency} allows.
+     */
     protected ResourceReference getLastModifiedReference()
+    {
+        return currentLastModified().reference;
+    }
+    
+    /**
+     * Returns the last modified time of the most recently modified resource, or {@code null} if
+     * none of the resources has a known modification time. The answer is remembered and
+     * re-checked only as often as the {@link #setLastModifiedPollFrequency poll frequency}
+     * allows.
+     * 
+     * @since 4.1
+     */
+    protected Time getAggregateLastModifiedTime()
+    {
+        return currentLastModified().time;
+    }
+    
+    /**
+     * Returns the remembered aggregate last modified information, re-examining the resources
+     * first if the poll frequency has elapsed.
+     */
+    private LastModified currentLastModified()
+    {
+        LastModified current = this.lastModified;
+        Duration frequency = this.lastModifiedPollFrequency;
+        long now = System.currentTimeMillis();
+        
+        if(null == current ||
+           (frequency != null && now - current.checked >= frequency.getMilliseconds()))
+        {
+            current = findLastModified(now);
+            this.lastModified = current;
+        }
+        return current;
+    }
+    
+    /**
+     * Opens every resource to find the one that was most recently modified.
+     */
+    private LastModified findLastModified(long now)
     {
         ResourceReference lastModifiedRef = null;
-        long lastMillis = -1;
+        Time lastModifiedTime = null;
         for(ResourceReference ref : this.resources)
         {
             Time refModified = getLastModifiedTime(ref);
-            if(refModified != null && refModified.getMilliseconds() > lastMillis)
+            if(refModified != null &&
+               (null == lastModifiedTime ||
+                refModified.getMilliseconds() > lastModifiedTime.getMilliseconds()))
             {
-                lastMillis = refModified.getMilliseconds();
+                lastModifiedTime = refModified;
                 lastModifiedRef = ref;
             }
         }
-        return lastModifiedRef != null ? lastModifiedRef : this.resources.get(0);
+        if(null == lastModifiedRef)
+        {
+            lastModifiedRef = this.resources.get(0);
+        }
+        return new LastModified(lastModifiedRef, lastModifiedTime, now);
     }
     
     /**
@@ -178,4 +690,36 @@ public class MergedResourceMapper extends AbstractMapper implements IRequestMapp
         }
         return modified;
     }
+    
+    /**
+     * The most recently modified resource, its modification time, and when that was checked.
+     */
+    private static class LastModified
+    {
+        private final ResourceReference reference;
+        private final Time time;
+        private final long checked;
+        
+        private LastModified(ResourceReference reference, Time time, long checked)
+        {
+            this.reference = reference;
+            this.time = time;
+            this.checked = checked;
+        }
+    }
+    
+    /**
+     * An ETag and the aggregate last modified time from which it was computed.
+     */
+    private static class VersionedETag
+    {
+        private final Time version;
+        private final String etag;
+        
+        private VersionedETag(Time version, String etag)
+        {
+            this.version = version;
+            this.etag = etag;
+        }
+    }
 }
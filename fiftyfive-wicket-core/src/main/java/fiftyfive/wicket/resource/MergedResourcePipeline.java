@@ -0,0 +1,147 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.wicket.request.resource.ResourceReference;
+
+import org.apache.wicket.util.io.IOUtils;
+import org.apache.wicket.util.lang.Objects;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.ResourceStreamNotFoundException;
+import org.apache.wicket.util.time.Time;
+
+
+/**
+ * Runs each member of a merged resource through a list of {@link MergedResourceTransformer}s
+ * (typically minifiers) as the merged content is built by {@link MergedResourceContent}.
+ * <p>
+ * The transformed bytes of every member are cached along with the member's last modified time.
+ * When the merged content has to be rebuilt because one of its members changed, the cached
+ * results are reused for all members whose last modified time is unchanged, so only the
+ * changed member is transformed again. Members whose last modified time is unknown are
+ * transformed every time.
+ * <p>
+ * The pipeline can also emit a version 3 source map for the merged content. The map embeds the
+ * original source of every member and maps each line of an untransformed member back to its
+ * original line. The original bytes of each member are kept in memory only when a source map
+ * is requested. Lines of members that were
+ * changed by a transformer are mapped to the start of the original file, since transformers
+ * do not report how they rearranged the code.
+ *
+ * @since 4.1
+ */
+public class MergedResourcePipeline
+{
+    private final List<MergedResourceTransformer> transformers;
+    private final String sourceMapName;
+    private final ConcurrentMap<ResourceReference,Member> members;
+
+    /**
+     * @param transformers The transformers to apply to each member, in order
+     * @param sourceMapName The file name of the source map, relative to the merged resource
+     *                      (e.g. {@code all.js.map}), or {@code null} if no source map should
+     *                      be produced
+     */
+    public MergedResourcePipeline(List<MergedResourceTransformer> transformers,
+                                  String sourceMapName)
+    {
+        this.transformers = new ArrayList<MergedResourceTransformer>(transformers);
+        this.sourceMapName = sourceMapName;
+        this.members = new ConcurrentHashMap<ResourceReference,Member>();
+    }
+
+    /**
+     * Returns the file name of the source map, or {@code null} if source maps are disabled.
+     */
+    public String getSourceMapName()
+    {
+        return this.sourceMapName;
+    }
+
+    /**
+     * Reads and transforms the given member, or returns the cached result if the member has
+     * not been modified since it was last transformed. The stream is closed in either case.
+     */
+    Member process(ResourceReference ref, IResourceStream stream)
+        throws IOException, ResourceStreamNotFoundException
+    {
+        Time lastModified = stream.lastModifiedTime();
+        Member cached = this.members.get(ref);
+        if(cached != null && lastModified != null && Objects.equal(cached.version, lastModified))
+        {
+            try { stream.close(); } catch(Exception ignore) {}
+            return cached;
+        }
+
+        byte[] original;
+        try
+        {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            IOUtils.copy(stream.getInputStream(), buffer);
+            original = buffer.toByteArray();
+        }
+        finally
+        {
+            try { stream.close(); } catch(Exception ignore) {}
+        }
+
+        byte[] transformed = original;
+        for(MergedResourceTransformer t : this.transformers)
+        {
+            transformed = t.transform(ref, transformed);
+        }
+
+        Member member = new Member(
+            lastModified,
+            null != this.sourceMapName ? original : null,
+            transformed,
+            transformed != original);
+        this.members.put(ref, member);
+        return member;
+    }
+
+    /**
+     * The transformed bytes of a member, and the last modified time from which they were
+     * produced. The original bytes are kept only if a source map is produced.
+     */
+    static class Member
+    {
+        final Time version;
+        final byte[] original;
+        final byte[] transformed;
+        private final boolean changed;
+
+        private Member(Time version, byte[] original, byte[] transformed, boolean changed)
+        {
+            this.version = version;
+            this.original = original;
+            this.transformed = transformed;
+            this.changed = changed;
+        }
+
+        boolean isTransformed()
+        {
+            return this.changed;
+        }
+    }
+}
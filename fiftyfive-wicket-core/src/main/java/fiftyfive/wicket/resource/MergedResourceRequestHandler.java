@@ -63,6 +63,10 @@ import org.apache.wicket.util.time.Time;
  *     resource in the list of resources to merge fails to respond for whatever reason, this will
  *     result in an incomplete merged response.</li>
  * </ol>
+ * <p>
+ * If an ETag for the merged content is supplied, it is sent with the response and a matching
+ * If-None-Match request header is answered with 304 immediately, before any of the individual
+ * resources are consulted.
  * 
  * @since 3.0
  */
@@ -71,14 +75,29 @@ public class MergedResourceRequestHandler implements IRequestHandler
     private List<ResourceReference> resources;
     private PageParameters pageParameters;
     private Time lastModified;
+    private String etag;
     
     public MergedResourceRequestHandler(List<ResourceReference> resources,
                                         PageParameters params,
                                         Time lastModified)
+    {
+        this(resources, params, lastModified, null);
+    }
+    
+    /**
+     * @param etag A strong entity tag for the merged content, in quoted form, or {@code null}
+     *             if ETags should not be used
+     * @since 4.1
+     */
+    public MergedResourceRequestHandler(List<ResourceReference> resources,
+                                        PageParameters params,
+                                        Time lastModified,
+                                        String etag)
     {
         this.resources = resources;
         this.pageParameters = params;
         this.lastModified = lastModified;
+        this.etag = etag;
     }
     
     public void respond(IRequestCycle requestCycle)
@@ -94,6 +113,18 @@ public class MergedResourceRequestHandler implements IRequestHandler
             origResponse.setLastModifiedTime(this.lastModified);
         }
         
+        // Answer If-None-Match before any of the individual resources are touched.
+        if(this.etag != null)
+        {
+            origResponse.setHeader("ETag", this.etag);
+            String ifNoneMatch = origRequest.getHeader("If-None-Match");
+            if(ifNoneMatch != null && matchesETag(ifNoneMatch, this.etag))
+            {
+                origResponse.setStatus(304);
+                return;
+            }
+        }
+        
         try
         {
             // Make a special response object that merges the contributions of each resource,
@@ -134,6 +165,30 @@ public class MergedResourceRequestHandler implements IRequestHandler
         this.resources = null;
         this.pageParameters = null;
         this.lastModified = null;
+        this.etag = null;
+    }
+    
+    /**
+     * Returns {@code true} if the value of an If-None-Match header matches the given entity
+     * tag. As required for If-None-Match, weak comparison is used: a {@code W/} prefix on either
+     * side is ignored.
+     * 
+     * @since 4.1
+     */
+    static boolean matchesETag(String ifNoneMatch, String etag)
+    {
+        String expected = stripWeak(etag);
+        for(String candidate : ifNoneMatch.split(","))
+        {
+            candidate = candidate.trim();
+            if(candidate.equals("*") || stripWeak(candidate).equals(expected)) return true;
+        }
+        return false;
+    }
+    
+    private static String stripWeak(String etag)
+    {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
     }
     
     /**
@@ -207,6 +262,7 @@ public class MergedResourceRequestHandler implements IRequestHandler
         @Override
         public void setHeader(String name, String value)
         {
+            if(etag != null && "ETag".equalsIgnoreCase(name)) return;
             if(this.headersOpen) this.wrapped.setHeader(name, value);
         }
         
@@ -329,6 +385,20 @@ public class MergedResourceRequestHandler implements IRequestHandler
             Time headerTime = this.wrapped.getDateHeader(name);
             if(headerTime != null && name != null && name.equalsIgnoreCase("If-Modified-Since"))
             {
+                if(etag != null && this.wrapped.getHeader("If-None-Match") != null)
+                {
+                    // If-None-Match takes precedence, and we already know it did not match.
+                    // Force all resources to respond with data.
+                    return null;
+                }
+
+                if(null == lastModified)
+                {
+                    // Aggregate time is unknown or deliberately not used. Force all resources
+                    // to respond with data rather than letting each one decide on its own.
+                    return null;
+                }
+
                 // Truncate milliseconds since the modified since header has only second precision
                 long modified = lastModified.getMilliseconds() / 1000 * 1000;
                 if(headerTime.getMilliseconds() < modified)
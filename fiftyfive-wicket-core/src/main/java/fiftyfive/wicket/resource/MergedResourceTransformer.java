@@ -0,0 +1,49 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.io.IOException;
+
+import org.apache.wicket.request.resource.ResourceReference;
+
+/**
+ * Transforms the contents of a single member of a merged resource before it is concatenated
+ * with the others; for example, by minifying it. Transformers are registered with
+ * {@link MergedResourceBuilder#addTransformer MergedResourceBuilder.addTransformer()} and run
+ * in the order they were added.
+ * <p>
+ * Each member is transformed at most once per version. When one file in a bundle changes, only
+ * that file is transformed again; the cached results for the other members are reused. See
+ * {@link MergedResourcePipeline}.
+ * <p>
+ * fiftyfive-wicket ships with {@link JavaScriptCompressorTransformer}, which delegates to
+ * Wicket's {@link org.apache.wicket.javascript.IJavaScriptCompressor IJavaScriptCompressor},
+ * and {@link fiftyfive.wicket.css.CssCompressorTransformer CssCompressorTransformer}.
+ *
+ * @since 4.1
+ */
+public interface MergedResourceTransformer
+{
+    /**
+     * Returns the transformed contents of the given resource. The input array must not be
+     * modified; it may be returned as-is if no transformation is necessary.
+     *
+     * @param ref The member of the merged resource being transformed
+     * @param bytes The contents of that member, possibly already transformed by earlier
+     *              transformers in the pipeline
+     */
+    byte[] transform(ResourceReference ref, byte[] bytes) throws IOException;
+}
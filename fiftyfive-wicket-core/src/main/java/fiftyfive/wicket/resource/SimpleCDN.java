@@ -15,13 +15,24 @@
  */
 package fiftyfive.wicket.resource;
 
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.apache.wicket.protocol.http.WebApplication;
 import org.apache.wicket.request.IRequestHandler;
 import org.apache.wicket.request.IRequestMapper;
 import org.apache.wicket.request.Request;
 import org.apache.wicket.request.Url;
 import org.apache.wicket.request.handler.resource.ResourceReferenceRequestHandler;
+import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.request.resource.IResource;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.request.resource.caching.IStaticCacheableResource;
+import org.apache.wicket.request.resource.caching.ResourceUrl;
 import org.apache.wicket.util.string.Strings;
+import org.apache.wicket.util.time.Duration;
 
 /**
  * Enables a Wicket application to have its static resources proxied by a CDN, for example
@@ -61,6 +72,29 @@ import org.apache.wicket.util.string.Strings;
  *         }
  *     }
  * }</pre>
+ * Rewritten URLs are cached per resource reference, so that pages with many resources do not
+ * have to run Wicket's entire request mapper chain for every resource on every render; a cache
+ * hit is a single lookup in a concurrent map. Once a cached URL is older than the application's
+ * {@link org.apache.wicket.settings.IResourceSettings#getResourcePollFrequency resource poll frequency},
+ * the version that the application's
+ * {@link org.apache.wicket.request.resource.caching.IResourceCachingStrategy caching strategy}
+ * decorates the resource's URL with is derived again, and the URL is re-computed only if that
+ * version has changed. If the poll frequency is {@code null}, cached URLs are kept indefinitely.
+ * The number of cached URLs is bounded by {@link #setMaxCacheSize setMaxCacheSize()}; when the
+ * cache is full, the least recently used of a small sample of entries is evicted.
+ * <p>
+ * Resources can be spread across several CDN hostnames, so that HTTP/1.1 browsers open more
+ * connections in parallel. Construct the {@code SimpleCDN} with a {@link CDNHostSelector},
+ * such as {@link ConsistentHashHostSelector}, which always chooses the same host for the same
+ * resource so that browser caches stay warm. If a {@link #setHealthCheck health check} reports
+ * that a host is down, URLs that would have been assigned to it are rendered as local URLs
+ * instead.
+ * <pre class="example">
+ * new SimpleCDN(new ConsistentHashHostSelector(
+ *     "//cdn1.example.com", "//cdn2.example.com", "//cdn3.example.com"))
+ *     .setHealthCheck(healthCheck)
+ *     .install(this);</pre>
+ * <p>
  * <em>For those familiar with Ruby on Rails, {@code SimpleCDN} is inspired by the Rails
  * {@code action_controller.asset_host} configuration setting.</em>
  *
@@ -68,9 +102,24 @@ import org.apache.wicket.util.string.Strings;
  */
 public class SimpleCDN implements IRequestMapper
 {
-    private String baseUrl;
+    private CDNHostSelector hostSelector;
+    private CDNHealthCheck healthCheck;
+    private WebApplication app;
     private IRequestMapper delegate;
-    private boolean delegated = false;
+    private int maxCacheSize = 1000;
+    private final ConcurrentMap<ResourceReference,CachedUrl> cache =
+        new ConcurrentHashMap<ResourceReference,CachedUrl>();
+    
+    /**
+     * Number of entries that are compared when one has to be evicted.
+     */
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+    
+    /**
+     * Set while this thread is delegating to the root mapper, to prevent infinite recursion in
+     * case this {@code SimpleCDN} is also contained within the delegate.
+     */
+    private final ThreadLocal<Boolean> delegated = new ThreadLocal<Boolean>();
 
     /**
      * Construct a {@code SimpleCDN} that will rewrite resource reference URLs by prepending
@@ -80,7 +129,19 @@ public class SimpleCDN implements IRequestMapper
      */
     public SimpleCDN(String baseUrl)
     {
-        this.baseUrl = baseUrl;
+        this(new ConsistentHashHostSelector(baseUrl));
+    }
+
+    /**
+     * Construct a {@code SimpleCDN} that spreads resource reference URLs across several CDN
+     * hosts, as chosen by the given selector.
+     *
+     * @see ConsistentHashHostSelector
+     * @since 4.1
+     */
+    public SimpleCDN(CDNHostSelector hostSelector)
+    {
+        this.hostSelector = hostSelector;
     }
 
     /**
@@ -89,14 +150,48 @@ public class SimpleCDN implements IRequestMapper
      */
     public void install(WebApplication app)
     {
+        this.app = app;
         this.delegate = app.getRootRequestMapperAsCompound();
         app.mount(this);
     }
 
+    /**
+     * Sets the health check that is consulted before a URL is rewritten to point to a CDN host.
+     * If the selected host is not healthy, the local URL is used instead. The default is
+     * {@code null}, meaning all hosts are assumed to be healthy.
+     *
+     * @return {@code this} for chaining
+     *
+     * @see ManualCDNHealthCheck
+     * @since 4.1
+     */
+    public SimpleCDN setHealthCheck(CDNHealthCheck healthCheck)
+    {
+        this.healthCheck = healthCheck;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of rewritten URLs that will be cached. When the cache is full, the
+     * least recently used of a few arbitrary entries is evicted to make room. A value of zero disables caching. The
+     * default is 1000.
+     *
+     * @return {@code this} for chaining
+     *
+     * @since 4.1
+     */
+    public SimpleCDN setMaxCacheSize(int maxCacheSize)
+    {
+        this.maxCacheSize = maxCacheSize;
+        this.cache.clear();
+        return this;
+    }
+
     /**
      * If the {@code requestHandler} is a {@link ResourceReferenceRequestHandler}, delegate to
-     * Wicket's default mapper for creating an appropriate URL, and then prepend the CDN
-     * {@code baseUrl} that was provided to the {@code SimpleCDN} constructor.
+     * Wicket's default mapper for creating an appropriate URL, and then prepend the base URL of
+     * the CDN host chosen by the {@link CDNHostSelector host selector}. If that host is not
+     * {@link #setHealthCheck healthy}, the local URL is returned unchanged.
      *
      * @return a rewritten Url to the resource, or {@code null} if {@code requestHandler} is
      *         not for a resource reference
@@ -107,23 +202,144 @@ public class SimpleCDN implements IRequestMapper
         if(!(requestHandler instanceof ResourceReferenceRequestHandler)) return null;
 
         // Prevent infinite recursion in case this SimpleCDN is also contained within the delegate
-        if(this.delegated) return null;
+        if(Boolean.TRUE.equals(this.delegated.get())) return null;
 
-        Url url = null;
-        try
+        // URLs with page parameters are not cached, since the parameters are part of the URL
+        ResourceReferenceRequestHandler handler = (ResourceReferenceRequestHandler) requestHandler;
+        ResourceReference ref = handler.getResourceReference();
+        boolean cacheable = this.maxCacheSize > 0 &&
+                            (null == handler.getPageParameters() ||
+                             handler.getPageParameters().isEmpty());
+        if(!cacheable) return toCdnUrl(new CachedUrl(mapLocal(requestHandler), null, 0));
+
+        long now = System.currentTimeMillis();
+        CachedUrl entry = this.cache.get(ref);
+        if(entry != null && isExpired(entry, now))
+        {
+            // Only re-map the URL if the version has actually changed
+            if(Strings.isEqual(getVersion(ref), entry.version))
+            {
+                entry.checked = now;
+            }
+            else
+            {
+                entry = null;
+            }
+        }
+        if(null == entry)
+        {
+            entry = new CachedUrl(mapLocal(requestHandler), getVersion(ref), now);
+            if(null == this.cache.put(ref, entry)) evictIfFull();
+        }
+        entry.used = System.nanoTime();
+        return toCdnUrl(entry);
+    }
+
+    /**
+     * Removes entries while the cache holds more than the maximum number of URLs. Each time,
+     * the least recently used of a small sample of entries is removed. This approximates LRU
+     * eviction without a lock or ordering that every lookup would have to update.
+     */
+    private void evictIfFull()
+    {
+        while(this.cache.size() > this.maxCacheSize)
         {
-            this.delegated = true;
-            url = this.delegate.mapHandler(requestHandler);
-            if(url != null && url.getQueryParameters().isEmpty())
+            ResourceReference eldest = null;
+            long eldestUse = Long.MAX_VALUE;
+            Iterator<Map.Entry<ResourceReference,CachedUrl>> iter =
+                this.cache.entrySet().iterator();
+            for(int i=0; i<EVICTION_SAMPLE_SIZE && iter.hasNext(); i++)
             {
-                url = Url.parse(Strings.join("/", this.baseUrl, url.toString()));
+                Map.Entry<ResourceReference,CachedUrl> e = iter.next();
+                if(e.getValue().used < eldestUse)
+                {
+                    eldest = e.getKey();
+                    eldestUse = e.getValue().used;
+                }
             }
+            if(null == eldest) return;
+            this.cache.remove(eldest);
+        }
+    }
+
+    /**
+     * Returns the version that the application's caching strategy decorates the URL of the
+     * resource with, or {@code null} if the resource is not an {@link IStaticCacheableResource}.
+     * Once a cached URL is older than the resource poll frequency, it is re-computed only if
+     * this version has changed.
+     *
+     * @since 4.1
+     */
+    protected String getVersion(ResourceReference ref)
+    {
+        if(null == this.app) return null;
+        IResource resource = ref.getResource();
+        if(!(resource instanceof IStaticCacheableResource)) return null;
+
+        ResourceUrl url = new ResourceUrl(ref.getName(), new PageParameters());
+        this.app.getResourceSettings().getCachingStrategy().decorateUrl(
+            url, (IStaticCacheableResource) resource);
+
+        StringBuilder version = new StringBuilder(url.getFileName());
+        for(PageParameters.NamedPair pair : url.getParameters().getAllNamed())
+        {
+            version.append('&').append(pair.getKey()).append('=').append(pair.getValue());
+        }
+        return version.toString();
+    }
+
+    /**
+     * Delegates to Wicket's default mapper for creating the local URL of the resource.
+     *
+     * @since 4.1
+     */
+    protected Url mapLocal(IRequestHandler requestHandler)
+    {
+        try
+        {
+            this.delegated.set(Boolean.TRUE);
+            return this.delegate.mapHandler(requestHandler);
         }
         finally
         {
-            this.delegated = false;
+            this.delegated.remove();
         }
-        return url;
+    }
+
+    /**
+     * Returns a copy of the local URL with the selected CDN host prepended, or a copy of the
+     * local URL itself if it has query string parameters or the host is unavailable.
+     */
+    private Url toCdnUrl(CachedUrl entry)
+    {
+        if(null == entry.local) return null;
+        if(!entry.local.getQueryParameters().isEmpty()) return new Url(entry.local);
+
+        String host = this.hostSelector.selectHost(entry.path);
+        if(null == host || (this.healthCheck != null && !this.healthCheck.isHealthy(host)))
+        {
+            return new Url(entry.local);
+        }
+
+        Url url = entry.byHost.get(host);
+        if(null == url)
+        {
+            url = Url.parse(Strings.join("/", host, entry.path));
+            entry.byHost.put(host, url);
+        }
+        return new Url(url);
+    }
+
+    /**
+     * Returns {@code true} if the version of the cached URL was last checked longer ago than the
+     * application's resource poll frequency. If the poll frequency is {@code null}, cached URLs
+     * never expire.
+     */
+    private boolean isExpired(CachedUrl cached, long now)
+    {
+        if(null == this.app) return false;
+        Duration frequency = this.app.getResourceSettings().getResourcePollFrequency();
+        return frequency != null && now - cached.checked >= frequency.getMilliseconds();
     }
 
     /**
@@ -143,4 +359,28 @@ public class SimpleCDN implements IRequestMapper
     {
         return 0;
     }
+
+    /**
+     * A local URL, which may be {@code null}, the version of the resource, when that version
+     * was last checked, when the URL was last used (in {@link System#nanoTime} units), and the corresponding URL for each CDN
+     * host it has been rewritten for.
+     */
+    private static class CachedUrl
+    {
+        private final Url local;
+        private final String path;
+        private final String version;
+        private volatile long checked;
+        private volatile long used;
+        private final ConcurrentMap<String,Url> byHost = new ConcurrentHashMap<String,Url>();
+
+        private CachedUrl(Url local, String version, long checked)
+        {
+            this.local = local;
+            this.path = null == local ? null : local.toString();
+            this.version = version;
+            this.checked = checked;
+            this.used = System.nanoTime();
+        }
+    }
 }
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Builds a version 3 source map for a merged resource, one member at a time. Each member must
+ * start on a new line of the generated file. See {@link MergedResourcePipeline} for what is
+ * mapped.
+ */
+class SourceMapWriter
+{
+    private static final String BASE64 =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    private final List<String> sources = new ArrayList<String>();
+    private final List<String> contents = new ArrayList<String>();
+    private final StringBuilder mappings = new StringBuilder();
+    private int lines = 0;
+    private int prevSource = 0;
+    private int prevLine = 0;
+
+    /**
+     * Adds a member that occupies the next {@code generatedLines} lines of the generated file.
+     *
+     * @param source The name of the original file
+     * @param content The original source of the member
+     * @param generatedLines The number of lines the member occupies in the generated file
+     * @param identity {@code true} if the member was copied without modification
+     */
+    void addMember(String source, String content, int generatedLines, boolean identity)
+    {
+        int index = this.sources.size();
+        this.sources.add(source);
+        this.contents.add(content);
+
+        for(int line=0; line<generatedLines; line++)
+        {
+            if(this.lines > 0) this.mappings.append(';');
+            this.lines++;
+            if(line > 0 && !identity) continue;
+
+            // Generated column, source index, original line, original column; all but the
+            // generated column are relative to the previous segment.
+            vlq(this.mappings, 0);
+            vlq(this.mappings, index - this.prevSource);
+            vlq(this.mappings, line - this.prevLine);
+            vlq(this.mappings, 0);
+            this.prevSource = index;
+            this.prevLine = line;
+        }
+    }
+
+    /**
+     * Returns the JSON source map.
+     *
+     * @param file The name of the generated file
+     */
+    String toJson(String file)
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"version\":3,\"file\":");
+        quote(json, file);
+        json.append(",\"sources\":");
+        array(json, this.sources);
+        json.append(",\"sourcesContent\":");
+        array(json, this.contents);
+        json.append(",\"names\":[],\"mappings\":");
+        quote(json, this.mappings.toString());
+        json.append("}");
+        return json.toString();
+    }
+
+    /**
+     * Appends the Base64 VLQ encoding of the value.
+     */
+    static void vlq(StringBuilder out, int value)
+    {
+        int v = value < 0 ? ((-value) << 1) | 1 : value << 1;
+        do
+        {
+            int digit = v & 31;
+            v >>>= 5;
+            if(v > 0) digit |= 32;
+            out.append(BASE64.charAt(digit));
+        }
+        while(v > 0);
+    }
+
+    private static void array(StringBuilder json, List<String> values)
+    {
+        json.append('[');
+        for(int i=0; i<values.size(); i++)
+        {
+            if(i > 0) json.append(',');
+            quote(json, values.get(i));
+        }
+        json.append(']');
+    }
+
+    private static void quote(StringBuilder json, String value)
+    {
+        json.append('"');
+        for(int i=0; i<value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch(c)
+            {
+                case '"':  json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if(c < 0x20)
+                    {
+                        json.append(String.format("\\u%04x", (int) c));
+                    }
+                    else
+                    {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
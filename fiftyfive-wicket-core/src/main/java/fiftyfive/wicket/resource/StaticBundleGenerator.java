@@ -0,0 +1,248 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.servlet.ServletContext;
+
+import org.apache.wicket.javascript.IJavaScriptCompressor;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.IRequestMapper;
+import org.apache.wicket.request.mapper.ICompoundRequestMapper;
+import org.apache.wicket.util.io.IOUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Writes every merged resource of an application to disk as a static, fingerprinted file, so
+ * that merging does not have to happen inside the servlet at all. This is normally invoked at
+ * build time by the {@code fiftyfive-wicket-bundler-maven-plugin}, which starts the application
+ * in deployment mode and writes the bundles into the exploded WAR directory before it is
+ * packaged. Applications that install their merged resources or JavaScript compressor only in
+ * deployment mode therefore get the same bundles at build time as they would at runtime.
+ * <p>
+ * For each {@link MergedResourceMapper} installed in the application (typically via
+ * {@link MergedResourceBuilder#install MergedResourceBuilder.install()}), the generator:
+ * <ol>
+ * <li>merges the resources, passing them through the mapper's
+ *     {@link MergedResourceMapper#setPipeline pipeline} if it has one, or otherwise passing
+ *     JavaScript through the application's configured {@link IJavaScriptCompressor}, if any;
+ *     </li>
+ * <li>writes the result to a file named after the mount path plus a SHA-1 fingerprint of the
+ *     content, e.g. {@code bundles/scripts/all-3f786850e387550fdab836ed7e6dc881de23001b.js};</li>
+ * <li>writes a gzip-compressed copy alongside it with a {@code .gz} extension, for web servers
+ *     that can serve pre-compressed files, as well as the source map, if any;</li>
+ * <li>records the mount path and the static file path in a manifest at
+ *     {@value #MANIFEST_PATH}.</li>
+ * </ol>
+ * At runtime in deployment mode, {@link MergedResourceBuilder} reads that manifest and configures
+ * each mapper to {@link MergedResourceMapper#setStaticPath link directly} to the static file. In
+ * development mode the manifest is ignored, so that edits to the source files take effect. The mapper still
+ * answers requests for its original mount path, so pages cached by browsers before a deploy
+ * continue to work.
+ *
+ * @since 4.1
+ */
+public class StaticBundleGenerator
+{
+    /**
+     * Location of the manifest within the web application.
+     */
+    public static final String MANIFEST_PATH = "/WEB-INF/merged-bundles.properties";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StaticBundleGenerator.class);
+
+    private final File webappDirectory;
+    private final String bundleDirectory;
+
+    /**
+     * Loads the manifest written by a previous run of the generator, or returns an empty
+     * {@code Properties} if there is none. Keys are mount paths and values are paths to the
+     * static files, both relative to the root of the web application.
+     */
+    public static Properties loadManifest(ServletContext servletContext)
+    {
+        Properties manifest = new Properties();
+        if(null == servletContext) return manifest;
+
+        InputStream is = servletContext.getResourceAsStream(MANIFEST_PATH);
+        if(null == is) return manifest;
+        try
+        {
+            manifest.load(is);
+        }
+        catch(IOException ioe)
+        {
+            LOGGER.warn("Could not read " + MANIFEST_PATH, ioe);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(is);
+        }
+        return manifest;
+    }
+
+    public StaticBundleGenerator(File webappDirectory, String bundleDirectory)
+    {
+        this.webappDirectory = webappDirectory;
+        this.bundleDirectory = bundleDirectory;
+    }
+
+    /**
+     * Writes all merged resources mounted in the given application, along with the manifest.
+     * Must be called within a Wicket thread (i.e. with the application attached). JavaScript
+     * is minified with the application's own compressor, so the application should be running
+     * in deployment mode, where Wicket installs one by default.
+     *
+     * @return the number of bundles written
+     */
+    public int write(WebApplication app) throws IOException
+    {
+        List<MergedResourceMapper> mappers = new ArrayList<MergedResourceMapper>();
+        collectMappers(app.getRootRequestMapperAsCompound(), mappers);
+
+        Properties manifest = new Properties();
+        for(MergedResourceMapper mapper : mappers)
+        {
+            String staticPath = writeBundle(app, mapper);
+            if(staticPath != null)
+            {
+                manifest.setProperty(mapper.getPath(), staticPath);
+            }
+        }
+
+        File manifestFile = new File(this.webappDirectory, MANIFEST_PATH.substring(1));
+        manifestFile.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(manifestFile);
+        try
+        {
+            manifest.store(out, "Generated by " + getClass().getName());
+        }
+        finally
+        {
+            IOUtils.closeQuietly(out);
+        }
+        return manifest.size();
+    }
+
+    /**
+     * Merges the resources of a single mapper and writes them to disk, returning the path of
+     * the static file relative to the web application root, or {@code null} if the resources
+     * could not be merged.
+     */
+    protected String writeBundle(WebApplication app, MergedResourceMapper mapper)
+        throws IOException
+    {
+        MergedResourcePipeline pipeline = mapper.getPipeline();
+        MergedResourceContent content = MergedResourceContent.load(
+            mapper.resources, null, pipeline);
+        if(null == content)
+        {
+            LOGGER.warn("Skipping {}: its resources cannot be merged statically", mapper.getPath());
+            return null;
+        }
+
+        byte[] bytes = null == pipeline ? minify(app, mapper, content) : content.getBytes();
+        String staticPath = this.bundleDirectory + "/" +
+                            fingerprint(mapper.getPath(), MergedResourceContent.sha1Hex(bytes));
+
+        File file = new File(this.webappDirectory, staticPath);
+        file.getParentFile().mkdirs();
+        writeFile(file, bytes);
+        writeFile(new File(file.getPath() + ".gz"), GzipCodec.INSTANCE.encode(bytes));
+        if(content.getSourceMap() != null)
+        {
+            writeFile(
+                new File(file.getParentFile(), pipeline.getSourceMapName()),
+                content.getSourceMap().getBytes());
+        }
+
+        LOGGER.info("Wrote {} ({} bytes)", staticPath, bytes.length);
+        return staticPath;
+    }
+
+    /**
+     * Passes JavaScript bundles through the application's JavaScript compressor, if one is
+     * configured. Other bundles are returned unchanged.
+     */
+    protected byte[] minify(WebApplication app,
+                            MergedResourceMapper mapper,
+                            MergedResourceContent content)
+        throws IOException
+    {
+        IJavaScriptCompressor compressor = app.getResourceSettings().getJavaScriptCompressor();
+        if(null == compressor || !mapper.getPath().endsWith(".js"))
+        {
+            return content.getBytes();
+        }
+        String encoding = app.getMarkupSettings().getDefaultMarkupEncoding();
+        if(null == encoding) encoding = "UTF-8";
+        return compressor.compress(new String(content.getBytes(), encoding)).getBytes(encoding);
+    }
+
+    /**
+     * Inserts the hash before the file extension of the path, e.g. {@code scripts/all.js}
+     * becomes {@code scripts/all-<hash>.js}.
+     */
+    static String fingerprint(String path, String hash)
+    {
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        if(dot <= slash)
+        {
+            return path + "-" + hash;
+        }
+        return path.substring(0, dot) + "-" + hash + path.substring(dot);
+    }
+
+    private void collectMappers(IRequestMapper mapper, List<MergedResourceMapper> mappers)
+    {
+        if(mapper instanceof MergedResourceMapper)
+        {
+            mappers.add((MergedResourceMapper) mapper);
+        }
+        else if(mapper instanceof ICompoundRequestMapper)
+        {
+            for(IRequestMapper child : (ICompoundRequestMapper) mapper)
+            {
+                collectMappers(child, mappers);
+            }
+        }
+    }
+
+    private void writeFile(File file, byte[] bytes) throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(bytes);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(out);
+        }
+    }
+}
@@ -17,12 +17,19 @@ package fiftyfive.wicket.css;
 
 import fiftyfive.wicket.resource.MergedResourceBuilderTest;
 
+import org.apache.wicket.behavior.Behavior;
+import org.apache.wicket.markup.html.WebPage;
 import org.apache.wicket.protocol.http.WebApplication;
 import org.apache.wicket.request.resource.PackageResourceReference;
 import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.request.resource.caching.NoOpResourceCachingStrategy;
+import org.apache.wicket.util.tester.DummyHomePage;
 import org.apache.wicket.util.tester.WicketTester;
 import org.junit.Test;
 
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
 
 public class MergedCssBuilderTest extends MergedResourceBuilderTest
 {
@@ -64,6 +71,25 @@ public class MergedCssBuilderTest extends MergedResourceBuilderTest
         assertDownloaded(tester, "static/styles-print.css", "1-print.css", "2-print.css");
     }
     
+    /**
+     * Verify that a preload header for the merged resource is sent when its header
+     * contributor is attached to the page.
+     */
+    @Test
+    public void testPreloadHeader() throws Exception
+    {
+        PreloadApp app = new PreloadApp();
+        WicketTester tester = new WicketTester(app);
+        DummyHomePage page = new DummyHomePage();
+        page.add(app.preloadContributor);
+        tester.startPage(page);
+        tester.assertRenderedPage(DummyHomePage.class);
+        
+        String link = tester.getLastResponse().getHeader("Link");
+        assertNotNull(link);
+        assertTrue(link, link.endsWith("static/preload.css>; rel=preload; as=style"));
+    }
+    
     /**
      * Verify that an exception is thrown if we execute install() without
      * specifying a path first.
@@ -99,4 +125,32 @@ public class MergedCssBuilderTest extends MergedResourceBuilderTest
                               .addCss(CSS_PRINT_2)
                               .install(app);
     }
+    
+    /**
+     * Test app that mounts a merged resource with preloading enabled and keeps its header
+     * contributor.
+     */
+    static class PreloadApp extends WebApplication
+    {
+        Behavior preloadContributor;
+        
+        @Override
+        public Class<? extends WebPage> getHomePage()
+        {
+            return DummyHomePage.class;
+        }
+        
+        @Override
+        protected void init()
+        {
+            super.init();
+            getResourceSettings().setCachingStrategy(NoOpResourceCachingStrategy.INSTANCE);
+            this.preloadContributor = new MergedCssBuilder().setPath("/static/preload.css")
+                                                            .setPreload(true)
+                                                            .addCss(CSS_1)
+                                                            .addCss(CSS_2)
+                                                            .install(this)
+                                                            .buildHeaderContributor();
+        }
+    }
 }
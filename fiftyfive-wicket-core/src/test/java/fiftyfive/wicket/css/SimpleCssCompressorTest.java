@@ -0,0 +1,49 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.css;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class SimpleCssCompressorTest
+{
+    @Test
+    public void testCompress()
+    {
+        String css = "/* layout */\n" +
+                     "body  ,  p {\n" +
+                     "    margin : 0 auto;\n" +
+                     "    font-family: \"Helvetica  Neue\", sans-serif;\n" +
+                     "}\n" +
+                     "ul > li a:hover { color: red; }\n" +
+                     "div :first-child { top: 0 }\n";
+        assertEquals(
+            "body,p{margin : 0 auto;font-family: \"Helvetica  Neue\",sans-serif}" +
+            "ul>li a:hover{color: red}" +
+            "div :first-child{top: 0}",
+            SimpleCssCompressor.INSTANCE.compress(css));
+    }
+
+    @Test
+    public void testPreservesLicenseComments()
+    {
+        assertEquals(
+            "/*! (c) 55 Minutes */ a{b:c}",
+            SimpleCssCompressor.INSTANCE.compress("/*! (c) 55 Minutes */\na {\n b:c;\n}\n"));
+    }
+}
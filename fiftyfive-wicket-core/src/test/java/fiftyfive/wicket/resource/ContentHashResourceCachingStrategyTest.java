@@ -0,0 +1,172 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import fiftyfive.wicket.css.MergedCssBuilder;
+import fiftyfive.wicket.test.WicketTestUtils;
+
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.Url;
+import org.apache.wicket.request.handler.resource.ResourceReferenceRequestHandler;
+import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.request.resource.PackageResourceReference;
+import org.apache.wicket.request.resource.caching.IStaticCacheableResource;
+import org.apache.wicket.request.resource.caching.ResourceUrl;
+import org.apache.wicket.util.io.IOUtils;
+import org.apache.wicket.util.tester.DummyHomePage;
+import org.apache.wicket.util.tester.WicketTester;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class ContentHashResourceCachingStrategyTest
+{
+    static final String HASH = "3f786850e387550fdab836ed7e6dc881de23001b";
+
+    protected WicketTester tester;
+
+    @Before
+    public void createTester()
+    {
+        this.tester = new WicketTester(new FingerprintApp());
+    }
+
+    @After
+    public void destroyTester()
+    {
+        this.tester.destroy();
+    }
+
+    @Test
+    public void testDecorateAndUndecorate()
+    {
+        ContentHashResourceCachingStrategy strategy = new ContentHashResourceCachingStrategy();
+
+        ResourceUrl url = new ResourceUrl("all.min.css", new PageParameters());
+        strategy.decorateUrl(url, HASH);
+        assertEquals("all.min-" + HASH + ".css", url.getFileName());
+        assertEquals(HASH, ContentHashResourceCachingStrategy.getFingerprint(url.getFileName()));
+
+        strategy.undecorateUrl(url);
+        assertEquals("all.min.css", url.getFileName());
+
+        url = new ResourceUrl("README", new PageParameters());
+        strategy.decorateUrl(url, HASH);
+        assertEquals("README-" + HASH, url.getFileName());
+        strategy.undecorateUrl(url);
+        assertEquals("README", url.getFileName());
+
+        assertNull(ContentHashResourceCachingStrategy.getFingerprint("jquery-1.5.1.js"));
+    }
+
+    /**
+     * Verify that the hash of a package resource is remembered across the distinct resource
+     * objects that Wicket creates each time the reference is resolved.
+     */
+    @Test
+    public void testHashRememberedAcrossResourceInstances() throws Exception
+    {
+        ContentHashResourceCachingStrategy strategy = new ContentHashResourceCachingStrategy();
+        PackageResourceReference ref = new PackageResourceReference(
+            ContentHashResourceCachingStrategyTest.class, "test.css");
+        IStaticCacheableResource first = (IStaticCacheableResource) ref.getResource();
+        IStaticCacheableResource second = (IStaticCacheableResource) ref.getResource();
+
+        String hash = MergedResourceContent.sha1Hex(concat("test.css"));
+        assertEquals(strategy.getCacheKey(first), strategy.getCacheKey(second));
+        assertEquals(hash, strategy.getContentHash(first));
+        assertEquals(hash, strategy.getContentHash(second));
+    }
+
+    /**
+     * Verify that a merged resource is fingerprinted with the hash of the merged content, and
+     * that requesting the fingerprinted URL yields a year-long cache header.
+     */
+    @Test
+    public void testMergedResourceFingerprint() throws Exception
+    {
+        byte[] expected = concat("test.css", "test.css");
+        String hash = MergedResourceContent.sha1Hex(expected);
+
+        Url url = this.tester.getApplication().getRootRequestMapper().mapHandler(
+            new ResourceReferenceRequestHandler(
+                new PackageResourceReference(ContentHashResourceCachingStrategyTest.class,
+                                             "test.css")));
+        assertEquals("static/merged-" + hash + ".css", url.toString());
+
+        WicketTestUtils.assertDownloadEquals(this.tester, url.toString(), expected);
+        String cacheControl = this.tester.getLastResponse().getHeader("Cache-Control");
+        assertTrue(cacheControl, cacheControl.contains("max-age=31536000"));
+
+        // A stale fingerprint still gets the current content, but not the long cache duration
+        WicketTestUtils.assertDownloadEquals(
+            this.tester, "static/merged-" + HASH + ".css", expected);
+        cacheControl = this.tester.getLastResponse().getHeader("Cache-Control");
+        assertTrue(
+            cacheControl,
+            null == cacheControl || !cacheControl.contains("max-age=31536000"));
+    }
+
+    protected byte[] concat(String... files) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for(String filename : files)
+        {
+            InputStream is = getClass().getResourceAsStream(filename);
+            try
+            {
+                IOUtils.copy(is, bytes);
+            }
+            finally
+            {
+                IOUtils.closeQuietly(is);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    class FingerprintApp extends WebApplication
+    {
+        @Override
+        public Class<? extends WebPage> getHomePage()
+        {
+            return DummyHomePage.class;
+        }
+
+        @Override
+        protected void init()
+        {
+            super.init();
+            getResourceSettings().setCachingStrategy(new ContentHashResourceCachingStrategy());
+            new MergedCssBuilder()
+                .setPath("/static/merged.css")
+                .setCacheInMemory(true)
+                .addCss(ContentHashResourceCachingStrategyTest.class, "test.css")
+                .addCss(SimpleCDNTestPage.class, "test.css")
+                .install(this);
+        }
+    }
+}
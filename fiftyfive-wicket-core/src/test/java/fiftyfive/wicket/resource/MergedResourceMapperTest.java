@@ -0,0 +1,662 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import fiftyfive.wicket.css.CssCompressorTransformer;
+import fiftyfive.wicket.css.MergedCssBuilder;
+import fiftyfive.wicket.test.WicketTestUtils;
+
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.protocol.http.mock.MockHttpServletRequest;
+import org.apache.wicket.protocol.http.mock.MockHttpServletResponse;
+import org.apache.wicket.protocol.http.mock.MockHttpSession;
+import org.apache.wicket.request.Url;
+import org.apache.wicket.request.handler.resource.ResourceReferenceRequestHandler;
+import org.apache.wicket.request.mapper.parameter.PageParametersEncoder;
+import org.apache.wicket.request.resource.PackageResourceReference;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.request.resource.caching.IResourceCachingStrategy;
+import org.apache.wicket.request.resource.caching.NoOpResourceCachingStrategy;
+import org.apache.wicket.util.IProvider;
+import org.apache.wicket.util.io.IOUtils;
+import org.apache.wicket.util.tester.DummyHomePage;
+import org.apache.wicket.util.tester.WicketTester;
+import org.apache.wicket.util.time.Duration;
+import org.apache.wicket.util.time.Time;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class MergedResourceMapperTest
+{
+    static final String PATH = "static/merged.css";
+    static final String GZIP_PATH = "static/merged-gzip.css";
+    static final String STREAMED_PATH = "static/merged-streamed.css";
+    static final String FILES_PATH = "static/merged-files.css";
+    static final String SENDFILE_PATH = "static/merged-sendfile.css";
+    static final String VERSIONED_PATH = "static/merged-versioned.css";
+    static final String PIPELINE_PATH = "static/merged-min.css";
+
+    protected WicketTester tester;
+
+    @Before
+    public void createTester()
+    {
+        this.tester = new WicketTester(new CachedApp());
+    }
+
+    @After
+    public void destroyTester()
+    {
+        this.tester.destroy();
+    }
+
+    /**
+     * Verify that a merged resource served from memory has the same contents as the
+     * individual files concatenated together.
+     */
+    @Test
+    public void testCachedInMemoryDownload() throws Exception
+    {
+        byte[] expected = concat("test.css", "test.css");
+        WicketTestUtils.assertDownloadEquals(this.tester, PATH, expected);
+
+        // Second request is served from the same cached bytes
+        WicketTestUtils.assertDownloadEquals(this.tester, PATH, expected);
+    }
+
+    /**
+     * Verify that a merged resource served from memory sends a Content-Length header.
+     */
+    @Test
+    public void testCachedInMemoryContentLength() throws Exception
+    {
+        byte[] expected = concat("test.css", "test.css");
+        WicketTestUtils.assertDownloadEquals(this.tester, PATH, expected);
+        assertEquals(
+            String.valueOf(expected.length),
+            this.tester.getLastResponse().getHeader("Content-Length"));
+    }
+
+    /**
+     * Verify that the gzip variant is sent when the browser accepts it, and that the
+     * uncompressed content is sent otherwise.
+     */
+    @Test
+    public void testGzipNegotiation() throws Exception
+    {
+        byte[] expected = concat("test.css", "test.css");
+
+        MockHttpServletResponse response = download(GZIP_PATH, "Accept-Encoding", "gzip, deflate");
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertArrayEquals(expected, gunzip(response.getBinaryContent()));
+
+        response = download(GZIP_PATH, "Accept-Encoding", "gzip;q=0, identity");
+        assertNull(response.getHeader("Content-Encoding"));
+        assertArrayEquals(expected, response.getBinaryContent());
+
+        response = download(GZIP_PATH, null, null);
+        assertNull(response.getHeader("Content-Encoding"));
+        assertArrayEquals(expected, response.getBinaryContent());
+    }
+
+    /**
+     * Verify that an encoding listed by name takes precedence over the {@code *} wildcard,
+     * whichever comes first in the header.
+     */
+    @Test
+    public void testExactEncodingPrecedesWildcard() throws Exception
+    {
+        MockHttpServletResponse response = download(GZIP_PATH, "Accept-Encoding", "*;q=0, gzip");
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+
+        response = download(GZIP_PATH, "Accept-Encoding", "gzip;q=0, *");
+        assertNull(response.getHeader("Content-Encoding"));
+
+        assertTrue(CachedMergedResourceRequestHandler.isAccepted("deflate, *", "gzip"));
+        assertFalse(CachedMergedResourceRequestHandler.isAccepted("deflate, *;q=0", "gzip"));
+        assertFalse(CachedMergedResourceRequestHandler.isAccepted("deflate", "gzip"));
+    }
+
+    /**
+     * Verify that each encoding has its own strong ETag, that If-None-Match accepts either,
+     * and that If-Range does not combine ranges of different encodings.
+     */
+    @Test
+    public void testETagPerEncoding() throws Exception
+    {
+        String identity = download(GZIP_PATH, null, null).getHeader("ETag");
+        String gzip = download(GZIP_PATH, "Accept-Encoding", "gzip").getHeader("ETag");
+        assertNotNull(identity);
+        assertEquals(identity.substring(0, identity.length() - 1) + "-gzip\"", gzip);
+
+        assertEquals(304, download(GZIP_PATH, null, null, "If-None-Match", gzip).getStatus());
+        assertEquals(
+            304,
+            download(GZIP_PATH, "Accept-Encoding", "gzip", "If-None-Match", identity).getStatus());
+
+        MockHttpServletResponse response = download(
+            GZIP_PATH, "Accept-Encoding", "gzip", "Range", "bytes=2-5", "If-Range", identity);
+        assertEquals(200, response.getStatus());
+        response = download(
+            GZIP_PATH, "Accept-Encoding", "gzip", "Range", "bytes=2-5", "If-Range", gzip);
+        assertEquals(206, response.getStatus());
+    }
+
+    /**
+     * Verify that both in-memory and streamed merged resources send the same strong ETag,
+     * and answer a matching If-None-Match with 304.
+     */
+    @Test
+    public void testETag() throws Exception
+    {
+        MockHttpServletResponse response = download(PATH, null, null);
+        String etag = response.getHeader("ETag");
+        assertNotNull(etag);
+
+        response = download(STREAMED_PATH, null, null);
+        assertEquals(etag, response.getHeader("ETag"));
+        assertArrayEquals(concat("test.css", "test.css"), response.getBinaryContent());
+
+        assertEquals(304, download(PATH, "If-None-Match", etag).getStatus());
+        assertEquals(304, download(STREAMED_PATH, "If-None-Match", "W/" + etag).getStatus());
+        assertEquals(200, download(STREAMED_PATH, "If-None-Match", "\"other\"").getStatus());
+    }
+
+    /**
+     * Verify that merged resources served from files have the same contents and ETag as
+     * those served from memory.
+     */
+    @Test
+    public void testServeFromFiles() throws Exception
+    {
+        byte[] expected = concat("test.css", "test.css");
+        String etag = download(PATH, null, null).getHeader("ETag");
+
+        MockHttpServletResponse response = download(FILES_PATH, null, null);
+        assertArrayEquals(expected, response.getBinaryContent());
+        assertEquals(String.valueOf(expected.length), response.getHeader("Content-Length"));
+        assertEquals(etag, response.getHeader("ETag"));
+    }
+
+    /**
+     * Verify that a file edited after it was located, but before the application has noticed,
+     * is measured again so that the whole new content can be transferred.
+     */
+    @Test
+    public void testModifiedFilesAreMeasuredAgain() throws Exception
+    {
+        File file = File.createTempFile("merged", ".css");
+        try
+        {
+            writeFile(file, "a{}");
+            MergedResourceFiles files = new MergedResourceFiles(
+                new File[] { file, file }, "text/css", Time.millis(file.lastModified()));
+            assertEquals(6, files.getLength());
+            assertFalse(files.isModified());
+
+            writeFile(file, "a{color:red}");
+            assertTrue(files.isModified());
+
+            MergedResourceFiles refreshed = files.refresh();
+            assertFalse(refreshed.isModified());
+            assertEquals(24, refreshed.getLength());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            refreshed.transferTo(0, refreshed.getLength(), Channels.newChannel(out));
+            assertEquals("a{color:red}a{color:red}", out.toString("UTF-8"));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    /**
+     * Verify that a byte range spanning both merged files can be requested, both from memory
+     * and from files, and that an out of range request is rejected.
+     */
+    @Test
+    public void testRange() throws Exception
+    {
+        byte[] expected = concat("test.css", "test.css");
+        byte[] slice = new byte[4];
+        System.arraycopy(expected, expected.length / 2 - 2, slice, 0, 4);
+        String range = "bytes=" + (expected.length / 2 - 2) + "-" + (expected.length / 2 + 1);
+
+        for(String path : new String[] { PATH, FILES_PATH })
+        {
+            MockHttpServletResponse response = download(path, "Range", range);
+            assertEquals(206, response.getStatus());
+            assertEquals(
+                "bytes " + (expected.length / 2 - 2) + "-" + (expected.length / 2 + 1) +
+                "/" + expected.length,
+                response.getHeader("Content-Range"));
+            assertArrayEquals(slice, response.getBinaryContent());
+
+            response = download(path, "Range", "bytes=" + expected.length + "-");
+            assertEquals(416, response.getStatus());
+        }
+    }
+
+    /**
+     * Verify that when the container supports sendfile, the body is left to the container and
+     * the request attributes point to a spooled copy of the requested range. Without sendfile
+     * support the body is written normally.
+     */
+    @Test
+    public void testSendfile() throws Exception
+    {
+        byte[] expected = concat("test.css", "test.css");
+
+        MockHttpServletResponse response = download(SENDFILE_PATH, null, null);
+        assertArrayEquals(expected, response.getBinaryContent());
+
+        WebApplication app = this.tester.getApplication();
+        MockHttpServletRequest request = new MockHttpServletRequest(
+            app,
+            new MockHttpSession(app.getServletContext()),
+            app.getServletContext());
+        request.setURL(SENDFILE_PATH);
+        request.addHeader("Range", "bytes=2-5");
+        request.setAttribute(CachedMergedResourceRequestHandler.SENDFILE_SUPPORT, Boolean.TRUE);
+        this.tester.processRequest(request);
+        response = this.tester.getLastResponse();
+
+        assertEquals(206, response.getStatus());
+        assertEquals("4", response.getHeader("Content-Length"));
+        assertEquals(0, response.getBinaryContent().length);
+
+        File file = new File(
+            (String) request.getAttribute(CachedMergedResourceRequestHandler.SENDFILE_FILENAME));
+        InputStream is = new FileInputStream(file);
+        try
+        {
+            assertArrayEquals(expected, IOUtils.toByteArray(is));
+        }
+        finally
+        {
+            IOUtils.closeQuietly(is);
+        }
+        assertEquals(
+            Long.valueOf(2),
+            request.getAttribute(CachedMergedResourceRequestHandler.SENDFILE_START));
+        assertEquals(
+            Long.valueOf(6),
+            request.getAttribute(CachedMergedResourceRequestHandler.SENDFILE_END));
+
+        File tempdir = (File) app.getServletContext().getAttribute(
+            "javax.servlet.context.tempdir");
+        assertEquals(
+            new File(tempdir, "merged-resources").getCanonicalFile(),
+            file.getParentFile().getCanonicalFile());
+    }
+
+    /**
+     * Verify that files spooled for one version of the merged content are deleted when the
+     * mapper replaces that content with a newer version.
+     */
+    @Test
+    public void testSpoolFilesDeletedWhenContentReplaced() throws Exception
+    {
+        CountingMapper mapper = new CountingMapper();
+        MergedResourceContent first = mapper.getMergedContent(Time.millis(1000));
+        File identity = first.getSpoolFile(null);
+        File gzip = first.getSpoolFile(GzipCodec.INSTANCE);
+        assertTrue(identity.isFile());
+        assertTrue(gzip.isFile());
+
+        // Same version: nothing is replaced
+        assertSame(first, mapper.getMergedContent(Time.millis(1000)));
+        assertTrue(identity.isFile());
+
+        MergedResourceContent second = mapper.getMergedContent(Time.millis(2000));
+        assertNotSame(first, second);
+        assertFalse(identity.exists());
+        assertFalse(gzip.exists());
+
+        File replacement = second.getSpoolFile(null);
+        assertTrue(replacement.isFile());
+        mapper.setPipeline(null);
+        assertFalse(replacement.exists());
+    }
+
+    /**
+     * Verify that when versioning by content, the URL is fingerprinted with the content hash
+     * even though the application uses no caching strategy, and that conditional requests are
+     * decided by the ETag alone.
+     */
+    @Test
+    public void testVersionByContent() throws Exception
+    {
+        String hash = MergedResourceContent.sha1Hex(concat("test.css", "test.css"));
+
+        CountingMapper mapper = new CountingMapper();
+        mapper.setVersionByContent(true);
+        Url url = mapper.mapHandler(new ResourceReferenceRequestHandler(mapper.resources.get(0)));
+        assertEquals("static/counting-" + hash + ".css", url.toString());
+
+        MockHttpServletResponse response = download(
+            VERSIONED_PATH, "If-Modified-Since", "Fri, 01 Jan 2100 00:00:00 GMT");
+        assertEquals(200, response.getStatus());
+        assertNull(response.getHeader("Last-Modified"));
+        assertEquals("\"" + hash + "\"", response.getHeader("ETag"));
+
+        response = download(VERSIONED_PATH, "If-None-Match", "\"" + hash + "\"");
+        assertEquals(304, response.getStatus());
+    }
+
+    /**
+     * Verify that the pipeline minifies each resource, appends a source map comment, and
+     * serves the source map.
+     */
+    @Test
+    public void testPipeline() throws Exception
+    {
+        MockHttpServletResponse response = download(PIPELINE_PATH, null, null);
+        assertEquals(
+            "\n\n/*# sourceMappingURL=merged-min.css.map */\n",
+            response.getDocument());
+
+        response = download(PIPELINE_PATH + ".map", null, null);
+        assertEquals(200, response.getStatus());
+        assertTrue(response.getDocument().startsWith(
+            "{\"version\":3,\"file\":\"merged-min.css\",\"sources\":" +
+            "[\"fiftyfive/wicket/resource/test.css\",\"fiftyfive/wicket/resource/test.css\"]," +
+            "\"sourcesContent\":[\"/* hello */\\n\",\"/* hello */\\n\"]"));
+    }
+
+    /**
+     * Verify that unchanged resources are not transformed again when the merged content is
+     * rebuilt.
+     */
+    @Test
+    public void testPipelineIsIncremental() throws Exception
+    {
+        CountingMapper mapper = new CountingMapper();
+        MergedResourcePipeline pipeline = new MergedResourcePipeline(
+            Arrays.<MergedResourceTransformer>asList(
+                new CssCompressorTransformer(), new NumberingTransformer()),
+            null);
+
+        MergedResourceContent content = MergedResourceContent.load(
+            mapper.resources, Time.millis(1000), pipeline);
+        assertEquals("/*1*/\n/*2*/\n", new String(content.getBytes(), "UTF-8"));
+
+        // The numbers would change if either member were transformed again
+        content = MergedResourceContent.load(mapper.resources, Time.millis(2000), pipeline);
+        assertEquals("/*1*/\n/*2*/\n", new String(content.getBytes(), "UTF-8"));
+    }
+
+    @Test
+    public void testSourceMapVlq()
+    {
+        StringBuilder vlq = new StringBuilder();
+        SourceMapWriter.vlq(vlq, 0);
+        SourceMapWriter.vlq(vlq, 1);
+        SourceMapWriter.vlq(vlq, -1);
+        SourceMapWriter.vlq(vlq, 16);
+        assertEquals("ACDgB", vlq.toString());
+    }
+
+    @Test
+    public void testByteRangeParse()
+    {
+        assertNull(ByteRange.parse(null, 100));
+        assertNull(ByteRange.parse("bytes=0-1,5-6", 100));
+        assertNull(ByteRange.parse("items=0-1", 100));
+        assertNull(ByteRange.parse("bytes=abc", 100));
+        assertEquals(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=100-", 100));
+        assertEquals("bytes 10-99/100", ByteRange.parse("bytes=10-", 100).toContentRange(100));
+        assertEquals("bytes 90-99/100", ByteRange.parse("bytes=-10", 100).toContentRange(100));
+        assertEquals("bytes 0-99/100", ByteRange.parse("bytes=0-500", 100).toContentRange(100));
+    }
+
+    /**
+     * Verify that the aggregate last modified time is remembered when the poll frequency is
+     * {@code null}, and re-examined every time when it is zero.
+     */
+    @Test
+    public void testLastModifiedIsMemoized() throws Exception
+    {
+        CountingMapper mapper = new CountingMapper();
+        mapper.setLastModifiedPollFrequency(null);
+        for(int i=0; i<5; i++)
+        {
+            assertEquals(mapper.resources.get(1), mapper.getLastModifiedReference());
+        }
+        assertEquals(2, mapper.count);
+
+        mapper.setLastModifiedPollFrequency(Duration.NONE);
+        mapper.count = 0;
+        for(int i=0; i<5; i++)
+        {
+            assertEquals(Time.millis(2000), mapper.getAggregateLastModifiedTime());
+        }
+        assertEquals(10, mapper.count);
+    }
+
+    /**
+     * Request the given URI with an optional header and return the response.
+     */
+    protected MockHttpServletResponse download(String uri, String header, String value)
+    {
+        return download(uri, new String[] { header, value });
+    }
+
+    /**
+     * Downloads the given URI with the given headers, specified as alternating names and
+     * values. Names may be {@code null}, in which case the pair is skipped.
+     */
+    protected MockHttpServletResponse download(String uri, String... headers)
+    {
+        WebApplication app = this.tester.getApplication();
+        MockHttpServletRequest request = new MockHttpServletRequest(
+            app,
+            new MockHttpSession(app.getServletContext()),
+            app.getServletContext());
+        request.setURL(uri);
+        for(int i=0; i+1<headers.length; i+=2)
+        {
+            if(headers[i] != null)
+            {
+                request.addHeader(headers[i], headers[i + 1]);
+            }
+        }
+        this.tester.processRequest(request);
+        return this.tester.getLastResponse();
+    }
+
+    protected byte[] gunzip(byte[] compressed) throws IOException
+    {
+        InputStream is = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        try
+        {
+            return IOUtils.toByteArray(is);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    protected byte[] concat(String... files) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for(String filename : files)
+        {
+            InputStream is = getClass().getResourceAsStream(filename);
+            try
+            {
+                IOUtils.copy(is, bytes);
+            }
+            finally
+            {
+                IOUtils.closeQuietly(is);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    protected void writeFile(File file, String content) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(content.getBytes("UTF-8"));
+        }
+        finally
+        {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Merges test.css with itself (via two references with different scopes in the same package)
+     * and caches the result in memory. The same resources are mounted a second time with gzip
+     * compression enabled, a third time without in-memory caching, a fourth time served
+     * directly from files, a fifth time with sendfile enabled, a sixth time versioned by
+     * content, and a seventh time minified with a source map.
+     */
+    protected void onAppInit(WebApplication app)
+    {
+        new MergedCssBuilder().setPath("/" + PATH)
+                              .setCacheInMemory(true)
+                              .addCss(MergedResourceMapperTest.class, "test.css")
+                              .addCss(SimpleCDNTestPage.class, "test.css")
+                              .install(app);
+        new MergedCssBuilder().setPath("/" + GZIP_PATH)
+                              .addCodec(GzipCodec.INSTANCE)
+                              .addCss(MergedResourceMapperTest.class, "test.css")
+                              .addCss(SimpleCDNTestPage.class, "test.css")
+                              .install(app);
+        new MergedCssBuilder().setPath("/" + STREAMED_PATH)
+                              .addCss(MergedResourceMapperTest.class, "test.css")
+                              .addCss(SimpleCDNTestPage.class, "test.css")
+                              .install(app);
+        new MergedCssBuilder().setPath("/" + FILES_PATH)
+                              .setServeFromFiles(true)
+                              .addCss(MergedResourceMapperTest.class, "test.css")
+                              .addCss(SimpleCDNTestPage.class, "test.css")
+                              .install(app);
+        new MergedCssBuilder().setPath("/" + SENDFILE_PATH)
+                              .setUseSendfile(true)
+                              .addCss(MergedResourceMapperTest.class, "test.css")
+                              .addCss(SimpleCDNTestPage.class, "test.css")
+                              .install(app);
+        new MergedCssBuilder().setPath("/" + VERSIONED_PATH)
+                              .setCacheInMemory(true)
+                              .setVersionByContent(true)
+                              .addCss(MergedResourceMapperTest.class, "test.css")
+                              .addCss(SimpleCDNTestPage.class, "test.css")
+                              .install(app);
+        new MergedCssBuilder().setPath("/" + PIPELINE_PATH)
+                              .addTransformer(new CssCompressorTransformer())
+                              .setSourceMap(true)
+                              .addCss(MergedResourceMapperTest.class, "test.css")
+                              .addCss(SimpleCDNTestPage.class, "test.css")
+                              .install(app);
+    }
+
+    class CachedApp extends WebApplication
+    {
+        @Override
+        public Class<? extends WebPage> getHomePage()
+        {
+            return DummyHomePage.class;
+        }
+
+        @Override
+        protected void init()
+        {
+            super.init();
+            getResourceSettings().setCachingStrategy(NoOpResourceCachingStrategy.INSTANCE);
+            onAppInit(this);
+        }
+    }
+
+    /**
+     * Transformer that appends a comment containing the number of times it has been called.
+     */
+    static class NumberingTransformer implements MergedResourceTransformer
+    {
+        private int count = 0;
+
+        public byte[] transform(ResourceReference ref, byte[] bytes) throws IOException
+        {
+            this.count++;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(bytes);
+            out.write(("/*" + this.count + "*/").getBytes("UTF-8"));
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Mapper with two resources that counts how many times modification times are looked up.
+     */
+    static class CountingMapper extends MergedResourceMapper
+    {
+        int count = 0;
+
+        CountingMapper()
+        {
+            super(
+                "static/counting.css",
+                Arrays.<ResourceReference>asList(
+                    new PackageResourceReference(MergedResourceMapperTest.class, "test.css"),
+                    new PackageResourceReference(SimpleCDNTestPage.class, "test.css")),
+                new PageParametersEncoder(),
+                new IProvider<IResourceCachingStrategy>() {
+                    public IResourceCachingStrategy get()
+                    {
+                        return NoOpResourceCachingStrategy.INSTANCE;
+                    }
+                });
+        }
+
+        @Override
+        protected Time getLastModifiedTime(ResourceReference ref)
+        {
+            this.count++;
+            return Time.millis(this.resources.indexOf(ref) == 0 ? 1000 : 2000);
+        }
+    }
+}
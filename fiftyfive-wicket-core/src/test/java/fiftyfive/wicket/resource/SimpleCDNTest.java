@@ -16,18 +16,34 @@
 package fiftyfive.wicket.resource;
 
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import fiftyfive.wicket.test.WicketTestUtils;
 
 import org.apache.wicket.markup.html.WebPage;
 import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.Url;
+import org.apache.wicket.request.handler.resource.ResourceReferenceRequestHandler;
+import org.apache.wicket.request.resource.AbstractResource;
+import org.apache.wicket.request.resource.PackageResourceReference;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.request.resource.caching.IResourceCachingStrategy;
+import org.apache.wicket.request.resource.caching.IStaticCacheableResource;
 import org.apache.wicket.request.resource.caching.NoOpResourceCachingStrategy;
+import org.apache.wicket.request.resource.caching.ResourceUrl;
 import org.apache.wicket.util.io.IOUtils;
 import org.apache.wicket.util.tester.DummyHomePage;
 import org.apache.wicket.util.tester.WicketTester;
+import org.apache.wicket.util.time.Duration;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 
 public class SimpleCDNTest
 {
@@ -49,6 +65,141 @@ public class SimpleCDNTest
         assertResourcesDownload(tester);
     }
 
+    /**
+     * Verify that rewritten URLs are cached, so that rendering the page a second time does not
+     * consult the request mappers again.
+     */
+    @Test
+    public void testCDN_cache() throws Exception
+    {
+        CDNApp app = new CDNApp(HOST);
+        WicketTester tester = new WicketTester(app);
+        app.getResourceSettings().setResourcePollFrequency(null);
+
+        assertRendered(tester);
+        int rewrites = app.cdn.rewrites.get();
+        assertTrue(rewrites > 0);
+
+        assertRendered(tester);
+        assertEquals(rewrites, app.cdn.rewrites.get());
+    }
+
+    /**
+     * Verify that the version of a cached URL is derived again only once the URL is older than
+     * the resource poll frequency, and that the URL is re-computed only if the version changed.
+     */
+    @Test
+    public void testCDN_cache_version_change() throws Exception
+    {
+        CDNApp app = new CDNApp(HOST);
+        WicketTester tester = new WicketTester(app);
+        app.getResourceSettings().setResourcePollFrequency(Duration.milliseconds(50));
+        VersionCachingStrategy strategy = new VersionCachingStrategy();
+        app.getResourceSettings().setCachingStrategy(strategy);
+
+        IRequestHandler handler = new ResourceReferenceRequestHandler(
+            new PackageResourceReference(SimpleCDNTestPage.class, "test.css"));
+        String local = "wicket/resource/fiftyfive.wicket.resource.SimpleCDNTestPage/test-v1.css";
+
+        assertEquals(HOST + "/" + local, app.cdn.mapHandler(handler).toString());
+        int versions = app.cdn.versions.get();
+
+        // A fresh hit neither re-maps nor derives the version
+        assertEquals(HOST + "/" + local, app.cdn.mapHandler(handler).toString());
+        assertEquals(1, app.cdn.rewrites.get());
+        assertEquals(versions, app.cdn.versions.get());
+
+        // An old entry derives the version again, but keeps the URL if it is unchanged
+        Thread.sleep(60);
+        assertEquals(HOST + "/" + local, app.cdn.mapHandler(handler).toString());
+        assertEquals(1, app.cdn.rewrites.get());
+        assertEquals(versions + 1, app.cdn.versions.get());
+
+        strategy.version = 2;
+        Thread.sleep(60);
+        assertEquals(
+            HOST + "/" + local.replace("-v1", "-v2"),
+            app.cdn.mapHandler(handler).toString());
+        assertEquals(2, app.cdn.rewrites.get());
+    }
+
+    /**
+     * Verify that when the cache is full, the least recently used URL is evicted.
+     */
+    @Test
+    public void testCDN_cache_lru() throws Exception
+    {
+        CDNApp app = new CDNApp(HOST);
+        WicketTester tester = new WicketTester(app);
+        app.getResourceSettings().setResourcePollFrequency(null);
+        app.cdn.setMaxCacheSize(2);
+
+        IRequestHandler css = handler("test.css");
+        IRequestHandler js = handler("test.js");
+        IRequestHandler gif = handler("test.gif");
+
+        app.cdn.mapHandler(css);
+        app.cdn.mapHandler(js);
+        app.cdn.mapHandler(css);
+        app.cdn.mapHandler(gif);
+        assertEquals(3, app.cdn.rewrites.get());
+
+        // js was the least recently used, so it was evicted to make room for gif
+        app.cdn.mapHandler(css);
+        assertEquals(3, app.cdn.rewrites.get());
+        app.cdn.mapHandler(js);
+        assertEquals(4, app.cdn.rewrites.get());
+    }
+
+    /**
+     * Verify that the consistent hash selector spreads paths across all hosts, always chooses
+     * the same host for a path, and only moves the paths of a host that is removed.
+     */
+    @Test
+    public void testConsistentHashHostSelector()
+    {
+        String[] hosts = new String[] { "//cdn1", "//cdn2", "//cdn3" };
+        ConsistentHashHostSelector three = new ConsistentHashHostSelector(hosts);
+        ConsistentHashHostSelector two = new ConsistentHashHostSelector(hosts[0], hosts[1]);
+
+        Map<String,Integer> counts = new HashMap<String,Integer>();
+        for(int i=0; i<300; i++)
+        {
+            String path = "wicket/resource/com.example.Page/script" + i + ".js";
+            String host = three.selectHost(path);
+            assertEquals(host, three.selectHost(path));
+            if(!host.equals(hosts[2]))
+            {
+                assertEquals(host, two.selectHost(path));
+            }
+            Integer count = counts.get(host);
+            counts.put(host, null == count ? 1 : count + 1);
+        }
+        assertEquals(3, counts.size());
+    }
+
+    /**
+     * Verify that URLs are rendered locally while their CDN host is marked down.
+     */
+    @Test
+    public void testCDN_health_check() throws Exception
+    {
+        CDNApp app = new CDNApp(HOST);
+        WicketTester tester = new WicketTester(app);
+        ManualCDNHealthCheck health = new ManualCDNHealthCheck();
+        app.cdn.setHealthCheck(health);
+
+        IRequestHandler handler = new ResourceReferenceRequestHandler(
+            new PackageResourceReference(SimpleCDNTestPage.class, "test.css"));
+        String local = "wicket/resource/fiftyfive.wicket.resource.SimpleCDNTestPage/test.css";
+
+        assertEquals(HOST + "/" + local, app.cdn.mapHandler(handler).toString());
+        health.setHealthy(HOST, false);
+        assertEquals(local, app.cdn.mapHandler(handler).toString());
+        health.setHealthy(HOST, true);
+        assertEquals(HOST + "/" + local, app.cdn.mapHandler(handler).toString());
+    }
+
     /**
      * Verify that the SimpleCDNTestPage renders and rewrites the resource URLs
      * as expected.
@@ -84,9 +235,70 @@ public class SimpleCDNTest
         }
     }
 
+    static IRequestHandler handler(String name)
+    {
+        return new ResourceReferenceRequestHandler(
+            new PackageResourceReference(SimpleCDNTestPage.class, name));
+    }
+
+    /**
+     * Caching strategy that appends a version number that can be changed to the file name.
+     */
+    static class VersionCachingStrategy implements IResourceCachingStrategy
+    {
+        int version = 1;
+
+        public void decorateUrl(ResourceUrl url, IStaticCacheableResource resource)
+        {
+            String fileName = url.getFileName();
+            int dot = fileName.lastIndexOf('.');
+            url.setFileName(
+                fileName.substring(0, dot) + "-v" + this.version + fileName.substring(dot));
+        }
+
+        public void undecorateUrl(ResourceUrl url)
+        {
+            url.setFileName(url.getFileName().replaceFirst("-v[0-9]+\\.", "."));
+        }
+
+        public void decorateResponse(AbstractResource.ResourceResponse response,
+                                     IStaticCacheableResource resource)
+        {
+        }
+    }
+
+    /**
+     * SimpleCDN that counts how many times it has delegated to the request mappers.
+     */
+    static class CountingCDN extends SimpleCDN
+    {
+        final AtomicInteger rewrites = new AtomicInteger();
+        final AtomicInteger versions = new AtomicInteger();
+
+        CountingCDN(String baseUrl)
+        {
+            super(baseUrl);
+        }
+
+        @Override
+        protected Url mapLocal(IRequestHandler requestHandler)
+        {
+            this.rewrites.incrementAndGet();
+            return super.mapLocal(requestHandler);
+        }
+
+        @Override
+        protected String getVersion(ResourceReference ref)
+        {
+            this.versions.incrementAndGet();
+            return super.getVersion(ref);
+        }
+    }
+
     class CDNApp extends WebApplication
     {
         final String host;
+        CountingCDN cdn;
 
         CDNApp(String host)
         {
@@ -105,7 +317,8 @@ public class SimpleCDNTest
             super.init();
             getMarkupSettings().setStripWicketTags(true);
             getResourceSettings().setCachingStrategy(NoOpResourceCachingStrategy.INSTANCE);
-            new SimpleCDN(this.host).install(this);
+            this.cdn = new CountingCDN(this.host);
+            this.cdn.install(this);
         }
     }
 }
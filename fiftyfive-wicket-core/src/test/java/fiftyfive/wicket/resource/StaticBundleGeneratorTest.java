@@ -0,0 +1,135 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.resource;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+import fiftyfive.wicket.css.MergedCssBuilder;
+
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.resource.caching.NoOpResourceCachingStrategy;
+import org.apache.wicket.util.file.Files;
+import org.apache.wicket.util.io.IOUtils;
+import org.apache.wicket.util.tester.DummyHomePage;
+import org.apache.wicket.util.tester.WicketTester;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class StaticBundleGeneratorTest
+{
+    private File webapp;
+    private WicketTester tester;
+
+    @Before
+    public void createWebappDirectory() throws Exception
+    {
+        this.webapp = File.createTempFile("webapp", "");
+        this.webapp.delete();
+        this.webapp.mkdirs();
+        this.tester = new WicketTester(new BundledApp());
+    }
+
+    @After
+    public void cleanUp()
+    {
+        this.tester.destroy();
+        Files.removeFolder(this.webapp);
+    }
+
+    /**
+     * Verify that each merged resource is written to a fingerprinted file, with a gzip copy,
+     * and that the manifest maps the mount path to that file.
+     */
+    @Test
+    public void testWrite() throws Exception
+    {
+        StaticBundleGenerator generator = new StaticBundleGenerator(this.webapp, "bundles");
+        assertEquals(1, generator.write(this.tester.getApplication()));
+
+        Properties manifest = new Properties();
+        InputStream is = new FileInputStream(
+            new File(this.webapp, StaticBundleGenerator.MANIFEST_PATH.substring(1)));
+        try
+        {
+            manifest.load(is);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(is);
+        }
+
+        String staticPath = manifest.getProperty("static/all.css");
+        assertTrue(staticPath, staticPath.matches("bundles/static/all-[0-9a-f]{40}\\.css"));
+
+        File bundle = new File(this.webapp, staticPath);
+        assertArrayEquals(read(getClass().getResourceAsStream("test.css")), read(bundle));
+        assertTrue(new File(bundle.getPath() + ".gz").isFile());
+    }
+
+    @Test
+    public void testFingerprint()
+    {
+        assertEquals("scripts/all-abc.js", StaticBundleGenerator.fingerprint("scripts/all.js", "abc"));
+        assertEquals("v1.0/all-abc", StaticBundleGenerator.fingerprint("v1.0/all", "abc"));
+    }
+
+    private byte[] read(File file) throws Exception
+    {
+        return read(new FileInputStream(file));
+    }
+
+    private byte[] read(InputStream is) throws Exception
+    {
+        try
+        {
+            return IOUtils.toByteArray(is);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    class BundledApp extends WebApplication
+    {
+        @Override
+        public Class<? extends WebPage> getHomePage()
+        {
+            return DummyHomePage.class;
+        }
+
+        @Override
+        protected void init()
+        {
+            super.init();
+            getResourceSettings().setCachingStrategy(NoOpResourceCachingStrategy.INSTANCE);
+            new MergedCssBuilder().setPath("/static/all.css")
+                                  .addCss(StaticBundleGeneratorTest.class, "test.css")
+                                  .install(this);
+        }
+    }
+}
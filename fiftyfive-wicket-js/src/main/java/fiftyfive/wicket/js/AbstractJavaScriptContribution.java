@@ -15,19 +15,27 @@
  */
 package fiftyfive.wicket.js;
 
+import java.util.Arrays;
+import java.util.List;
+
+import fiftyfive.wicket.js.JavaScriptDependencySettings.ScriptLoading;
 import fiftyfive.wicket.js.locator.DependencyCollection;
 import org.apache.wicket.request.Request;
 import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.request.handler.resource.ResourceReferenceRequestHandler;
 import org.apache.wicket.request.resource.ResourceReference;
 import org.apache.wicket.behavior.Behavior;
 import org.apache.wicket.markup.html.IHeaderResponse;
 import org.apache.wicket.request.http.WebRequest;
+import org.apache.wicket.util.string.JavaScriptUtils;
 
 /**
  * Base class for fiftyfive-wicket-js JavaScript {@code <head>} behaviors.
  * Provides methods for rendering dependencies as script src tags, and
  * DOM-ready scripts as the appropriate wicket-event.js or jQuery DOM-ready
- * declaration.
+ * declaration, according to the
+ * {@link JavaScriptDependencySettings#setScriptLoading script loading}
+ * setting.
  * <p>
  * You will most likely never need to use this class or subclass it
  * directly.
@@ -36,6 +44,20 @@ import org.apache.wicket.request.http.WebRequest;
  */
 public abstract class AbstractJavaScriptContribution extends Behavior
 {
+    /**
+     * Loads scripts in order without blocking, and runs DOM-ready functions
+     * once all the scripts requested before them have loaded.
+     */
+    private static final String LOADER = 
+        "window.ffjs=window.ffjs||(function(d){" +
+        "var n=0,q=[],h=d.getElementsByTagName('head')[0];" +
+        "function run(){while(n===0&&q.length){jQuery(q.shift());}}" +
+        "return{load:function(u){n++;var s=d.createElement('script');" +
+        "s.src=u;s.async=false;s.onload=s.onerror=function(){n--;run();};" +
+        "h.appendChild(s);},ready:function(f){q.push(f);run();}};})(document);";
+    
+    private static final String LOADER_ID = "fiftyfive-wicket-js-loader";
+    
     /**
      * Renders a collection of JavaScript dependencies to the {@code <head>}
      * as script src tags. If the dependencies include a CSS resource, that
@@ -58,15 +80,61 @@ public abstract class AbstractJavaScriptContribution extends Behavior
         ResourceReference css = dependencies.getCss();
         if(css != null) response.renderCSSReference(css);
         
+        ScriptLoading loading = getScriptLoading();
         for(ResourceReference ref : dependencies)
         {
             if(ref != null && (exclude == null || !ref.equals(exclude)))
             {
-                response.renderJavaScriptReference(ref);
+                renderScript(response, ref, loading);
             }
         }
     }
     
+    /**
+     * Renders a single JavaScript dependency using the given loading
+     * strategy.
+     */
+    private void renderScript(IHeaderResponse response,
+                              ResourceReference ref,
+                              ScriptLoading loading)
+    {
+        switch(loading)
+        {
+            case DEFER:
+                response.renderJavaScriptReference(ref, null, null, true);
+                break;
+            case ASYNC:
+                response.renderJavaScript(LOADER, LOADER_ID);
+                
+                // Use the same token as renderJavaScriptReference(), so that a script is loaded
+                // only once even if it is also rendered as a script tag (e.g. by a merged
+                // resource contributor)
+                String url = RequestCycle.get().urlFor(
+                    new ResourceReferenceRequestHandler(ref)).toString();
+                List<String> token = Arrays.asList("javascript", url);
+                if(!response.wasRendered(token))
+                {
+                    response.renderJavaScript(String.format(
+                        "ffjs.load('%s');", JavaScriptUtils.escapeQuotes(url)), null);
+                    response.markRendered(token);
+                }
+                break;
+            default:
+                response.renderJavaScriptReference(ref);
+        }
+    }
+    
+    /**
+     * Injects the given JavaScript string into a DOM-ready code block within
+     * the {@code <head>}. The script itself is used to detect duplicates.
+     * 
+     * @see #renderDomReady(IHeaderResponse, String, Object)
+     */
+    protected void renderDomReady(IHeaderResponse response, String script)
+    {
+        renderDomReady(response, script, script);
+    }
+    
     /**
      * Injects the given JavaScript string into a DOM-ready code block within
      * the {@code <head>}.
@@ -77,33 +145,96 @@ public abstract class AbstractJavaScriptContribution extends Behavior
      * &lt;head&gt;. During non-ajax requests, instead add the following
      * jQuery snippet to execute the javacript on DOM ready:
      * <code>jQuery(function() { ... });</code>
+     * If dependencies are {@link JavaScriptDependencySettings#setScriptLoading deferred
+     * or loaded asynchronously}, the snippet instead waits for them to load.
+     * If a {@link DomReadyBatchingHeaderResponse} is installed, the script is
+     * instead added to the single DOM-ready block that it renders for the
+     * entire page.
      * <p>
      * In either case, a script src tag for jQuery will be added to the
      * {@code <head>} if it was not there already.
+     * 
+     * @param key A value that identifies the script, such that the script is
+     *            rendered only once per key. It should be cheaper to hash
+     *            and compare than the script itself.
+     * 
+     * @since 4.1
      */
-    protected void renderDomReady(IHeaderResponse response, String script)
+    protected void renderDomReady(IHeaderResponse response, String script, Object key)
     {
         if(null == script) return;
         
-        if(response.wasRendered(script)) return;
+        if(response.wasRendered(key)) return;
 
         // Ensure that jQuery is present
+        ScriptLoading loading = getScriptLoading();
         ResourceReference jQuery = settings().getJQueryResource();
-        if(jQuery != null) response.renderJavaScriptReference(jQuery);
+        if(jQuery != null) renderScript(response, jQuery, loading);
+        if(ScriptLoading.ASYNC == loading) response.renderJavaScript(LOADER, LOADER_ID);
 
-        Request request = request();
-        if((request instanceof WebRequest) && ((WebRequest)request).isAjax())
+        if(isAjax())
         {
             response.renderOnDomReadyJavaScript(script);
         }
         else
         {
-            response.renderJavaScript(
-                String.format("jQuery(function(){%s;});", script), null
-            );
+            DomReadyBatchingHeaderResponse batch = batch();
+            if(null == batch || !batch.add(script))
+            {
+                response.renderJavaScript(domReady(script + ";", loading), null);
+            }
         }
         
-        response.markRendered(script);
+        response.markRendered(key);
+    }
+    
+    /**
+     * Wraps the given script so that it runs on DOM ready, after the
+     * dependencies that were loaded using the given strategy.
+     */
+    static String domReady(CharSequence script, ScriptLoading loading)
+    {
+        switch(loading)
+        {
+            case DEFER:
+                // Deferred scripts are executed before DOMContentLoaded
+                return String.format(
+                    "document.addEventListener('DOMContentLoaded',function(){" +
+                    "jQuery(function(){%s});});",
+                    script);
+            case ASYNC:
+                return String.format("ffjs.ready(function(){%s});", script);
+            default:
+                return String.format("jQuery(function(){%s});", script);
+        }
+    }
+    
+    /**
+     * Returns the script loading strategy for the current request, which is
+     * always {@link ScriptLoading#BLOCKING BLOCKING} for ajax requests.
+     */
+    ScriptLoading getScriptLoading()
+    {
+        ScriptLoading loading = isAjax() ? null : settings().getScriptLoading();
+        return null == loading ? ScriptLoading.BLOCKING : loading;
+    }
+    
+    /**
+     * Returns {@code true} if the current request is an ajax request.
+     */
+    boolean isAjax()
+    {
+        Request request = request();
+        return (request instanceof WebRequest) && ((WebRequest)request).isAjax();
+    }
+    
+    /**
+     * Returns the DOM-ready batch for the current request, if any. This
+     * method exists only for overriding during unit tests.
+     */
+    DomReadyBatchingHeaderResponse batch()
+    {
+        return DomReadyBatchingHeaderResponse.get();
     }
     
     /**
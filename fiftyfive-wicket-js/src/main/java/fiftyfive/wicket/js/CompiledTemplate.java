@@ -0,0 +1,139 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.js;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.wicket.javascript.IJavaScriptCompressor;
+import org.apache.wicket.util.lang.PropertyResolver;
+
+/**
+ * A JavaScript template that has been parsed once into a sequence of literal text and
+ * <code>${propertyExpression}</code> segments, so that rendering it only has to evaluate the
+ * expressions. This is how {@link DomReadyTemplate} avoids re-reading, re-interpolating and
+ * re-compressing its template on every render.
+ * <p>
+ * The template is compressed once when it is compiled. Each expression is first replaced with
+ * a placeholder that the compressor leaves alone, so that the literal text is compressed as a
+ * whole rather than in fragments. Expressions are evaluated the same way as by
+ * {@link org.apache.wicket.util.string.interpolator.PropertyVariableInterpolator}: if an
+ * expression evaluates to {@code null}, it is left in the output unchanged. Note that the
+ * values of expressions are not compressed.
+ */
+class CompiledTemplate
+{
+    private final String[] literals;
+    private final String[] expressions;
+    private final IJavaScriptCompressor compressor;
+    
+    /**
+     * @param compressor If not {@code null}, the compressor to apply to the entire result of
+     *                   each evaluation, for templates that could not be compressed ahead of time
+     */
+    private CompiledTemplate(String[] literals,
+                             String[] expressions,
+                             IJavaScriptCompressor compressor)
+    {
+        this.literals = literals;
+        this.expressions = expressions;
+        this.compressor = compressor;
+    }
+    
+    /**
+     * Parses and compresses the given template text. The compressor may be {@code null}.
+     */
+    static CompiledTemplate compile(String text, IJavaScriptCompressor compressor)
+    {
+        // Find the ${...} expressions
+        List<String> literals = new ArrayList<String>();
+        List<String> expressions = new ArrayList<String>();
+        int pos = 0;
+        while(true)
+        {
+            int start = text.indexOf("${", pos);
+            int end = start < 0 ? -1 : text.indexOf('}', start + 2);
+            if(end < 0)
+            {
+                literals.add(text.substring(pos));
+                break;
+            }
+            literals.add(text.substring(pos, start));
+            expressions.add(text.substring(start + 2, end));
+            pos = end + 1;
+        }
+        String[] literalArray = literals.toArray(new String[literals.size()]);
+        String[] expressionArray = expressions.toArray(new String[expressions.size()]);
+        if(null == compressor)
+        {
+            return new CompiledTemplate(literalArray, expressionArray, null);
+        }
+        
+        // Compress the literal text as a whole, with each expression replaced by a placeholder
+        // that is a plain identifier, and then split it apart again
+        String prefix = "__ffTemplateExpr";
+        while(text.contains(prefix)) prefix = prefix + "_";
+        StringBuilder joined = new StringBuilder(literals.get(0));
+        for(int i=0; i<expressions.size(); i++)
+        {
+            joined.append(prefix).append(i).append("__");
+            joined.append(literals.get(i + 1));
+        }
+        String compressed = compressor.compress(joined.toString());
+        
+        String[] compressedLiterals = new String[literals.size()];
+        pos = 0;
+        for(int i=0; i<expressions.size(); i++)
+        {
+            String placeholder = prefix + i + "__";
+            int start = compressed.indexOf(placeholder, pos);
+            if(start < 0)
+            {
+                // The compressor removed a placeholder (e.g. it was in a comment), so fall
+                // back to compressing after every evaluation
+                return new CompiledTemplate(literalArray, expressionArray, compressor);
+            }
+            compressedLiterals[i] = compressed.substring(pos, start);
+            pos = start + placeholder.length();
+        }
+        compressedLiterals[expressions.size()] = compressed.substring(pos);
+        return new CompiledTemplate(compressedLiterals, expressionArray, null);
+    }
+    
+    /**
+     * Evaluates the expressions against the given variables and returns the result.
+     */
+    String evaluate(Map<String,Object> variables)
+    {
+        StringBuilder buf = new StringBuilder(this.literals[0]);
+        for(int i=0; i<this.expressions.length; i++)
+        {
+            Object value = PropertyResolver.getValue(this.expressions[i], variables);
+            if(null == value)
+            {
+                buf.append("${").append(this.expressions[i]).append("}");
+            }
+            else
+            {
+                buf.append(value.toString());
+            }
+            buf.append(this.literals[i + 1]);
+        }
+        if(this.compressor != null) return this.compressor.compress(buf.toString());
+        return buf.toString();
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.js;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.markup.html.DecoratingHeaderResponse;
+import org.apache.wicket.markup.html.IHeaderResponse;
+import org.apache.wicket.request.Request;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.request.http.WebRequest;
+
+/**
+ * Collects the DOM-ready scripts of all {@link DomReadyScript} and
+ * {@link DomReadyTemplate} behaviors on a page and renders them as a single
+ * <code>jQuery(function(){ ... });</code> block at the end of the
+ * {@code <head>}, instead of one block per behavior. On pages with large
+ * repeaters this saves both HTML and the work of registering hundreds of
+ * DOM-ready handlers in the browser.
+ * <p>
+ * Scripts are executed in the order they were contributed. Each script runs
+ * in its own function scope, just as it would in its own DOM-ready block, so
+ * variables declared by one script are not shared with the others. A script
+ * that throws does not prevent the scripts after it from running; the error
+ * is re-thrown asynchronously so that it is still reported by the browser.
+ * As without batching, duplicates are detected using the key supplied by each behavior
+ * (for {@code DomReadyTemplate}, the template and the markup ID of the
+ * component). Ajax requests are not affected.
+ * <p>
+ * To enable batching, install this class as a header response decorator:
+ * <pre class="example">
+ * public class MyApplication extends WebApplication
+ * {
+ *     &#064;Override
+ *     protected void init()
+ *     {
+ *         super.init();
+ *         setHeaderResponseDecorator(new IHeaderResponseDecorator() {
+ *             public IHeaderResponse decorate(IHeaderResponse response)
+ *             {
+ *                 return new DomReadyBatchingHeaderResponse(response);
+ *             }
+ *         });
+ *     }
+ * }</pre>
+ * 
+ * @since 4.1
+ */
+public class DomReadyBatchingHeaderResponse extends DecoratingHeaderResponse
+{
+    private static final MetaDataKey<DomReadyBatchingHeaderResponse> BATCH_KEY
+        = new MetaDataKey<DomReadyBatchingHeaderResponse>() {};
+    
+    private final List<String> scripts = new ArrayList<String>();
+    
+    /**
+     * Wraps the given header response. If the current request is not an
+     * ajax request, this becomes the batch to which DOM-ready scripts are
+     * added for the rest of the request, or until it is closed.
+     */
+    public DomReadyBatchingHeaderResponse(IHeaderResponse real)
+    {
+        super(real);
+        RequestCycle cycle = RequestCycle.get();
+        if(cycle != null)
+        {
+            Request request = cycle.getRequest();
+            if(!(request instanceof WebRequest) || !((WebRequest) request).isAjax())
+            {
+                cycle.setMetaData(BATCH_KEY, this);
+            }
+        }
+    }
+    
+    /**
+     * Returns the batch for the current request, or {@code null} if
+     * batching is not enabled or this is an ajax request.
+     */
+    static DomReadyBatchingHeaderResponse get()
+    {
+        RequestCycle cycle = RequestCycle.get();
+        return null == cycle ? null : cycle.getMetaData(BATCH_KEY);
+    }
+    
+    /**
+     * Adds a script to the batch.
+     * 
+     * @return {@code false} if the batch is closed and the caller should
+     *         render the script itself
+     */
+    boolean add(String script)
+    {
+        if(isClosed()) return false;
+        this.scripts.add(script);
+        return true;
+    }
+    
+    /**
+     * Renders the collected scripts as a single DOM-ready block, then closes
+     * the underlying response.
+     */
+    @Override
+    public void close()
+    {
+        if(!isClosed() && !this.scripts.isEmpty())
+        {
+            StringBuilder js = new StringBuilder();
+            for(String script : this.scripts)
+            {
+                js.append("(function(){try{")
+                  .append(script)
+                  .append(";}catch(e){setTimeout(function(){throw e;},0);}})();\n");
+            }
+            getRealResponse().renderJavaScript(
+                AbstractJavaScriptContribution.domReady(
+                    js, JavaScriptDependencySettings.get().getScriptLoading()),
+                null);
+        }
+        this.scripts.clear();
+        
+        RequestCycle cycle = RequestCycle.get();
+        if(cycle != null && cycle.getMetaData(BATCH_KEY) == this)
+        {
+            cycle.setMetaData(BATCH_KEY, null);
+        }
+        super.close();
+    }
+}
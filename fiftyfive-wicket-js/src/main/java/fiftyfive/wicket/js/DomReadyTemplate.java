@@ -15,21 +15,31 @@
  */
 package fiftyfive.wicket.js;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 import fiftyfive.wicket.js.locator.DependencyCollection;
 import fiftyfive.wicket.js.locator.JavaScriptDependencyLocator;
 
 import org.apache.wicket.Component;
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.Page;
 import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.ajax.AjaxRequestTarget;
 import org.apache.wicket.javascript.DefaultJavaScriptCompressor;
 import org.apache.wicket.javascript.IJavaScriptCompressor;
+import org.apache.wicket.markup.ComponentTag;
+import org.apache.wicket.markup.IMarkupFragment;
+import org.apache.wicket.markup.WicketTag;
 import org.apache.wicket.markup.html.IHeaderResponse;
+import org.apache.wicket.markup.repeater.AbstractRepeater;
 import org.apache.wicket.request.resource.ResourceReference;
 import org.apache.wicket.util.string.interpolator.PropertyVariableInterpolator;
 import org.apache.wicket.util.template.PackageTextTemplate;
 import org.apache.wicket.util.template.TextTemplate;
+import org.apache.wicket.util.time.Duration;
 
 
 /**
@@ -43,10 +53,12 @@ import org.apache.wicket.util.template.TextTemplate;
  * is not there already.</b> Your script can rely on the {@code jQuery}
  * object being available.
  * <p>
- * Internally Wicket's {@link PropertyVariableInterpolator} is used to
- * perform substitutions in the template using the
- * <code>${propertyExpression}</code> syntax. Two keys are available for you
- * to use in your templates:
+ * Substitutions are performed in the template using the same
+ * <code>${propertyExpression}</code> syntax as Wicket's
+ * {@link PropertyVariableInterpolator}. The template is parsed and
+ * compressed only once, and then shared for as long as the
+ * {@link JavaScriptDependencySettings#getTraversalCacheDuration traversal cache duration}.
+ * Two keys are available for you to use in your templates:
  * <ul>
  * <li><b>{@code component}</b> is the component to which the
  *     {@code DomReadyTemplate} is bound. The most common use is to obtain
@@ -107,6 +119,28 @@ import org.apache.wicket.util.template.TextTemplate;
  *     jQuery("#panel1").text("Hello");
  * });
  * &lt;/script&gt;</pre>
+ * <p>
+ * <b>Delegated templates.</b> When a {@code DomReadyTemplate} is used for
+ * every row of a large {@code ListView} or {@code DataView}, each row normally
+ * contributes its own initialization script. A subclass can instead override
+ * {@link #isDelegated isDelegated()} to return {@code true}. The template is
+ * then rendered only once per repeater, with <code>${component}</code> bound
+ * to the container that holds the repeater, and is expected to use jQuery
+ * event delegation to handle all the rows. Each row is marked with a
+ * {@code data-ff-template} attribute containing the name of the template
+ * location class, which can be matched using
+ * <code>${behavior.rowSelector}</code>, plus the {@code data-*} attributes
+ * returned by {@link #getRowData getRowData()}:
+ * <pre class="example">
+ * <b>// ProductRowBehavior.js</b>
+ * jQuery("#${component.markupId}").on("click", "${behavior.rowSelector}", function() {
+ *     alert(jQuery(this).data("sku"));
+ * });</pre>
+ * If the component is not inside a repeater, or the repeater's parent cannot
+ * render a tag of its own to bind the handlers to (because it is a page, has
+ * {@link Component#setRenderBodyOnly render body only} set, or is attached to
+ * a {@code <wicket:container>}), a delegated template behaves like a normal
+ * one and is rendered for every row.
  * 
  * @since 2.0
  */
@@ -184,6 +218,44 @@ public class DomReadyTemplate extends AbstractJavaScriptContribution
         return DEFAULT_COMPRESSOR;
     }
     
+    /**
+     * Returns {@code true} if this template should be rendered once for all
+     * the rows of the repeater that contains the component, rather than once
+     * per component. See the {@link DomReadyTemplate class documentation}.
+     * The default is {@code false}.
+     * 
+     * @since 4.1
+     */
+    protected boolean isDelegated()
+    {
+        return false;
+    }
+    
+    /**
+     * Returns the values that are rendered as {@code data-*} attributes of
+     * the component when this template is {@link #isDelegated delegated}.
+     * For example, a map containing {@code "sku"} will be rendered as a
+     * {@code data-sku} attribute. By default this returns an empty map.
+     * 
+     * @since 4.1
+     */
+    protected Map<String,?> getRowData(Component component)
+    {
+        return Collections.emptyMap();
+    }
+    
+    /**
+     * Returns a jQuery selector that matches every row of a
+     * {@link #isDelegated delegated} template, for use in the template like
+     * this: <code>${behavior.rowSelector}</code>.
+     * 
+     * @since 4.1
+     */
+    public String getRowSelector()
+    {
+        return String.format("[data-ff-template='%s']", getTemplateName());
+    }
+    
     /**
      * Stores a reference to the component so that it can be used to
      * substitute <code>${component}</code> expressions in the JavaScript
@@ -191,13 +263,88 @@ public class DomReadyTemplate extends AbstractJavaScriptContribution
      * <p>
      * Also calls {@code setOutputMarkupId(true)} on the component. We do
      * this because the most common technique for integrating JavaScript
-     * handlers with a component is by using its markup ID.
+     * handlers with a component is by using its markup ID. For
+     * {@link #isDelegated delegated} templates this is done for the
+     * container of the repeater instead, when the component is configured.
      */
     @Override
     public void bind(Component component)
     {
         super.bind(component);
-        component.setOutputMarkupId(true);
+        if(!isDelegated()) component.setOutputMarkupId(true);
+    }
+    
+    /**
+     * Calls {@code setOutputMarkupId(true)} on the container of the
+     * repeater, or on the component itself if the template is
+     * {@link #isDelegated delegated} but there is no repeater.
+     */
+    @Override
+    public void onConfigure(Component component)
+    {
+        super.onConfigure(component);
+        if(isDelegated())
+        {
+            MarkupContainer container = getDelegateContainer(component);
+            (null == container ? component : container).setOutputMarkupId(true);
+        }
+    }
+    
+    /**
+     * Adds the {@code data-*} attributes of {@link #isDelegated delegated}
+     * templates to the component.
+     */
+    @Override
+    public void onComponentTag(Component component, ComponentTag tag)
+    {
+        super.onComponentTag(component, tag);
+        if(isDelegated() && getDelegateContainer(component) != null)
+        {
+            tag.put("data-ff-template", getTemplateName());
+            for(Map.Entry<String,?> data : getRowData(component).entrySet())
+            {
+                if(data.getValue() != null)
+                {
+                    tag.put("data-" + data.getKey(), data.getValue().toString());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the container of the repeater that holds the component, or
+     * {@code null} if this template is not delegated, the component is not
+     * inside a repeater, or the container cannot render a tag of its own.
+     */
+    private MarkupContainer getDelegateContainer(Component component)
+    {
+        if(!isDelegated()) return null;
+        AbstractRepeater repeater = component.findParent(AbstractRepeater.class);
+        if(null == repeater) return null;
+        MarkupContainer container = repeater.getParent();
+        return null == container || !rendersOwnTag(container) ? null : container;
+    }
+    
+    /**
+     * Returns {@code true} if the container renders its own tag, with a
+     * markup ID that handlers can be bound to and that can be repainted via
+     * ajax. Pages, containers that render only their body, and containers
+     * attached to {@code <wicket:*>} tags do not.
+     */
+    private static boolean rendersOwnTag(MarkupContainer container)
+    {
+        if(container instanceof Page || container.getRenderBodyOnly()) return false;
+        IMarkupFragment markup = container.getMarkup();
+        return null == markup || markup.size() == 0 || !(markup.get(0) instanceof WicketTag);
+    }
+    
+    /**
+     * Returns the name of the class used to locate the template, which is
+     * how rows of a delegated template are marked.
+     */
+    private String getTemplateName()
+    {
+        return this.templateLocation.getName();
     }
     
     /**
@@ -217,23 +364,75 @@ public class DomReadyTemplate extends AbstractJavaScriptContribution
      * via <a href="http://getsprockets.org">Sprockets</a> syntax in the
      * JavaScript template, plus a DOM-ready section containing the contents
      * of the template after variable substitutions have been performed.
+     * <p>
+     * The DOM-ready section is rendered once per template, component and
+     * position of this behavior in the component's behaviors, so several
+     * instances of the same template on one component each contribute their
+     * own script.
      */
     @Override
     public void renderHead(Component comp, IHeaderResponse response)
     {
-        if(null == this.dependencies) load(comp);
+        if(null == this.dependencies) load();
         
         renderDependencies(response, this.dependencies, this.template);
-        renderDomReady(response, this.readyScript);
+        
+        // Delegated templates are rendered once for the container of the repeater, and during
+        // ajax only if that container is being repainted, so that its handlers are not bound twice
+        Component target = getDelegateContainer(comp);
+        if(null == target)
+        {
+            target = comp;
+        }
+        else if(isAjax() && !isRepainted(target))
+        {
+            return;
+        }
+        
+        // Cheaper to hash and compare than the script itself
+        String key = String.format(
+            "DomReadyTemplate:%s/%s#%s:%d",
+            this.template.getScope().getName(),
+            this.template.getName(),
+            target.getMarkupId(),
+            comp.getBehaviors().indexOf(this));
+        if(response.wasRendered(key)) return;
+        
+        if(null == this.readyScript)
+        {
+            Map<String,Object> map = new HashMap<String,Object>();
+            map.put("component", target);
+            map.put("behavior", this);
+            this.readyScript = getCompiledTemplate().evaluate(map);
+        }
+        renderDomReady(response, this.readyScript, key);
     }
     
     /**
-     * Loads the JavaScript template, determines its dependencies, and then
-     * uses PropertyVariableInterpolator to perform variable substitutions.
+     * Returns {@code true} if the given component or one of its parents has
+     * been added to the current ajax request target.
+     */
+    private boolean isRepainted(Component component)
+    {
+        AjaxRequestTarget ajax = AjaxRequestTarget.get();
+        if(null == ajax) return true;
+        for(Component c : ajax.getComponents())
+        {
+            if(c == component ||
+               (c instanceof MarkupContainer && ((MarkupContainer) c).contains(component, true)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Loads the JavaScript template and determines its dependencies.
      * The results are cached in member variables that will be cleared when
      * detach() is called.
      */
-    private void load(Component comp)
+    private void load()
     {
         JavaScriptDependencyLocator locator = settings().getLocator();
         this.dependencies = new DependencyCollection();
@@ -248,20 +447,59 @@ public class DomReadyTemplate extends AbstractJavaScriptContribution
                 "the same classpath location.",
                 this.templateLocation));
         }
+    }
+    
+    /**
+     * Returns the template, compiled and compressed. When the traversal
+     * cache is enabled, as it is by default in deployment mode, the compiled
+     * template is shared by all instances that use the same template and
+     * compressor, for as long as the traversal cache duration.
+     */
+    private CompiledTemplate getCompiledTemplate()
+    {
+        JavaScriptDependencySettings settings = settings();
+        IJavaScriptCompressor compressor = getCompressor();
+        Duration duration = settings.getTraversalCacheDuration();
+        String key = String.format(
+            "%s/%s:%s",
+            this.template.getScope().getName(),
+            this.template.getName(),
+            null == compressor ? null : compressor.getClass().getName());
+        
+        long now = System.currentTimeMillis();
+        ConcurrentMap<String,CachedTemplate> cache = settings.getTemplateCache();
+        CachedTemplate cached = cache.get(key);
+        if(cached != null && now < cached.expires) return cached.compiled;
         
         TextTemplate tt = new PackageTextTemplate(
             this.template.getScope(),
             this.template.getName(),
             "application/javascript",
-            settings().getEncoding()
+            settings.getEncoding()
         );
+        CompiledTemplate compiled = CompiledTemplate.compile(tt.getString(), compressor);
         
-        Map<String,Object> map = new HashMap<String,Object>();
-        map.put("component", comp);
-        map.put("behavior", this);
+        long ttl = duration.getMilliseconds();
+        if(ttl > 0)
+        {
+            cache.put(key, new CachedTemplate(
+                compiled, ttl > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttl));
+        }
+        return compiled;
+    }
+    
+    /**
+     * A compiled template and when it expires.
+     */
+    static class CachedTemplate
+    {
+        private final CompiledTemplate compiled;
+        private final long expires;
         
-        this.readyScript = getCompressor().compress(
-            PropertyVariableInterpolator.interpolate(tt.getString(), map)
-        );
+        private CachedTemplate(CompiledTemplate compiled, long expires)
+        {
+            this.compiled = compiled;
+            this.expires = expires;
+        }
     }
 }
@@ -15,12 +15,17 @@
  */
 package fiftyfive.wicket.js;
 
+import java.io.File;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import fiftyfive.wicket.js.locator.DefaultJavaScriptDependencyLocator;
+import fiftyfive.wicket.js.locator.DependencyIndex;
+import fiftyfive.wicket.js.locator.DependencyWarmUp;
 import fiftyfive.wicket.js.locator.JavaScriptDependencyLocator;
 import fiftyfive.wicket.js.locator.SearchLocation;
 import fiftyfive.wicket.js.locator.SprocketsParser;
@@ -67,24 +72,93 @@ import org.apache.wicket.util.time.Duration;
  *     {@link #setJQueryUICSSResource setJQueryUICSSResource()} with a
  *     reference to the desired CSS file, or {@code null} if you don't want
  *     fiftyfive-wicket-js to manage this for you.</li>
+ * <li><b>If the first requests after a deploy are slow</b> because
+ *     dependencies are being parsed for the first time, call
+ *     {@link #warmUp warmUp()} at the end of your application's
+ *     {@code init()} method.</li>
+ * <li><b>If script downloads hold up the rendering of your pages</b>, call
+ *     {@link #setScriptLoading setScriptLoading()} to have the browser load
+ *     dependencies without blocking.</li>
  * </ol>
  * 
  * @since 2.0
  */
 public class JavaScriptDependencySettings
 {
+    /**
+     * The default {@link #setTraversalCacheMaxWeight maximum weight} of the
+     * traversal cache.
+     * @since 4.1
+     */
+    public static final int DEFAULT_TRAVERSAL_CACHE_MAX_WEIGHT = 10000;
+    
+    /**
+     * The default {@link #setTraversalCacheSweepInterval sweep interval} of
+     * the traversal cache.
+     * @since 4.1
+     */
+    public static final Duration DEFAULT_TRAVERSAL_CACHE_SWEEP_INTERVAL =
+        Duration.minutes(5);
+    
+    /**
+     * The default {@link #setTraversalCacheStaleDuration stale duration} of
+     * the traversal cache.
+     * @since 4.1
+     */
+    public static final Duration DEFAULT_TRAVERSAL_CACHE_STALE_DURATION =
+        Duration.hours(1);
+    
+    /**
+     * Ways in which JavaScript dependencies can be loaded by the browser.
+     * 
+     * @see JavaScriptDependencySettings#setScriptLoading
+     * @since 4.1
+     */
+    public enum ScriptLoading
+    {
+        /**
+         * Plain {@code <script src>} tags, which block parsing of the page
+         * while each script is downloaded and executed.
+         */
+        BLOCKING,
+        
+        /**
+         * {@code <script src>} tags with the {@code defer} attribute. Scripts
+         * are downloaded in parallel with parsing and executed in order once
+         * the page has been parsed. DOM-ready scripts run after them.
+         */
+        DEFER,
+        
+        /**
+         * A small inline loader that adds each script to the page
+         * dynamically. Scripts are downloaded in parallel without blocking
+         * parsing, and executed in dependency order. DOM-ready scripts run
+         * once all scripts requested before them have loaded.
+         */
+        ASYNC
+    }
+    
     private static final MetaDataKey<JavaScriptDependencySettings> SETTINGS_KEY
         = new MetaDataKey<JavaScriptDependencySettings>() {};
     
     private Application app;
     private List<SearchLocation> locations;
+    private List<SearchLocation> warmUpLocations;
+    private int warmUpThreads;
+    private File dependencyIndexFile;
     private ResourceReference jQueryResource;
     private ResourceReference jQueryUIResource;
     private ResourceReference jQueryUICSSResource;
     private Duration traversalCacheDuration;
+    private ScriptLoading scriptLoading;
+    private int traversalCacheMaxWeight;
+    private Duration traversalCacheSweepInterval;
+    private Duration traversalCacheStaleDuration;
     private String encoding;
     private JavaScriptDependencyLocator locator;
     private SprocketsParser sprocketsParser;
+    private final ConcurrentMap<String,DomReadyTemplate.CachedTemplate> templateCache =
+        new ConcurrentHashMap<String,DomReadyTemplate.CachedTemplate>();
     
     /**
      * Returns the JavaScriptDependencySettings associated with the current
@@ -123,6 +197,12 @@ public class JavaScriptDependencySettings
         this.sprocketsParser = new SprocketsParserImplV4();
 
         this.locations = new ArrayList<SearchLocation>();
+        this.warmUpLocations = new ArrayList<SearchLocation>();
+        this.warmUpThreads = Runtime.getRuntime().availableProcessors();
+        this.traversalCacheMaxWeight = DEFAULT_TRAVERSAL_CACHE_MAX_WEIGHT;
+        this.traversalCacheSweepInterval = DEFAULT_TRAVERSAL_CACHE_SWEEP_INTERVAL;
+        this.traversalCacheStaleDuration = DEFAULT_TRAVERSAL_CACHE_STALE_DURATION;
+        this.scriptLoading = ScriptLoading.BLOCKING;
 
         Class<?> c = JavaScriptDependencySettings.class;
         addLibraryPath(c, "");
@@ -201,6 +281,114 @@ public class JavaScriptDependencySettings
         return this;
     }
     
+    /**
+     * Adds a classpath location whose JavaScript files should be resolved by
+     * {@link #warmUp warmUp()}, in addition to the
+     * {@link #addLibraryPath library paths}. Use this for the packages that
+     * contain your pages and panels. A script with the same name as a class
+     * in the package, like {@code MyPanel.js}, is resolved as that class's
+     * associated script, so that the {@link DomReadyTemplate} or
+     * {@link JavaScriptDependency} of {@code MyPanel} finds it in the cache.
+     * 
+     * @return {@code this} to allow chaining
+     * @since 4.1
+     */
+    public JavaScriptDependencySettings addWarmUpPath(Class<?> cls, String path)
+    {
+        this.warmUpLocations.add(new SearchLocation(cls, path));
+        return this;
+    }
+    
+    /**
+     * Sets the number of threads that {@link #warmUp warmUp()} will use to
+     * resolve dependencies in parallel. The default is the number of
+     * available processors.
+     * 
+     * @return {@code this} to allow chaining
+     * @since 4.1
+     */
+    public JavaScriptDependencySettings setWarmUpThreads(int threads)
+    {
+        Args.isTrue(threads > 0, "threads must be greater than zero: %s", threads);
+        this.warmUpThreads = threads;
+        return this;
+    }
+    
+    /**
+     * Returns the file in which {@link #warmUp warmUp()} remembers resolved
+     * dependencies across restarts, or {@code null} if there is none.
+     * @since 4.1
+     */
+    public File getDependencyIndexFile()
+    {
+        return this.dependencyIndexFile;
+    }
+    
+    /**
+     * Sets a file in which {@link #warmUp warmUp()} will remember resolved
+     * dependencies across restarts. On the next start, trees whose scripts
+     * have not changed are read from this file instead of being parsed again.
+     * The whole file is ignored if the jQuery resources, library paths or
+     * Sprockets parser have changed since it was written.
+     * This only applies when the locator is a
+     * {@link DefaultJavaScriptDependencyLocator}. The default is {@code null},
+     * meaning no index is kept.
+     * 
+     * @return {@code this} to allow chaining
+     * @see DependencyIndex
+     * @since 4.1
+     */
+    public JavaScriptDependencySettings setDependencyIndexFile(File file)
+    {
+        this.dependencyIndexFile = file;
+        return this;
+    }
+    
+    /**
+     * Resolves the dependencies of every JavaScript file in the
+     * {@link #addLibraryPath library paths} and
+     * {@link #addWarmUpPath warm-up paths}, so that the locator's traversal
+     * cache is populated before the first request. Call this at the end of
+     * your application's {@code init()} method, after the settings have been
+     * configured. Has no effect if Sprockets parsing is disabled or the
+     * {@link #getTraversalCacheDuration traversal cache} is disabled (as it
+     * is by default in development mode).
+     * <p>
+     * If a {@link #setDependencyIndexFile dependency index file} has been
+     * set, trees that are still valid are read from it before the warm-up,
+     * and all resolved trees are written back to it afterwards.
+     * 
+     * @return How long the warm-up took, which is also logged
+     * @see DependencyWarmUp
+     * @since 4.1
+     */
+    public Duration warmUp()
+    {
+        if(null == this.sprocketsParser ||
+           getTraversalCacheDuration().getMilliseconds() <= 0)
+        {
+            return Duration.NONE;
+        }
+        DependencyIndex index = null;
+        if(this.dependencyIndexFile != null &&
+           this.locator instanceof DefaultJavaScriptDependencyLocator)
+        {
+            index = new DependencyIndex(this.dependencyIndexFile);
+            ((DefaultJavaScriptDependencyLocator) this.locator).loadIndex(index);
+        }
+        
+        List<SearchLocation> all = new ArrayList<SearchLocation>(this.locations);
+        all.addAll(this.warmUpLocations);
+        Duration elapsed =
+            new DependencyWarmUp(this.locator, this.warmUpThreads).run(this.app, all);
+        
+        if(index != null)
+        {
+            ((DefaultJavaScriptDependencyLocator) this.locator).saveIndex(index);
+        }
+        return elapsed;
+    }
+    
     /**
      * Returns the ResourceReference for the jQuery JavaScript file.
      */
@@ -294,6 +482,11 @@ public class JavaScriptDependencySettings
      * {@code //= require} directive. Refer to the documentation for each implementation
      * for further details.
      * <p>
+     * If all of your directives appear at the top of their files, as Sprockets
+     * requires, consider passing an instance of
+     * {@link fiftyfive.wicket.js.locator.SprocketsHeaderParser SprocketsHeaderParser},
+     * which stops reading each file at the end of its header.
+     * <p>
      * Pass {@code null} to disable Sprockets parsing altogether.
      * 
      * @return {@code this} to allow chaining
@@ -344,6 +537,114 @@ public class JavaScriptDependencySettings
         return this;
     }
     
+    /**
+     * Returns the maximum weight of the traversal cache.
+     * @since 4.1
+     */
+    public int getTraversalCacheMaxWeight()
+    {
+        return this.traversalCacheMaxWeight;
+    }
+    
+    /**
+     * Sets the maximum weight of the traversal cache. Each cached dependency
+     * tree weighs one plus the number of scripts it contains; when the total
+     * exceeds this maximum, the least recently used trees are evicted. Zero
+     * disables the cache. The default is
+     * {@value #DEFAULT_TRAVERSAL_CACHE_MAX_WEIGHT}.
+     * 
+     * @return {@code this} to allow chaining
+     * @see fiftyfive.wicket.js.locator.DependencyCache
+     * @since 4.1
+     */
+    public JavaScriptDependencySettings setTraversalCacheMaxWeight(int weight)
+    {
+        Args.isTrue(weight >= 0, "weight cannot be negative: %s", weight);
+        this.traversalCacheMaxWeight = weight;
+        return this;
+    }
+    
+    /**
+     * Returns how often the traversal cache is swept for expired entries.
+     * @since 4.1
+     */
+    public Duration getTraversalCacheSweepInterval()
+    {
+        return this.traversalCacheSweepInterval;
+    }
+    
+    /**
+     * Sets how often the traversal cache is swept for expired entries, so
+     * that trees that are no longer requested do not occupy the cache until
+     * they are evicted. The sweep happens on the first write to the cache
+     * after the interval has elapsed. The default is five minutes.
+     * 
+     * @return {@code this} to allow chaining
+     * @since 4.1
+     */
+    public JavaScriptDependencySettings setTraversalCacheSweepInterval(Duration d)
+    {
+        Args.notNull(d, "d");
+        this.traversalCacheSweepInterval = d;
+        return this;
+    }
+    
+    /**
+     * Returns how long an expired traversal result may still be used while it
+     * is refreshed in the background.
+     * @since 4.1
+     */
+    public Duration getTraversalCacheStaleDuration()
+    {
+        return this.traversalCacheStaleDuration;
+    }
+    
+    /**
+     * Sets how long an expired traversal result may still be used while it
+     * is refreshed in the background. During this time, a render that needs
+     * the expired result gets it immediately instead of waiting for the
+     * scripts to be parsed again. Pass {@link Duration#NONE} to always wait
+     * for a fresh result. The default is one hour.
+     * 
+     * @return {@code this} to allow chaining
+     * @since 4.1
+     */
+    public JavaScriptDependencySettings setTraversalCacheStaleDuration(Duration d)
+    {
+        Args.notNull(d, "d");
+        this.traversalCacheStaleDuration = d;
+        return this;
+    }
+    
+    /**
+     * Returns how JavaScript dependencies are loaded by the browser.
+     * 
+     * @since 4.1
+     */
+    public ScriptLoading getScriptLoading()
+    {
+        return this.scriptLoading;
+    }
+    
+    /**
+     * Sets how the JavaScript dependencies contributed by
+     * {@link JavaScriptDependency}, {@link DomReadyScript} and
+     * {@link DomReadyTemplate} are loaded by the browser during normal page
+     * requests. DOM-ready scripts are arranged to run only after the
+     * dependencies have been loaded. Ajax requests are not affected, since
+     * Wicket already loads their dependencies before evaluating them. The
+     * default is {@link ScriptLoading#BLOCKING BLOCKING}.
+     * 
+     * @return {@code this} to allow chaining
+     * @since 4.1
+     */
+    public JavaScriptDependencySettings setScriptLoading(ScriptLoading loading)
+    {
+        Args.notNull(loading, "loading");
+        this.scriptLoading = loading;
+        return this;
+    }
+    
     /**
      * Returns the character encoding that will be used when parsing
      * JavaScript files.
@@ -375,4 +676,13 @@ public class JavaScriptDependencySettings
         this.encoding = encoding;
         return this;
     }
+    
+    /**
+     * Returns the compiled {@link DomReadyTemplate} templates that are shared
+     * by all components of this application, keyed by template and compressor.
+     */
+    ConcurrentMap<String,DomReadyTemplate.CachedTemplate> getTemplateCache()
+    {
+        return this.templateCache;
+    }
 }
@@ -15,18 +15,34 @@
  */
 package fiftyfive.wicket.js;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import fiftyfive.wicket.js.JavaScriptDependencySettings;
 import fiftyfive.wicket.js.locator.DependencyCollection;
 import fiftyfive.wicket.js.locator.JavaScriptDependencyLocator;
 import fiftyfive.wicket.resource.MergedResourceBuilder;
+import fiftyfive.wicket.resource.MergedResourceCodec;
+import fiftyfive.wicket.resource.MergedResourceTransformer;
 
 import org.apache.wicket.Component;
+import org.apache.wicket.ajax.AjaxRequestTarget;
 import org.apache.wicket.ajax.WicketAjaxReference;
 import org.apache.wicket.behavior.Behavior;
 import org.apache.wicket.markup.html.IHeaderResponse;
 import org.apache.wicket.markup.html.WicketEventReference;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.request.handler.resource.ResourceReferenceRequestHandler;
 import org.apache.wicket.request.resource.ResourceReference;
 import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.string.JavaScriptUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,6 +76,30 @@ import org.slf4j.LoggerFactory;
  *             .install(this);
  *     }
  * }</pre>
+ * <p>
+ * <b>Chunks.</b> A large application may not want every page to download every script. In that
+ * case the builder can be split into named chunks, each of which is itself a
+ * {@code MergedJavaScriptBuilder} with its own path. Scripts that are needed by at least
+ * {@link #setMinChunks two} chunks are moved into this builder, which becomes the shared
+ * "core" chunk; the remainder stay in the chunk that needs them. Each page then contributes
+ * the core plus its own chunk, either synchronously with
+ * {@link #buildChunkContributor buildChunkContributor()}, or asynchronously with
+ * {@link #buildChunkLoader buildChunkLoader()} if the chunk is not needed to render the page.
+ * <pre class="example">
+ * MergedJavaScriptBuilder scripts = new MergedJavaScriptBuilder()
+ *     .setPath("/scripts/core.js")
+ *     .addWicketAjaxLibraries()
+ *     .addChunk("home", new MergedJavaScriptBuilder()
+ *         .setPath("/scripts/home.js")
+ *         .addLibrary("jquery.55_utils"))
+ *     .addChunk("admin", new MergedJavaScriptBuilder()
+ *         .setPath("/scripts/admin.js")
+ *         .addJQueryUI()
+ *         .addLibrary("jquery.55_utils"))
+ *     .install(this);
+ * 
+ * // In AdminPage
+ * add(scripts.buildChunkContributor("admin"));</pre>
  * 
  * @since 2.0
  */
@@ -70,6 +110,10 @@ public class MergedJavaScriptBuilder extends MergedResourceBuilder
     );
     
     private DependencyCollection deps;
+    private Map<String,MergedJavaScriptBuilder> chunks;
+    private int minChunks = 2;
+    private Set<ResourceReference> excluded;
+    private List<ResourceReference> scripts;
     
     /**
      * Creates an empty builder object. See the
@@ -80,6 +124,8 @@ public class MergedJavaScriptBuilder extends MergedResourceBuilder
     {
         super();
         this.deps = new DependencyCollection();
+        this.chunks = new LinkedHashMap<String,MergedJavaScriptBuilder>();
+        this.excluded = new LinkedHashSet<ResourceReference>();
     }
     
     /**
@@ -90,6 +136,70 @@ public class MergedJavaScriptBuilder extends MergedResourceBuilder
         return (MergedJavaScriptBuilder) super.setPath(path);
     }
     
+    /**
+     * {@inheritDoc}
+     */
+    public MergedJavaScriptBuilder setCacheInMemory(boolean cacheInMemory)
+    {
+        return (MergedJavaScriptBuilder) super.setCacheInMemory(cacheInMemory);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public MergedJavaScriptBuilder setServeFromFiles(boolean serveFromFiles)
+    {
+        return (MergedJavaScriptBuilder) super.setServeFromFiles(serveFromFiles);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public MergedJavaScriptBuilder setUseSendfile(boolean useSendfile)
+    {
+        return (MergedJavaScriptBuilder) super.setUseSendfile(useSendfile);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public MergedJavaScriptBuilder setVersionByContent(boolean versionByContent)
+    {
+        return (MergedJavaScriptBuilder) super.setVersionByContent(versionByContent);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public MergedJavaScriptBuilder setSourceMap(boolean sourceMap)
+    {
+        return (MergedJavaScriptBuilder) super.setSourceMap(sourceMap);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public MergedJavaScriptBuilder setPreload(boolean preload)
+    {
+        return (MergedJavaScriptBuilder) super.setPreload(preload);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public MergedJavaScriptBuilder addCodec(MergedResourceCodec codec)
+    {
+        return (MergedJavaScriptBuilder) super.addCodec(codec);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public MergedJavaScriptBuilder addTransformer(MergedResourceTransformer transformer)
+    {
+        return (MergedJavaScriptBuilder) super.addTransformer(transformer);
+    }
+    
     /**
      * Adds a JavaScript file to the list of merged resources. The
      * dependencies of the script will also be added automatically.
@@ -185,13 +295,178 @@ public class MergedJavaScriptBuilder extends MergedResourceBuilder
         return this;
     }
     
+    /**
+     * Adds a named chunk. The chunk is a separate builder with its own path; scripts and
+     * dependencies added to it are resolved as usual. When this builder is installed, scripts
+     * that are shared by enough chunks (see {@link #setMinChunks setMinChunks()}) are moved into
+     * this builder, and the chunks are installed along with it.
+     * <p>
+     * A chunk whose scripts have all been moved into this builder is not installed, and
+     * contributes nothing beyond this builder's own merged resource.
+     *
+     * @since 4.1
+     */
+    public MergedJavaScriptBuilder addChunk(String name, MergedJavaScriptBuilder chunk)
+    {
+        Args.notNull(name, "name");
+        Args.notNull(chunk, "chunk");
+        if(null != this.scripts)
+        {
+            throw new IllegalStateException(
+                "Chunks cannot be added once build() or install() methods have been called.");
+        }
+        this.chunks.put(name, chunk);
+        return this;
+    }
+    
+    /**
+     * Sets the number of chunks that must need a script before it is moved into this shared
+     * builder. The default is 2, meaning that any script used by more than one chunk is
+     * downloaded once as part of the core, rather than once per chunk. Raise this number to
+     * keep rarely shared scripts out of the core.
+     *
+     * @since 4.1
+     */
+    public MergedJavaScriptBuilder setMinChunks(int minChunks)
+    {
+        this.minChunks = minChunks;
+        return this;
+    }
+    
+    /**
+     * Installs this builder, and then each of its {@link #addChunk chunks}.
+     *
+     * @return {@code this} for chaining
+     *
+     * @since 4.1
+     */
+    @Override
+    public MergedJavaScriptBuilder install(WebApplication app)
+    {
+        super.install(app);
+        for(MergedJavaScriptBuilder chunk : this.chunks.values())
+        {
+            if(!chunk.getScripts().isEmpty()) chunk.install(app);
+        }
+        return this;
+    }
+    
+    /**
+     * Constructs and returns a {@link Behavior} that will contribute the scripts of this builder
+     * and of the named chunk to the {@code <head>}, in that order.
+     *
+     * @throws IllegalArgumentException if there is no chunk with the given name
+     *
+     * @since 4.1
+     */
+    public Behavior buildChunkContributor(String name)
+    {
+        final Behavior core = buildHeaderContributor();
+        final MergedJavaScriptBuilder chunk = getChunk(name);
+        return new Behavior() {
+            @Override
+            public void onConfigure(Component comp)
+            {
+                core.onConfigure(comp);
+            }
+            
+            @Override
+            public void renderHead(Component comp, IHeaderResponse response)
+            {
+                core.renderHead(comp, response);
+                for(ResourceReference ref : chunk.getScripts())
+                {
+                    chunk.newContributor(ref).renderHead(comp, response);
+                }
+            }
+        };
+    }
+    
+    /**
+     * Constructs and returns a {@link Behavior} that will contribute the scripts of this builder
+     * to the {@code <head>}, followed by a small inline loader that downloads the named chunks
+     * asynchronously. The chunks do not block parsing or rendering of the page, but still execute
+     * in the order given, after this builder's scripts. Use this for chunks that are not needed
+     * until the user interacts with the page.
+     * <p>
+     * Chunks that have already been rendered in the same response, whether by another loader or
+     * as a script tag, are not loaded again. The loader is not rendered at all during ajax
+     * requests, since the page has already loaded the chunks.
+     *
+     * @throws IllegalArgumentException if there is no chunk with one of the given names
+     *
+     * @since 4.1
+     */
+    public Behavior buildChunkLoader(String... names)
+    {
+        final Behavior core = buildHeaderContributor();
+        final List<MergedJavaScriptBuilder> lazy = new ArrayList<MergedJavaScriptBuilder>();
+        for(String name : names)
+        {
+            lazy.add(getChunk(name));
+        }
+        return new Behavior() {
+            @Override
+            public void onConfigure(Component comp)
+            {
+                core.onConfigure(comp);
+            }
+            
+            @Override
+            public void renderHead(Component comp, IHeaderResponse response)
+            {
+                core.renderHead(comp, response);
+                if(AjaxRequestTarget.get() != null) return;
+                
+                // Use the same token as renderJavaScriptReference(), so that a chunk is loaded
+                // only once even if it is also rendered as a script tag
+                List<List<String>> tokens = new ArrayList<List<String>>();
+                StringBuilder urls = new StringBuilder();
+                for(MergedJavaScriptBuilder chunk : lazy)
+                {
+                    if(chunk.getScripts().isEmpty()) continue;
+                    ResourceReference ref = chunk.getScripts().get(0);
+                    String url = RequestCycle.get().urlFor(
+                        new ResourceReferenceRequestHandler(ref)).toString();
+                    List<String> token = Arrays.asList("javascript", url);
+                    if(response.wasRendered(token) || tokens.contains(token)) continue;
+                    tokens.add(token);
+                    if(urls.length() > 0) urls.append(",");
+                    urls.append("'");
+                    urls.append(JavaScriptUtils.escapeQuotes(url));
+                    urls.append("'");
+                }
+                if(urls.length() == 0) return;
+                
+                String script = String.format(
+                    "(function(d,u){var h=d.getElementsByTagName('head')[0];" +
+                    "for(var i=0;i<u.length;i++){var s=d.createElement('script');" +
+                    "s.src=u[i];s.async=false;h.appendChild(s);}})(document,[%s]);",
+                    urls);
+                response.renderJavaScript(script, null);
+                for(List<String> token : tokens)
+                {
+                    response.markRendered(token);
+                }
+            }
+        };
+    }
+    
     /**
      * {@inheritDoc}
      */
     @Override
     protected void assertRequiredOptionsAndFreeze()
     {
-        for(ResourceReference ref : this.deps)
+        if(this.chunks.isEmpty())
+        {
+            this.scripts = getScripts();
+        }
+        else
+        {
+            splitChunks();
+        }
+        for(ResourceReference ref : this.scripts)
         {
             LOGGER.debug("Added script to merged builder: {}", ref);
             add(ref);
@@ -199,6 +474,15 @@ public class MergedJavaScriptBuilder extends MergedResourceBuilder
         super.assertRequiredOptionsAndFreeze();
     }
     
+    /**
+     * Returns {@code "script"}.
+     */
+    @Override
+    protected String getPreloadType()
+    {
+        return "script";
+    }
+    
     /**
      * {@inheritDoc}
      */
@@ -213,6 +497,72 @@ public class MergedJavaScriptBuilder extends MergedResourceBuilder
         };
     }
 
+    /**
+     * Moves the scripts shared by at least {@code minChunks} chunks into this builder, and
+     * excludes this builder's scripts from every chunk. Because a dependency is needed by every
+     * chunk that needs its dependent, walking each chunk in order keeps dependencies ahead of
+     * the scripts that require them.
+     */
+    private void splitChunks()
+    {
+        Map<ResourceReference,Integer> usage = new HashMap<ResourceReference,Integer>();
+        for(MergedJavaScriptBuilder chunk : this.chunks.values())
+        {
+            for(ResourceReference ref : chunk.deps)
+            {
+                Integer count = usage.get(ref);
+                usage.put(ref, null == count ? 1 : count + 1);
+            }
+        }
+        
+        Set<ResourceReference> core = new LinkedHashSet<ResourceReference>();
+        for(ResourceReference ref : this.deps)
+        {
+            core.add(ref);
+        }
+        for(MergedJavaScriptBuilder chunk : this.chunks.values())
+        {
+            for(ResourceReference ref : chunk.deps)
+            {
+                if(usage.get(ref) >= this.minChunks) core.add(ref);
+            }
+        }
+        
+        this.scripts = new ArrayList<ResourceReference>(core);
+        for(Map.Entry<String,MergedJavaScriptBuilder> e : this.chunks.entrySet())
+        {
+            MergedJavaScriptBuilder chunk = e.getValue();
+            chunk.excluded.addAll(core);
+            LOGGER.debug("Chunk {} has scripts: {}", e.getKey(), chunk.getScripts());
+        }
+    }
+    
+    /**
+     * Returns the scripts of this builder in the order they should appear in the
+     * {@code <head>}, less any that have been moved into a shared builder.
+     */
+    private List<ResourceReference> getScripts()
+    {
+        if(this.scripts != null) return this.scripts;
+        
+        List<ResourceReference> list = new ArrayList<ResourceReference>();
+        for(ResourceReference ref : this.deps)
+        {
+            if(!this.excluded.contains(ref)) list.add(ref);
+        }
+        return list;
+    }
+    
+    private MergedJavaScriptBuilder getChunk(String name)
+    {
+        MergedJavaScriptBuilder chunk = this.chunks.get(name);
+        if(null == chunk)
+        {
+            throw new IllegalArgumentException("No chunk named " + name);
+        }
+        return chunk;
+    }
+    
     private JavaScriptDependencyLocator getDependencyLocator()
     {
         return JavaScriptDependencySettings.get().getLocator();
@@ -16,14 +16,28 @@
 package fiftyfive.wicket.js.locator;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import fiftyfive.wicket.js.JavaScriptDependencySettings;
 
 import org.apache.wicket.Application;
+import org.apache.wicket.ThreadContext;
 import org.apache.wicket.WicketRuntimeException;
 
 import org.apache.wicket.request.resource.PackageResourceReference;
@@ -43,8 +57,20 @@ import org.slf4j.LoggerFactory;
  * Default implementation of JavaScriptDependencyLocator. Uses the Wicket
  * application's {@link IResourceStreamLocator} to load JavaScript files,
  * and our {@link SprocketsDependencyCollector} to parse them for dependencies.
- * A {@link ConcurrentHashMap} is used as a simple in-memory cache for the
- * dependency trees that are discovered.
+ * The dependency trees that are discovered are kept in a bounded
+ * {@link DependencyCache}, which can be tuned through
+ * {@link JavaScriptDependencySettings}.
+ * <p>
+ * Concurrent requests for the dependencies of the same script share a single
+ * traversal: one thread parses the scripts while the others wait for its
+ * result. Once a cached tree expires it continues to be served, for up to the
+ * {@link JavaScriptDependencySettings#setTraversalCacheStaleDuration stale duration},
+ * while a background thread parses the scripts again.
+ * <p>
+ * {@link #findAssociatedScripts findAssociatedScripts()} also remembers which
+ * classes have a JavaScript file, and which have none anywhere in their class
+ * hierarchy, so that deep component hierarchies do not search the classpath
+ * at every level on every render.
  * 
  * @since 2.0
  */
@@ -58,12 +84,35 @@ public class DefaultJavaScriptDependencyLocator
     );
     
     
-    private Map<ResourceReference,CacheEntry> cache;
+    private DependencyCache cache;
+    private final ConcurrentMap<ResourceReference,FutureTask<DependencyCollection>> inFlight =
+        new ConcurrentHashMap<ResourceReference,FutureTask<DependencyCollection>>();
+    private final Set<ResourceReference> revalidating = Collections.newSetFromMap(
+        new ConcurrentHashMap<ResourceReference,Boolean>());
+    private ExecutorService revalidator;
+    private final ConcurrentMap<Class<?>,Association> associations =
+        new ConcurrentHashMap<Class<?>,Association>();
+    private final AtomicLong probes = new AtomicLong();
+    private final AtomicLong probesAvoided = new AtomicLong();
     
     public DefaultJavaScriptDependencyLocator()
     {
         super();
-        this.cache = new ConcurrentHashMap<ResourceReference,CacheEntry>();
+        this.cache = new DependencyCache(
+            JavaScriptDependencySettings.DEFAULT_TRAVERSAL_CACHE_MAX_WEIGHT,
+            JavaScriptDependencySettings.DEFAULT_TRAVERSAL_CACHE_SWEEP_INTERVAL
+        );
+    }
+    
+    /**
+     * Returns the cache of dependency trees, for example to monitor its
+     * hit rate.
+     * 
+     * @since 4.1
+     */
+    public DependencyCache getCache()
+    {
+        return this.cache;
     }
     
     public void findLibraryScripts(String libraryName,
@@ -103,8 +152,57 @@ public class DefaultJavaScriptDependencyLocator
         Args.notNull(cls, "cls");
         Args.notNull(scripts, "scripts");
         
-        // Traverse up the class hierarchy until we find
-        // a valid JavaScript resource or we run out of super classes.
+        long now = System.currentTimeMillis();
+        Association assoc = this.associations.get(cls);
+        if(assoc != null && !assoc.isExpired(now))
+        {
+            this.probesAvoided.addAndGet(assoc.probes);
+        }
+        else
+        {
+            assoc = searchClassHierarchy(cls, now);
+        }
+        if(assoc.reference != null)
+        {
+            collectResourceAndDependencies(assoc.reference, scripts);
+        }
+    }
+    
+    /**
+     * Returns the number of times the classpath has been searched for the
+     * JavaScript file of a class by
+     * {@link #findAssociatedScripts findAssociatedScripts()}.
+     * 
+     * @since 4.1
+     */
+    public long getAssociationProbeCount()
+    {
+        return this.probes.get();
+    }
+    
+    /**
+     * Returns the number of classpath searches that
+     * {@link #findAssociatedScripts findAssociatedScripts()} has avoided by
+     * remembering which classes in a hierarchy do, and do not, have a
+     * JavaScript file.
+     * 
+     * @since 4.1
+     */
+    public long getAssociationProbesAvoidedCount()
+    {
+        return this.probesAvoided.get();
+    }
+    
+    /**
+     * Traverses up the class hierarchy until we find a valid JavaScript
+     * resource or we run out of super classes. The result is remembered for
+     * the given class and for every superclass that was searched on the way,
+     * including those that have no JavaScript file of their own.
+     */
+    private Association searchClassHierarchy(Class<?> cls, long now)
+    {
+        List<Class<?>> searched = new ArrayList<Class<?>>();
+        ResourceReference found = null;
         Class<?> scope = cls;
         while(scope != null)
         {
@@ -113,14 +211,72 @@ public class DefaultJavaScriptDependencyLocator
                 Classes.simpleName(scope)
             );
             LOGGER.debug("Searching for: {}", reference);
+            searched.add(scope);
+            this.probes.incrementAndGet();
             if(load(reference) != null)
             {
                 LOGGER.debug("Found: {}", reference);
-                collectResourceAndDependencies(reference, scripts);
+                found = reference;
                 break;
             }
             scope = scope.getSuperclass();
         }
+        
+        long ttl = getAssociationCacheDuration().getMilliseconds();
+        long expires = ttl > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttl;
+        Association result = null;
+        for(int i=0; i<searched.size(); i++)
+        {
+            Association assoc = new Association(found, searched.size() - i, expires);
+            if(ttl > 0) this.associations.put(searched.get(i), assoc);
+            if(null == result) result = assoc;
+        }
+        return result;
+    }
+    
+    /**
+     * Returns how long to remember which classes have JavaScript files. This
+     * is the traversal cache duration if that is enabled. Otherwise, as in
+     * development mode, it is the resource poll frequency, so that a newly
+     * added JavaScript file is noticed as quickly as a changed one.
+     */
+    private Duration getAssociationCacheDuration()
+    {
+        Duration duration = settings().getTraversalCacheDuration();
+        if(duration.getMilliseconds() > 0) return duration;
+        
+        Duration poll = Application.get().getResourceSettings().getResourcePollFrequency();
+        return null == poll ? Duration.NONE : poll;
+    }
+    
+    /**
+     * Puts the trees from the given index whose scripts are unchanged into
+     * the cache, so that they do not have to be parsed again. Has no effect if
+     * the cache is disabled.
+     * 
+     * @return The number of trees that were loaded
+     * @since 4.1
+     */
+    public int loadIndex(DependencyIndex index)
+    {
+        if(settings().getTraversalCacheDuration().getMilliseconds() <= 0) return 0;
+        
+        Map<ResourceReference,DependencyCollection> trees = index.load();
+        for(Map.Entry<ResourceReference,DependencyCollection> e : trees.entrySet())
+        {
+            putIntoCache(e.getKey(), e.getValue());
+        }
+        return trees.size();
+    }
+    
+    /**
+     * Writes the trees that are currently cached to the given index.
+     * 
+     * @since 4.1
+     */
+    public void saveIndex(DependencyIndex index)
+    {
+        index.save(this.cache.snapshot());
     }
     
     /**
@@ -141,14 +297,173 @@ public class DefaultJavaScriptDependencyLocator
      * Adds the resource to the DependencyCollection and recursively traverses
      * all of the sprocket dependencies of that resource (and its dependencies
      * and so forth), until the entire dependency tree has been added to
-     * the collection. The cache will first be consulted to avoid the
-     * recursion, if possible. Otherwise the result of the recursion is cached
-     * for future use.
+     * the collection. If the resource is the root of the collection, its tree
+     * is {@link #resolve resolved} through the cache instead.
      */
     private void collectResourceAndDependencies(ResourceReference ref,
                                                 DependencyCollection scripts)
     {
-        if(scripts.isEmpty() && populateFromCache(ref, scripts)) return;
+        if(null == ref) return;
+        if(scripts.isEmpty())
+        {
+            resolve(ref).copyTo(scripts);
+            return;
+        }
+        traverse(ref, scripts);
+    }
+    
+    /**
+     * Returns the dependency tree of a root resource. A fresh cached tree is
+     * returned if possible. Failing that, a stale tree is returned and
+     * refreshed in the background, so that expiry never blocks a render.
+     * Otherwise the tree is traversed and cached, with concurrent calls for
+     * the same resource waiting for a single traversal rather than each
+     * parsing the same scripts. The result must not be modified.
+     */
+    private DependencyCollection resolve(ResourceReference ref)
+    {
+        DependencyCollection cached = this.cache.get(ref);
+        if(cached != null) return cached;
+        
+        cached = this.cache.getStale(ref);
+        if(cached != null)
+        {
+            revalidate(ref);
+            return cached;
+        }
+        return traverseOnce(ref);
+    }
+    
+    /**
+     * Traverses the tree of a root resource and caches it, unless another
+     * thread is already doing so, in which case waits for and returns the
+     * result of that thread.
+     */
+    private DependencyCollection traverseOnce(final ResourceReference ref)
+    {
+        FutureTask<DependencyCollection> task = new FutureTask<DependencyCollection>(
+            new Callable<DependencyCollection>() {
+                public DependencyCollection call()
+                {
+                    DependencyCollection scripts = new DependencyCollection();
+                    traverse(ref, scripts);
+                    // Freeze so that the cache and waiting threads can share it
+                    scripts.freeze();
+                    putIntoCache(ref, scripts);
+                    return scripts;
+                }
+            }
+        );
+        FutureTask<DependencyCollection> running = this.inFlight.putIfAbsent(ref, task);
+        if(null == running)
+        {
+            LOGGER.debug("Traversing: {}", ref);
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                this.inFlight.remove(ref, task);
+            }
+            running = task;
+        }
+        else
+        {
+            LOGGER.debug("Waiting for traversal in progress: {}", ref);
+        }
+        
+        try
+        {
+            return running.get();
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new WicketRuntimeException(ie);
+        }
+        catch(ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if(cause instanceof Error) throw (Error) cause;
+            throw new WicketRuntimeException(cause);
+        }
+    }
+    
+    /**
+     * Schedules a background traversal of a resource whose cached tree is
+     * stale, unless one is already scheduled.
+     */
+    private void revalidate(final ResourceReference ref)
+    {
+        if(!this.revalidating.add(ref)) return;
+        
+        final Application app = Application.get();
+        try
+        {
+            revalidator().execute(new Runnable() {
+                public void run()
+                {
+                    ThreadContext.setApplication(app);
+                    try
+                    {
+                        if(null == DefaultJavaScriptDependencyLocator.this.cache.peek(ref))
+                        {
+                            traverseOnce(ref);
+                        }
+                    }
+                    catch(RuntimeException re)
+                    {
+                        LOGGER.warn("Could not refresh JavaScript dependencies of " + ref, re);
+                    }
+                    finally
+                    {
+                        DefaultJavaScriptDependencyLocator.this.revalidating.remove(ref);
+                        ThreadContext.detach();
+                    }
+                }
+            });
+        }
+        catch(RejectedExecutionException ree)
+        {
+            this.revalidating.remove(ref);
+            LOGGER.warn("Could not schedule refresh of " + ref, ree);
+        }
+    }
+    
+    /**
+     * Returns the executor for background refreshes, creating it if needed.
+     * It has a single daemon thread, which exits when idle.
+     */
+    private synchronized ExecutorService revalidator()
+    {
+        if(null == this.revalidator)
+        {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "JavaScript dependency refresh");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }
+            );
+            pool.allowCoreThreadTimeOut(true);
+            this.revalidator = pool;
+        }
+        return this.revalidator;
+    }
+    
+    /**
+     * Adds the resource to the DependencyCollection and recursively parses
+     * it for dependencies, without consulting the cache.
+     */
+    private void traverse(ResourceReference ref, DependencyCollection scripts)
+    {
         if(!scripts.add(ref)) return;
         
         SprocketsParser parser = settings().getSprocketsParser();
@@ -166,29 +481,6 @@ public class DefaultJavaScriptDependencyLocator
             coll.collectDependencies(ref, stream, scripts);
             scripts.ascend();
         }
-        
-        putIntoCache(ref, scripts);
-    }
-
-    /**
-     * Modifies the given DependencyCollection so that it is identical to the
-     * cached copy based on a previous call to putIntoCache() and returns
-     * {@code true}.
-     * If the cache is disabled or there is no existing cache for the given
-     * resource, returns {@code false}.
-     */
-    private boolean populateFromCache(ResourceReference ref,
-                                      DependencyCollection scripts)
-    {
-        if(null == ref) return false;
-        
-        CacheEntry ce = this.cache.get(ref);
-        if(ce != null && ce.isActive())
-        {
-            ce.populate(scripts);
-            return true;
-        }
-        return false;
     }
     
     /**
@@ -198,12 +490,14 @@ public class DefaultJavaScriptDependencyLocator
     private void putIntoCache(ResourceReference ref,
                               DependencyCollection scripts)
     {
-        if(null == ref) return;
-        
-        Duration duration = settings().getTraversalCacheDuration();
+        JavaScriptDependencySettings settings = settings();
+        Duration duration = settings.getTraversalCacheDuration();
         if(duration.getMilliseconds() > 0)
         {
-            this.cache.put(ref, new CacheEntry(scripts, duration));
+            this.cache.setMaxWeight(settings.getTraversalCacheMaxWeight());
+            this.cache.setSweepInterval(settings.getTraversalCacheSweepInterval());
+            this.cache.setStaleDuration(settings.getTraversalCacheStaleDuration());
+            this.cache.put(ref, scripts, duration);
         }
     }
     
@@ -284,34 +578,26 @@ public class DefaultJavaScriptDependencyLocator
     }
     
     /**
-     * A cache entry holds an immutable DependencyCollection and expires
-     * after a certain duration.
+     * The JavaScript file found for a class, or {@code null} if there is none
+     * anywhere in its hierarchy, along with the number of classpath searches
+     * it took to find out.
      */
-    private static class CacheEntry
+    private static class Association
     {
-        private long start;
-        private long timeToLive;
-        private DependencyCollection scripts;
-        
-        private CacheEntry(DependencyCollection orig, Duration duration)
-        {
-            super();
-            // Make a private copy so that the cached copy is never mutated
-            this.scripts = new DependencyCollection();
-            orig.copyTo(this.scripts);
-            this.scripts.freeze();
-            this.start = System.currentTimeMillis();
-            this.timeToLive = duration.getMilliseconds();
-        }
+        private final ResourceReference reference;
+        private final int probes;
+        private final long expires;
         
-        private void populate(DependencyCollection other)
+        private Association(ResourceReference reference, int probes, long expires)
         {
-            this.scripts.copyTo(other);
+            this.reference = reference;
+            this.probes = probes;
+            this.expires = expires;
         }
         
-        private boolean isActive()
+        private boolean isExpired(long now)
         {
-            return System.currentTimeMillis() - this.start < this.timeToLive;
+            return now >= this.expires;
         }
     }
 }
@@ -0,0 +1,358 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.js.locator;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.time.Duration;
+
+/**
+ * A bounded, least-recently-used cache of dependency trees, used by
+ * {@link DefaultJavaScriptDependencyLocator}. The size of the cache is measured in
+ * <em>weight</em> rather than number of entries: each entry weighs one plus the number of
+ * scripts in its tree, so that a few large trees cannot hide behind a small entry count. When a
+ * new entry pushes the total weight over the {@link #setMaxWeight maximum}, the least recently
+ * used entries are evicted until it fits.
+ * <p>
+ * Each entry expires after the duration it was stored with. An expired entry is no longer
+ * returned by {@link #get get()}, but may still be returned by {@link #getStale getStale()} for
+ * the {@link #setStaleDuration stale duration} that follows, so that a caller can serve it while
+ * it is being refreshed. Entries that are past their stale duration are removed when they are
+ * read, and the whole cache is swept for them on the first write after each
+ * {@link #setSweepInterval sweep interval}, so that entries that are never read again do not
+ * linger. No background thread is used.
+ * <p>
+ * Hit, stale hit, miss, eviction and expiration counts are kept for monitoring. All methods are
+ * thread-safe.
+ * 
+ * @since 4.1
+ */
+public class DependencyCache
+{
+    private final LinkedHashMap<ResourceReference,Entry> entries =
+        new LinkedHashMap<ResourceReference,Entry>(16, 0.75f, true);
+    
+    private int maxWeight;
+    private long sweepInterval;
+    private long staleDuration = 0;
+    private int weight = 0;
+    private long lastSweep = System.currentTimeMillis();
+    private long hits = 0;
+    private long staleHits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+    
+    /**
+     * Creates a cache with the given maximum weight and sweep interval.
+     */
+    public DependencyCache(int maxWeight, Duration sweepInterval)
+    {
+        super();
+        setMaxWeight(maxWeight);
+        setSweepInterval(sweepInterval);
+    }
+    
+    /**
+     * Returns the cached dependency tree of the given resource, or {@code null} if it is not
+     * cached or has expired. The returned collection is frozen and must be copied before it is
+     * modified. An expired entry that is still within its stale duration is not counted as a
+     * miss, since the caller is expected to fall back to {@link #getStale getStale()}, which
+     * counts it as a stale hit.
+     */
+    public synchronized DependencyCollection get(ResourceReference ref)
+    {
+        long now = System.currentTimeMillis();
+        Entry e = lookup(ref, now);
+        if(null == e)
+        {
+            this.misses++;
+            return null;
+        }
+        if(e.isExpired(now)) return null;
+        this.hits++;
+        return e.scripts;
+    }
+    
+    /**
+     * Returns the cached dependency tree of the given resource, or {@code null} if it is not
+     * cached or has expired, like {@link #get get()}, but without counting a hit or miss. Use
+     * this for internal checks that do not serve a request.
+     */
+    public synchronized DependencyCollection peek(ResourceReference ref)
+    {
+        long now = System.currentTimeMillis();
+        Entry e = lookup(ref, now);
+        return null == e || e.isExpired(now) ? null : e.scripts;
+    }
+    
+    /**
+     * Returns the cached dependency tree of the given resource if it has expired, but is still
+     * within its stale duration. Otherwise returns {@code null}. The returned collection is
+     * frozen and must be copied before it is modified.
+     */
+    public synchronized DependencyCollection getStale(ResourceReference ref)
+    {
+        long now = System.currentTimeMillis();
+        Entry e = lookup(ref, now);
+        if(null == e || !e.isExpired(now)) return null;
+        this.staleHits++;
+        return e.scripts;
+    }
+    
+    /**
+     * Stores a frozen copy of the dependency tree of the given resource, replacing any
+     * existing entry, and evicts least recently used entries if the cache has grown too heavy.
+     * Has no effect if {@code timeToLive} is zero, or if the tree alone is heavier than the
+     * maximum weight.
+     */
+    public synchronized void put(ResourceReference ref,
+                                 DependencyCollection scripts,
+                                 Duration timeToLive)
+    {
+        long now = System.currentTimeMillis();
+        if(now - this.lastSweep >= this.sweepInterval) sweep(now);
+        
+        Entry old = this.entries.get(ref);
+        if(old != null) remove(ref, old);
+        
+        if(timeToLive.getMilliseconds() <= 0) return;
+        long ttl = timeToLive.getMilliseconds();
+        Entry e = new Entry(scripts, ttl > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttl);
+        if(e.weight > this.maxWeight) return;
+        
+        this.entries.put(ref, e);
+        this.weight += e.weight;
+        evict();
+    }
+    
+    /**
+     * Returns the trees that are currently cached, including stale ones, keyed
+     * by their root resource. Reading the snapshot does not affect the order
+     * of eviction or the statistics.
+     */
+    public synchronized Map<ResourceReference,DependencyCollection> snapshot()
+    {
+        long now = System.currentTimeMillis();
+        Map<ResourceReference,DependencyCollection> trees =
+            new LinkedHashMap<ResourceReference,DependencyCollection>();
+        for(Map.Entry<ResourceReference,Entry> e : this.entries.entrySet())
+        {
+            if(!isDead(e.getValue(), now)) trees.put(e.getKey(), e.getValue().scripts);
+        }
+        return trees;
+    }
+    
+    /**
+     * Removes all entries. The statistics are not reset.
+     */
+    public synchronized void clear()
+    {
+        this.entries.clear();
+        this.weight = 0;
+    }
+    
+    /**
+     * Removes all expired entries now, regardless of the sweep interval.
+     */
+    public synchronized void sweep()
+    {
+        sweep(System.currentTimeMillis());
+    }
+    
+    /**
+     * Sets the maximum total weight of the cache. Zero disables the cache. Lowering the
+     * maximum evicts entries immediately.
+     */
+    public synchronized void setMaxWeight(int maxWeight)
+    {
+        Args.isTrue(maxWeight >= 0, "maxWeight cannot be negative: %s", maxWeight);
+        this.maxWeight = maxWeight;
+        evict();
+    }
+    
+    public synchronized int getMaxWeight()
+    {
+        return this.maxWeight;
+    }
+    
+    /**
+     * Sets how long an expired entry may still be returned by {@link #getStale getStale()}.
+     * The default is zero.
+     */
+    public synchronized void setStaleDuration(Duration staleDuration)
+    {
+        Args.notNull(staleDuration, "staleDuration");
+        this.staleDuration = staleDuration.getMilliseconds();
+    }
+    
+    /**
+     * Sets how often the cache is swept for expired entries.
+     */
+    public synchronized void setSweepInterval(Duration sweepInterval)
+    {
+        Args.notNull(sweepInterval, "sweepInterval");
+        this.sweepInterval = sweepInterval.getMilliseconds();
+    }
+    
+    /**
+     * Returns the number of entries in the cache, including any that have expired but not
+     * yet been removed.
+     */
+    public synchronized int size()
+    {
+        return this.entries.size();
+    }
+    
+    /**
+     * Returns the total weight of the entries in the cache.
+     */
+    public synchronized int getWeight()
+    {
+        return this.weight;
+    }
+    
+    public synchronized long getHitCount()
+    {
+        return this.hits;
+    }
+    
+    /**
+     * Returns the number of expired entries that have been returned by
+     * {@link #getStale getStale()}.
+     */
+    public synchronized long getStaleHitCount()
+    {
+        return this.staleHits;
+    }
+    
+    public synchronized long getMissCount()
+    {
+        return this.misses;
+    }
+    
+    /**
+     * Returns the number of entries that have been removed to make room for others.
+     */
+    public synchronized long getEvictionCount()
+    {
+        return this.evictions;
+    }
+    
+    /**
+     * Returns the number of entries that have been removed because they expired.
+     */
+    public synchronized long getExpirationCount()
+    {
+        return this.expirations;
+    }
+    
+    @Override
+    public synchronized String toString()
+    {
+        return String.format(
+            "DependencyCache[size=%d, weight=%d/%d, hits=%d, staleHits=%d, misses=%d, " +
+            "evictions=%d, expirations=%d]",
+            this.entries.size(), this.weight, this.maxWeight, this.hits, this.staleHits,
+            this.misses, this.evictions, this.expirations);
+    }
+    
+    /**
+     * Returns the entry for the given resource, first removing it if it is past its stale
+     * duration.
+     */
+    private Entry lookup(ResourceReference ref, long now)
+    {
+        Entry e = this.entries.get(ref);
+        if(e != null && isDead(e, now))
+        {
+            remove(ref, e);
+            this.expirations++;
+            e = null;
+        }
+        return e;
+    }
+    
+    private boolean isDead(Entry e, long now)
+    {
+        return e.isExpired(now) && now - e.expires >= this.staleDuration;
+    }
+    
+    private void sweep(long now)
+    {
+        this.lastSweep = now;
+        Iterator<Entry> iter = this.entries.values().iterator();
+        while(iter.hasNext())
+        {
+            Entry e = iter.next();
+            if(isDead(e, now))
+            {
+                iter.remove();
+                this.weight -= e.weight;
+                this.expirations++;
+            }
+        }
+    }
+    
+    private void evict()
+    {
+        Iterator<Entry> iter = this.entries.values().iterator();
+        while(this.weight > this.maxWeight && iter.hasNext())
+        {
+            Entry e = iter.next();
+            iter.remove();
+            this.weight -= e.weight;
+            this.evictions++;
+        }
+    }
+    
+    private void remove(ResourceReference ref, Entry e)
+    {
+        this.entries.remove(ref);
+        this.weight -= e.weight;
+    }
+    
+    /**
+     * A frozen copy of a dependency tree, its weight, and when it expires.
+     */
+    private static class Entry
+    {
+        private final DependencyCollection scripts;
+        private final int weight;
+        private final long expires;
+        
+        private Entry(DependencyCollection orig, long expires)
+        {
+            super();
+            // Make a private copy so that the cached copy is never mutated.
+            // This is free if the original is already frozen.
+            this.scripts = new DependencyCollection();
+            orig.copyTo(this.scripts);
+            this.scripts.freeze();
+            this.weight = 1 + this.scripts.size();
+            this.expires = expires;
+        }
+        
+        private boolean isExpired(long now)
+        {
+            return now >= this.expires;
+        }
+    }
+}
@@ -16,8 +16,11 @@
 package fiftyfive.wicket.js.locator;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.wicket.request.resource.ResourceReference;
 import org.apache.wicket.util.lang.Args;
@@ -32,6 +35,12 @@ import org.apache.wicket.util.lang.Args;
  * JavaScript dependencies. Currently this is only used to indicate the need
  * for jQuery UI's CSS theme, based on whether or not jQuery UI is a script
  * dependency. An arbitrary number of CSS dependencies is not supported.
+ * <p>
+ * Copying a {@link #freeze frozen} collection with {@link #copyTo copyTo()}
+ * is cheap: the copy shares the frozen collection's list of resources, and
+ * makes its own private list only if and when it is modified. This allows
+ * cached dependency trees to be handed out on every render without being
+ * copied.
  * 
  * @since 2.0
  */
@@ -41,6 +50,8 @@ public class DependencyCollection implements Iterable<ResourceReference>
     private int position;
     private ResourceReference css;
     private List<ResourceReference> resources;
+    private Set<ResourceReference> index;
+    private boolean shared;
     
     /**
      * Creates an empty collection.
@@ -52,6 +63,8 @@ public class DependencyCollection implements Iterable<ResourceReference>
         this.position = 0;
         this.css = null;
         this.resources = new ArrayList<ResourceReference>();
+        this.index = new HashSet<ResourceReference>();
+        this.shared = false;
     }
     
     /**
@@ -67,8 +80,10 @@ public class DependencyCollection implements Iterable<ResourceReference>
     public boolean add(ResourceReference ref)
     {
         assertMutable();
-        if(null == ref || this.resources.contains(ref)) return false;
+        if(null == ref || this.index.contains(ref)) return false;
+        unshare();
         this.resources.add(this.position++, ref);
+        this.index.add(ref);
         return true;
     }
     
@@ -124,7 +139,7 @@ public class DependencyCollection implements Iterable<ResourceReference>
      */
     public Iterator<ResourceReference> iterator()
     {
-        return this.resources.iterator();
+        return Collections.unmodifiableList(this.resources).iterator();
     }
     
     public ResourceReference getRootReference()
@@ -141,6 +156,16 @@ public class DependencyCollection implements Iterable<ResourceReference>
         return this.resources.size() == 0;
     }
     
+    /**
+     * Returns the number of script references in this collection.
+     * 
+     * @since 4.1
+     */
+    public int size()
+    {
+        return this.resources.size();
+    }
+    
     /**
      * Make this object immutable so that any modifications will cause
      * IllegalStateException to be thrown.
@@ -152,14 +177,41 @@ public class DependencyCollection implements Iterable<ResourceReference>
     
     /**
      * Copy internal state to another instance. The frozen status will not
-     * be copied.
+     * be copied. If this collection is frozen, or is itself an unmodified
+     * copy of a frozen collection, the other instance will share its
+     * resources until either of them is modified.
      */
     public void copyTo(DependencyCollection other)
     {
         Args.notNull(other, "other");
         other.position = this.position;
         other.css = this.css;
-        other.resources = new ArrayList<ResourceReference>(this.resources);
+        if(this.frozen || this.shared)
+        {
+            other.resources = this.resources;
+            other.index = this.index;
+            other.shared = true;
+        }
+        else
+        {
+            other.resources = new ArrayList<ResourceReference>(this.resources);
+            other.index = new HashSet<ResourceReference>(this.index);
+            other.shared = false;
+        }
+    }
+    
+    /**
+     * Makes a private copy of the resources if they are shared with a
+     * frozen collection, so that they can be modified.
+     */
+    private void unshare()
+    {
+        if(this.shared)
+        {
+            this.resources = new ArrayList<ResourceReference>(this.resources);
+            this.index = new HashSet<ResourceReference>(this.index);
+            this.shared = false;
+        }
     }
     
     private void assertMutable()
@@ -0,0 +1,433 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.js.locator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import fiftyfive.wicket.js.JavaScriptDependencySettings;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.WicketRuntimeException;
+
+import org.apache.wicket.request.resource.PackageResourceReference;
+import org.apache.wicket.request.resource.ResourceReference;
+
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.lang.Packages;
+import org.apache.wicket.util.lang.WicketObjects;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.ResourceStreamNotFoundException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A file that remembers resolved dependency trees across restarts, so that
+ * scripts that have not changed do not have to be parsed again. Each tree is
+ * stored with the SHA-1 hash of the content of every script in it; when the
+ * index is {@link #load loaded}, a tree is used only if all of those scripts
+ * still exist and have the same content. The whole index is discarded if
+ * any of the settings that affect how trees are resolved has changed since
+ * it was written: the jQuery and jQuery UI resources, the order of the
+ * library paths, or the Sprockets parser.
+ * <p>
+ * The file is a compact binary format. It is read with a buffered stream that
+ * is closed as soon as loading finishes, so the file is never left open or
+ * mapped and can be replaced or deleted on any platform. It is written to a
+ * temporary file first and then renamed, so a crash while saving never leaves
+ * a partial index behind. An index that cannot be read, for example because
+ * it was written by an incompatible version, is ignored; an index that cannot
+ * be written is logged and skipped, since it is only an optimization.
+ * <p>
+ * Only trees made up entirely of {@link PackageResourceReference package resources}
+ * are stored. Most applications will not use this class directly, but instead
+ * call
+ * {@link fiftyfive.wicket.js.JavaScriptDependencySettings#setDependencyIndexFile JavaScriptDependencySettings.setDependencyIndexFile()}.
+ * 
+ * @since 4.1
+ */
+public class DependencyIndex
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        DependencyIndex.class
+    );
+    
+    static final int MAGIC = 0x35354a53;
+    static final int VERSION = 2;
+    
+    private File file;
+    private Map<ResourceReference,String> hashes;
+    
+    public DependencyIndex(File file)
+    {
+        super();
+        Args.notNull(file, "file");
+        this.file = file;
+        this.hashes = new HashMap<ResourceReference,String>();
+    }
+    
+    public File getFile()
+    {
+        return this.file;
+    }
+    
+    /**
+     * Reads the index and returns the trees whose scripts are unchanged,
+     * keyed by their root script. Returns an empty map if the file does not
+     * exist or cannot be read. Must be called from a thread that is bound
+     * to the application, so that scripts can be located.
+     */
+    public Map<ResourceReference,DependencyCollection> load()
+    {
+        Map<ResourceReference,DependencyCollection> trees =
+            new LinkedHashMap<ResourceReference,DependencyCollection>();
+        if(!this.file.isFile()) return trees;
+        
+        this.hashes.clear();
+        int stale = 0;
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(this.file)));
+            try
+            {
+                if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                {
+                    LOGGER.warn("Ignoring dependency index in unknown format: {}", this.file);
+                    return trees;
+                }
+                if(!in.readUTF().equals(configurationHash()))
+                {
+                    LOGGER.info(
+                        "Ignoring dependency index written with different settings: {}",
+                        this.file);
+                    return trees;
+                }
+                int count = in.readInt();
+                for(int i=0; i<count; i++)
+                {
+                    DependencyCollection tree = readTree(in);
+                    if(null == tree)
+                    {
+                        stale++;
+                    }
+                    else
+                    {
+                        tree.freeze();
+                        trees.put(tree.getRootReference(), tree);
+                    }
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch(IOException ioe)
+        {
+            LOGGER.warn("Ignoring unreadable dependency index: " + this.file, ioe);
+            trees.clear();
+            return trees;
+        }
+        LOGGER.info(
+            "Loaded {} dependency trees from {} ({} out of date)",
+            new Object[] { trees.size(), this.file, stale });
+        return trees;
+    }
+    
+    /**
+     * Writes the given trees to the index, replacing its previous contents.
+     * Trees that contain anything but package resources are skipped. Must be
+     * called from a thread that is bound to the application, so that scripts
+     * can be located. If the index cannot be written, a warning is logged and
+     * the previous index, if any, is left as it was.
+     */
+    public void save(Map<ResourceReference,DependencyCollection> trees)
+    {
+        File dir = this.file.getAbsoluteFile().getParentFile();
+        File temp = new File(dir, this.file.getName() + ".tmp");
+        List<DependencyCollection> storable = new ArrayList<DependencyCollection>();
+        try
+        {
+            for(DependencyCollection tree : trees.values())
+            {
+                if(isStorable(tree)) storable.add(tree);
+            }
+            if(dir != null) dir.mkdirs();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(configurationHash());
+                out.writeInt(storable.size());
+                for(DependencyCollection tree : storable)
+                {
+                    writeTree(out, tree);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            if(!temp.renameTo(this.file))
+            {
+                this.file.delete();
+                if(!temp.renameTo(this.file))
+                {
+                    throw new IOException("Could not rename " + temp + " to " + this.file);
+                }
+            }
+        }
+        catch(IOException ioe)
+        {
+            temp.delete();
+            LOGGER.warn("Could not save dependency index: " + this.file, ioe);
+            return;
+        }
+        catch(WicketRuntimeException wre)
+        {
+            temp.delete();
+            LOGGER.warn("Could not save dependency index: " + this.file, wre);
+            return;
+        }
+        LOGGER.info("Saved {} dependency trees to {}", storable.size(), this.file);
+    }
+    
+    /**
+     * Reads one tree, returning {@code null} if any of its scripts has
+     * changed or no longer exists.
+     */
+    private DependencyCollection readTree(DataInputStream in) throws IOException
+    {
+        boolean valid = true;
+        DependencyCollection tree = new DependencyCollection();
+        int size = in.readInt();
+        for(int i=0; i<size; i++)
+        {
+            ResourceReference ref = readReference(in);
+            String hash = in.readUTF();
+            if(valid && ref != null && hash.equals(hash(ref)))
+            {
+                tree.add(ref);
+            }
+            else
+            {
+                valid = false;
+            }
+        }
+        if(in.readBoolean())
+        {
+            ResourceReference css = readReference(in);
+            if(null == css) valid = false;
+            if(valid) tree.setCss(css);
+        }
+        return valid && !tree.isEmpty() ? tree : null;
+    }
+    
+    private void writeTree(DataOutputStream out, DependencyCollection tree)
+        throws IOException
+    {
+        out.writeInt(tree.size());
+        for(ResourceReference ref : tree)
+        {
+            writeReference(out, ref);
+            out.writeUTF(hash(ref));
+        }
+        out.writeBoolean(tree.getCss() != null);
+        if(tree.getCss() != null)
+        {
+            writeReference(out, tree.getCss());
+        }
+    }
+    
+    private ResourceReference readReference(DataInputStream in) throws IOException
+    {
+        String scope = in.readUTF();
+        String name = in.readUTF();
+        Class<?> cls = WicketObjects.resolveClass(scope);
+        return null == cls ? null : new PackageResourceReference(cls, name);
+    }
+    
+    private void writeReference(DataOutputStream out, ResourceReference ref)
+        throws IOException
+    {
+        out.writeUTF(ref.getScope().getName());
+        out.writeUTF(ref.getName());
+    }
+    
+    private boolean isStorable(DependencyCollection tree)
+    {
+        if(tree.getCss() != null && !isPackageResource(tree.getCss())) return false;
+        for(ResourceReference ref : tree)
+        {
+            if(!isPackageResource(ref) || null == hash(ref)) return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Returns {@code true} if the reference is a plain package resource that
+     * can be reconstructed from its scope and name alone.
+     */
+    private boolean isPackageResource(ResourceReference ref)
+    {
+        return ref.getClass().equals(PackageResourceReference.class) &&
+               null == ref.getLocale() &&
+               null == ref.getStyle() &&
+               null == ref.getVariation();
+    }
+    
+    /**
+     * Returns the SHA-1 hash of the current settings that affect how trees
+     * are resolved. A tree that was resolved with a different jQuery
+     * resource, library path order or parser may be wrong even though none
+     * of its scripts have changed.
+     */
+    static String configurationHash()
+    {
+        JavaScriptDependencySettings settings = JavaScriptDependencySettings.get();
+        StringBuilder config = new StringBuilder();
+        appendReference(config, settings.getJQueryResource());
+        appendReference(config, settings.getJQueryUIResource());
+        appendReference(config, settings.getJQueryUICSSResource());
+        for(SearchLocation location : settings.getLibraryPaths())
+        {
+            config.append(location.getScope().getName());
+            config.append(':');
+            config.append(location.getPath());
+            config.append('\n');
+        }
+        SprocketsParser parser = settings.getSprocketsParser();
+        config.append(null == parser ? "-" : parser.getClass().getName());
+        try
+        {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return toHex(sha1.digest(config.toString().getBytes("UTF-8")));
+        }
+        catch(NoSuchAlgorithmException nsae)
+        {
+            throw new WicketRuntimeException(nsae);
+        }
+        catch(UnsupportedEncodingException uee)
+        {
+            throw new WicketRuntimeException(uee);
+        }
+    }
+    
+    private static void appendReference(StringBuilder config, ResourceReference ref)
+    {
+        if(null == ref)
+        {
+            config.append("-\n");
+            return;
+        }
+        config.append(ref.getClass().getName());
+        config.append(':');
+        config.append(ref.getScope().getName());
+        config.append(':');
+        config.append(ref.getName());
+        config.append(':');
+        config.append(ref.getLocale());
+        config.append(':');
+        config.append(ref.getStyle());
+        config.append(':');
+        config.append(ref.getVariation());
+        config.append('\n');
+    }
+    
+    /**
+     * Returns the SHA-1 hash of the script's content, or {@code null} if it
+     * does not exist. Hashes are remembered until the next {@link #load load()}.
+     */
+    private String hash(ResourceReference ref)
+    {
+        if(this.hashes.containsKey(ref)) return this.hashes.get(ref);
+        
+        Class<?> scope = ref.getScope();
+        IResourceStream stream = Application.get()
+            .getResourceSettings()
+            .getResourceStreamLocator()
+            .locate(scope, Packages.absolutePath(scope, ref.getName()));
+        String hash = null == stream ? null : sha1Hex(stream);
+        this.hashes.put(ref, hash);
+        return hash;
+    }
+    
+    /**
+     * Reads the entire stream and returns the SHA-1 digest of its contents
+     * as a lowercase hex string. Closes the stream cleanly no matter what.
+     */
+    private static String sha1Hex(IResourceStream stream)
+    {
+        try
+        {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            InputStream is = stream.getInputStream();
+            byte[] buffer = new byte[8192];
+            int len;
+            while((len = is.read(buffer)) >= 0)
+            {
+                sha1.update(buffer, 0, len);
+            }
+            return toHex(sha1.digest());
+        }
+        catch(NoSuchAlgorithmException nsae)
+        {
+            throw new WicketRuntimeException(nsae);
+        }
+        catch(IOException ioe)
+        {
+            throw new WicketRuntimeException(ioe);
+        }
+        catch(ResourceStreamNotFoundException rsnfe)
+        {
+            throw new WicketRuntimeException(rsnfe);
+        }
+        finally
+        {
+            try { stream.close(); } catch(Exception ignore) {}
+        }
+    }
+    
+    private static String toHex(byte[] digest)
+    {
+        StringBuilder hex = new StringBuilder(40);
+        for(byte b : digest)
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.js.locator;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.WicketRuntimeException;
+
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.lang.Packages;
+import org.apache.wicket.util.time.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the dependencies of every JavaScript file in a list of classpath locations ahead of
+ * time, so that the {@link JavaScriptDependencyLocator locator's} traversal cache is populated
+ * before the first request arrives. Without a warm-up, the first render of each page parses its
+ * scripts and all of their transitive {@code //= require} dependencies, which can make the first
+ * requests after a deploy noticeably slow.
+ * <p>
+ * Each script is resolved the same way it will be looked up when a page is rendered, so that the
+ * render finds the tree in the cache. A script that is next to a class of the same name, like
+ * {@code MyPanel.js} next to {@code MyPanel.class}, is resolved as the
+ * {@link JavaScriptDependencyLocator#findAssociatedScripts associated script} of that class;
+ * any other script is resolved as a {@link JavaScriptDependencyLocator#findResourceScripts
+ * resource} relative to the location.
+ * <p>
+ * Scripts are resolved in parallel on a fixed pool of threads, each of which is bound to the
+ * application so that the locator can use the application's settings and resource stream
+ * locator. A script that cannot be resolved is logged and skipped; it does not prevent the
+ * application from starting.
+ * <p>
+ * Most applications will not use this class directly, but instead call
+ * {@link fiftyfive.wicket.js.JavaScriptDependencySettings#warmUp JavaScriptDependencySettings.warmUp()}
+ * at the end of {@code init()}.
+ * 
+ * @since 4.1
+ */
+public class DependencyWarmUp
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        DependencyWarmUp.class
+    );
+    
+    private JavaScriptDependencyLocator locator;
+    private int threads;
+    
+    /**
+     * Constructs a warm-up that will populate the given locator using the given number of
+     * threads.
+     */
+    public DependencyWarmUp(JavaScriptDependencyLocator locator, int threads)
+    {
+        super();
+        Args.notNull(locator, "locator");
+        Args.isTrue(threads > 0, "threads must be greater than zero: %s", threads);
+        this.locator = locator;
+        this.threads = threads;
+    }
+    
+    /**
+     * Finds all the JavaScript files directly within the given locations and resolves their
+     * dependencies in parallel, blocking until all have been resolved.
+     * 
+     * @return How long the warm-up took
+     */
+    public Duration run(final Application app, List<SearchLocation> locations)
+    {
+        Args.notNull(app, "app");
+        Args.notNull(locations, "locations");
+        
+        long start = System.currentTimeMillis();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for(SearchLocation loc : locations)
+        {
+            for(String name : listScripts(loc))
+            {
+                tasks.add(newTask(app, loc.getScope(), name));
+            }
+        }
+        
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+        int failures = 0;
+        try
+        {
+            for(Future<Void> result : pool.invokeAll(tasks))
+            {
+                try
+                {
+                    result.get();
+                }
+                catch(ExecutionException ee)
+                {
+                    failures++;
+                    LOGGER.warn("Could not resolve JavaScript dependencies", ee.getCause());
+                }
+            }
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new WicketRuntimeException(ie);
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+        
+        Duration elapsed = Duration.milliseconds(System.currentTimeMillis() - start);
+        LOGGER.info(
+            "Resolved JavaScript dependencies of {} scripts ({} failed) in {}",
+            new Object[] { tasks.size(), failures, elapsed });
+        return elapsed;
+    }
+    
+    /**
+     * Returns the names of the JavaScript files directly within the given location, relative to
+     * its scope, in alphabetical order. Directories in the file system and in JARs are
+     * supported; other kinds of classpath entries are ignored.
+     */
+    static List<String> listScripts(SearchLocation loc)
+    {
+        String dir = Packages.absolutePath(loc.getScope(), loc.getPath());
+        while(dir.startsWith("/")) dir = dir.substring(1);
+        while(dir.endsWith("/")) dir = dir.substring(0, dir.length() - 1);
+        String prefix = loc.getPath().isEmpty() ? "" : loc.getPath() + "/";
+        
+        TreeSet<String> names = new TreeSet<String>();
+        try
+        {
+            ClassLoader loader = loc.getScope().getClassLoader();
+            Enumeration<URL> urls = loader.getResources(dir);
+            while(urls.hasMoreElements())
+            {
+                for(String file : listFiles(urls.nextElement(), dir))
+                {
+                    if(file.toLowerCase().endsWith(".js")) names.add(prefix + file);
+                }
+            }
+        }
+        catch(IOException ioe)
+        {
+            throw new WicketRuntimeException(ioe);
+        }
+        return new ArrayList<String>(names);
+    }
+    
+    /**
+     * Lists the names of the files, not including subdirectories, directly within the given
+     * classpath directory.
+     */
+    private static List<String> listFiles(URL url, String dir) throws IOException
+    {
+        List<String> files = new ArrayList<String>();
+        if("file".equals(url.getProtocol()))
+        {
+            File[] children;
+            try
+            {
+                children = new File(url.toURI()).listFiles();
+            }
+            catch(URISyntaxException use)
+            {
+                children = new File(url.getPath()).listFiles();
+            }
+            if(children != null)
+            {
+                for(File child : children)
+                {
+                    if(child.isFile()) files.add(child.getName());
+                }
+            }
+            return files;
+        }
+        
+        URLConnection conn = url.openConnection();
+        if(conn instanceof JarURLConnection)
+        {
+            JarURLConnection jarConn = (JarURLConnection) conn;
+            jarConn.setUseCaches(false);
+            JarFile jar = jarConn.getJarFile();
+            try
+            {
+                String prefix = dir + "/";
+                Enumeration<JarEntry> entries = jar.entries();
+                while(entries.hasMoreElements())
+                {
+                    JarEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if(!entry.isDirectory() &&
+                       name.startsWith(prefix) &&
+                       name.indexOf('/', prefix.length()) < 0)
+                    {
+                        files.add(name.substring(prefix.length()));
+                    }
+                }
+            }
+            finally
+            {
+                jar.close();
+            }
+        }
+        return files;
+    }
+    
+    /**
+     * Returns a task that resolves one script on a pool thread that has been bound to the
+     * application.
+     */
+    private Callable<Void> newTask(final Application app,
+                                   final Class<?> scope,
+                                   final String name)
+    {
+        return new Callable<Void>() {
+            public Void call()
+            {
+                ThreadContext.setApplication(app);
+                try
+                {
+                    LOGGER.debug("Warming up: {}", name);
+                    Class<?> associated = findAssociatedClass(scope, name);
+                    if(associated != null)
+                    {
+                        DependencyWarmUp.this.locator.findAssociatedScripts(
+                            associated, new DependencyCollection());
+                    }
+                    else
+                    {
+                        DependencyWarmUp.this.locator.findResourceScripts(
+                            scope, name, new DependencyCollection());
+                    }
+                    return null;
+                }
+                finally
+                {
+                    ThreadContext.detach();
+                }
+            }
+        };
+    }
+    
+    /**
+     * Returns the class whose associated script is the given script, that is, the class with
+     * the same name in the same package, or {@code null} if there is no such class. The class
+     * is not initialized.
+     */
+    static Class<?> findAssociatedClass(Class<?> scope, String name)
+    {
+        String path = Packages.absolutePath(scope, name);
+        while(path.startsWith("/")) path = path.substring(1);
+        String className = path.substring(0, path.length() - ".js".length()).replace('/', '.');
+        try
+        {
+            return Class.forName(className, false, scope.getClassLoader());
+        }
+        catch(ClassNotFoundException cnfe)
+        {
+            return null;
+        }
+        catch(LinkageError le)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,2 @@
+var el=jQuery("#${component.markupId}");
+el.on("click",function(){el.toggle();});
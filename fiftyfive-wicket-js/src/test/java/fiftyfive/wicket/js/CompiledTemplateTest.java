@@ -0,0 +1,77 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.js;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.wicket.javascript.DefaultJavaScriptCompressor;
+import org.apache.wicket.javascript.IJavaScriptCompressor;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class CompiledTemplateTest
+{
+    @Test
+    public void testEvaluateWithoutCompressor()
+    {
+        CompiledTemplate tmpl = CompiledTemplate.compile(
+            "$('#${component.id}').val(${count}); ${missing}", null);
+        Assert.assertEquals(
+            "$('#c1').val(3); ${missing}",
+            tmpl.evaluate(variables()));
+    }
+    
+    /**
+     * Verify that the literal text is compressed and the expressions survive compression.
+     */
+    @Test
+    public void testEvaluateWithCompressor()
+    {
+        IJavaScriptCompressor compressor = new DefaultJavaScriptCompressor();
+        String text = "// comment\n$('#${component.id}')   .val(${count});\n";
+        CompiledTemplate tmpl = CompiledTemplate.compile(text, compressor);
+        Assert.assertEquals(
+            compressor.compress("// comment\n$('#c1')   .val(3);\n"),
+            tmpl.evaluate(variables()));
+    }
+    
+    /**
+     * Verify that expressions the compressor strips out are still handled the same way
+     * as compressing after interpolation.
+     */
+    @Test
+    public void testExpressionInComment()
+    {
+        IJavaScriptCompressor compressor = new DefaultJavaScriptCompressor();
+        CompiledTemplate tmpl = CompiledTemplate.compile(
+            "/* ${count} */ var x = ${count};", compressor);
+        Assert.assertEquals(
+            compressor.compress("/* 3 */ var x = 3;"),
+            tmpl.evaluate(variables()));
+    }
+    
+    private Map<String,Object> variables()
+    {
+        Map<String,Object> component = new HashMap<String,Object>();
+        component.put("id", "c1");
+        Map<String,Object> map = new HashMap<String,Object>();
+        map.put("component", component);
+        map.put("count", 3);
+        return map;
+    }
+}
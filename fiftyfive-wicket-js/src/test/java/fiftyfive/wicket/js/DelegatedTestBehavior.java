@@ -0,0 +1,44 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.js;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.wicket.Component;
+
+public class DelegatedTestBehavior extends DomReadyTemplate
+{
+    private int index;
+    
+    public DelegatedTestBehavior(int index)
+    {
+        super();
+        this.index = index;
+    }
+    
+    @Override
+    protected boolean isDelegated()
+    {
+        return true;
+    }
+    
+    @Override
+    protected Map<String,?> getRowData(Component component)
+    {
+        return Collections.singletonMap("index", this.index);
+    }
+}
@@ -0,0 +1,3 @@
+jQuery("#${component.markupId}").on("click", "${behavior.rowSelector}", function() {
+  alert(jQuery(this).data("index"));
+});
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.js;
+
+import fiftyfive.wicket.test.WicketTestUtils;
+
+import org.apache.wicket.markup.html.IHeaderResponse;
+import org.apache.wicket.markup.html.IHeaderResponseDecorator;
+import org.apache.wicket.markup.html.WebMarkupContainer;
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.resource.caching.NoOpResourceCachingStrategy;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DomReadyBatchingHeaderResponseTest
+{
+    /**
+     * Verify that all DOM-ready scripts on the page are rendered in a single block, in order,
+     * after all of the script src tags.
+     */
+    @Test
+    public void testSingleReadyBlock() throws Exception
+    {
+        WicketTester t = newBatchingTester();
+        try
+        {
+            t.startPage(IntegrationTestPage.class);
+            t.assertRenderedPage(IntegrationTestPage.class);
+            
+            String html = t.getLastResponseAsString();
+            int ready = html.indexOf("jQuery(function(){");
+            Assert.assertTrue(html, ready >= 0);
+            Assert.assertEquals(html, -1, html.indexOf("jQuery(function(){", ready + 1));
+            Assert.assertTrue(html, ready > html.lastIndexOf("<script type=\"text/javascript\" src="));
+            
+            int panel = html.indexOf("alert('panel init')");
+            int plugin = html.indexOf("myfancyplugin()");
+            int page = html.indexOf("alert('page init')");
+            Assert.assertTrue(html, ready < panel && panel < plugin && plugin < page);
+        }
+        finally
+        {
+            t.destroy();
+        }
+    }
+    
+    /**
+     * Verify that each batched script runs in its own function scope, so that two instances of
+     * a template that declares a variable and captures it in a closure each keep their own.
+     */
+    @Test
+    public void testEachScriptHasItsOwnScope() throws Exception
+    {
+        WicketTester t = newBatchingTester();
+        try
+        {
+            WebMarkupContainer comp = new WebMarkupContainer("c");
+            WebMarkupContainer first = new WebMarkupContainer("first");
+            WebMarkupContainer second = new WebMarkupContainer("second");
+            first.add(new ClosureTestBehavior());
+            second.add(new ClosureTestBehavior());
+            comp.add(first, second);
+            WicketTestUtils.startComponentWithHtml(
+                t,
+                comp,
+                "<div wicket:id=\"c\"><a wicket:id=\"first\"></a><a wicket:id=\"second\"></a></div>"
+            );
+            
+            String html = t.getLastResponseAsString();
+            for(WebMarkupContainer c : new WebMarkupContainer[] { first, second })
+            {
+                String scoped = "(function(){try{var el=jQuery(\"#" + c.getMarkupId() + "\")";
+                Assert.assertTrue(html, html.contains(scoped));
+            }
+            Assert.assertEquals(html, -1, html.indexOf("jQuery(function(){", html.indexOf(
+                "jQuery(function(){") + 1));
+        }
+        finally
+        {
+            t.destroy();
+        }
+    }
+    
+    private WicketTester newBatchingTester()
+    {
+        return new WicketTester(new WebApplication() {
+            @Override
+            public Class<? extends WebPage> getHomePage()
+            {
+                return IntegrationTestPage.class;
+            }
+            @Override
+            protected void init()
+            {
+                super.init();
+                getResourceSettings().setCachingStrategy(
+                    NoOpResourceCachingStrategy.INSTANCE
+                );
+                JavaScriptDependencySettings.get()
+                    .addLibraryPath(IntegrationTest.class, "customlib");
+                setHeaderResponseDecorator(new IHeaderResponseDecorator() {
+                    public IHeaderResponse decorate(IHeaderResponse response)
+                    {
+                        return new DomReadyBatchingHeaderResponse(response);
+                    }
+                });
+            }
+        });
+    }
+}
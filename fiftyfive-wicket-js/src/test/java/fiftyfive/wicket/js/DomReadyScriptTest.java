@@ -23,6 +23,7 @@ import org.apache.wicket.request.resource.ResourceReference;
 import org.apache.wicket.markup.html.IHeaderResponse;
 import org.apache.wicket.markup.html.WebMarkupContainer;
 import org.apache.wicket.request.http.WebRequest;
+import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.InOrder;
 import org.mockito.Mock;
@@ -105,6 +106,57 @@ public class DomReadyScriptTest extends BaseJSTest
         verifyNoMoreInteractions(this.response);
     }
 
+    /**
+     * Verify that jQuery is deferred and the script waits for DOMContentLoaded when the
+     * dependencies are deferred.
+     */
+    @Test
+    public void testRenderHead_defer() throws Exception
+    {
+        final String js = "alert('ready!')";
+        when(this.response.wasRendered(js)).thenReturn(false);
+        when(this.request.isAjax()).thenReturn(false);
+        when(this.settings.getScriptLoading()).thenReturn(
+            JavaScriptDependencySettings.ScriptLoading.DEFER);
+        
+        mockedDomReadyScript(js).renderHead(null, this.response);
+        
+        InOrder inOrder = inOrder(this.response);
+        inOrder.verify(this.response).renderJavaScriptReference(this.jquery, null, null, true);
+        inOrder.verify(this.response).renderJavaScript(
+            "document.addEventListener('DOMContentLoaded',function(){" +
+            "jQuery(function(){" + js + ";});});", null
+        );
+        
+        verify(this.response).wasRendered(js);
+        verify(this.response).markRendered(js);
+        verifyNoMoreInteractions(this.response);
+    }
+
+    /**
+     * Verify that the inline loader is used to load jQuery, and that the script waits for it.
+     */
+    @Test
+    public void asyncIntegrationTest() throws Exception
+    {
+        JavaScriptDependencySettings.get().setScriptLoading(
+            JavaScriptDependencySettings.ScriptLoading.ASYNC);
+        
+        WebMarkupContainer comp = new WebMarkupContainer("c");
+        comp.add(new DomReadyScript("alert('ready!')"));
+        
+        WicketTestUtils.startComponentWithHtml(
+            this.tester, comp, "<span wicket:id=\"c\"></span>"
+        );
+        this.tester.assertContains(Pattern.quote("window.ffjs=window.ffjs||"));
+        this.tester.assertContains("ffjs\\.load\\('.*jquery.*'\\);");
+        this.tester.assertContains(Pattern.quote(
+            "ffjs.ready(function(){alert('ready!');});"
+        ));
+        String html = this.tester.getLastResponseAsString();
+        Assert.assertFalse(html, html.matches("(?s).*<script [^>]*src=\".*jquery.*"));
+    }
+
     /**
      * Render a simple wicket page using DomReadyScript and do some simple
      * checks that the correct markup was emitted.
@@ -15,8 +15,17 @@
  */
 package fiftyfive.wicket.js;
 
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import fiftyfive.wicket.test.WicketTestUtils;
 import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.ajax.AjaxRequestTarget;
+import org.apache.wicket.ajax.markup.html.AjaxLink;
 import org.apache.wicket.markup.html.IHeaderResponse;
+import org.apache.wicket.markup.html.WebMarkupContainer;
+import org.apache.wicket.markup.html.list.ListItem;
+import org.apache.wicket.markup.html.list.ListView;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -40,4 +49,157 @@ public class DomReadyTemplateTest extends BaseJSTest
             Assert.assertTrue(wre.getMessage().startsWith("Failed to locate JavaScript template"));
         }
     }
+    
+    /**
+     * Verify that a delegated template is rendered once for all rows of a repeater, bound to
+     * the container of the repeater, and that each row is marked with its data attributes.
+     */
+    @Test
+    public void testDelegatedTemplateRenderedOncePerRepeater() throws Exception
+    {
+        WebMarkupContainer comp = new WebMarkupContainer("c");
+        comp.add(new ListView<Integer>("rows", Arrays.asList(1, 2, 3)) {
+            @Override
+            protected void populateItem(ListItem<Integer> item)
+            {
+                item.add(new DelegatedTestBehavior(item.getModelObject()));
+            }
+        });
+        WicketTestUtils.startComponentWithHtml(
+            this.tester, comp, "<div wicket:id=\"c\"><span wicket:id=\"rows\"></span></div>"
+        );
+        
+        String html = this.tester.getLastResponseAsString();
+        String selector = "[data-ff-template='" + DelegatedTestBehavior.class.getName() + "']";
+        int first = html.indexOf(selector);
+        Assert.assertTrue(html, first >= 0);
+        Assert.assertEquals(html, -1, html.indexOf(selector, first + 1));
+        Assert.assertTrue(html, html.contains("jQuery(\"#" + comp.getMarkupId() + "\")"));
+        
+        String marker = "data-ff-template=\"" + DelegatedTestBehavior.class.getName() + "\"";
+        for(int i=1; i<=3; i++)
+        {
+            Assert.assertTrue(html, html.contains("data-index=\"" + i + "\""));
+        }
+        Assert.assertEquals(html, 3, html.split(Pattern.quote(marker)).length - 1);
+    }
+    
+    /**
+     * Verify that a delegated template falls back to rendering once per row when the repeater
+     * is added directly to the page, since the page has no tag to bind the handlers to.
+     */
+    @Test
+    public void testDelegatedTemplateRenderedPerRowWhenContainerIsPage() throws Exception
+    {
+        WicketTestUtils.startComponentWithHtml(
+            this.tester, newRows(), "<span wicket:id=\"rows\"></span>"
+        );
+        assertRenderedPerRow(this.tester.getLastResponseAsString());
+    }
+    
+    /**
+     * Verify that a delegated template falls back to rendering once per row when the container
+     * of the repeater renders only its body.
+     */
+    @Test
+    public void testDelegatedTemplateRenderedPerRowWhenContainerRendersBodyOnly()
+        throws Exception
+    {
+        WebMarkupContainer comp = new WebMarkupContainer("c");
+        comp.setRenderBodyOnly(true);
+        comp.add(newRows());
+        WicketTestUtils.startComponentWithHtml(
+            this.tester, comp, "<div wicket:id=\"c\"><span wicket:id=\"rows\"></span></div>"
+        );
+        assertRenderedPerRow(this.tester.getLastResponseAsString());
+    }
+    
+    /**
+     * Verify that during ajax, a delegated template is not rendered again when only a row is
+     * repainted, but is when the container of the repeater is repainted.
+     */
+    @Test
+    public void testDelegatedTemplateSkippedWhenOnlyRowRepainted() throws Exception
+    {
+        final WebMarkupContainer comp = new WebMarkupContainer("c");
+        comp.add(new ListView<Integer>("rows", Arrays.asList(1, 2, 3)) {
+            @Override
+            protected void populateItem(final ListItem<Integer> item)
+            {
+                item.setOutputMarkupId(true);
+                item.add(new DelegatedTestBehavior(item.getModelObject()));
+                item.add(new AjaxLink<Void>("repaint") {
+                    @Override
+                    public void onClick(AjaxRequestTarget target)
+                    {
+                        target.add(item);
+                    }
+                });
+            }
+        });
+        comp.add(new AjaxLink<Void>("repaint") {
+            @Override
+            public void onClick(AjaxRequestTarget target)
+            {
+                target.add(comp);
+            }
+        });
+        WicketTestUtils.startComponentWithHtml(
+            this.tester,
+            comp,
+            "<div wicket:id=\"c\">" +
+            "<span wicket:id=\"rows\"><a wicket:id=\"repaint\">row</a></span>" +
+            "<a wicket:id=\"repaint\">all</a>" +
+            "</div>"
+        );
+        String selector = "[data-ff-template='" + DelegatedTestBehavior.class.getName() + "']";
+        
+        this.tester.clickLink("c:rows:1:repaint", true);
+        String ajax = this.tester.getLastResponseAsString();
+        Assert.assertTrue(ajax, ajax.contains("data-index=\"2\""));
+        Assert.assertFalse(ajax, ajax.contains(selector));
+        
+        this.tester.clickLink("c:repaint", true);
+        ajax = this.tester.getLastResponseAsString();
+        Assert.assertTrue(ajax, ajax.contains(selector));
+    }
+    
+    /**
+     * Verify that two instances of the same template on one component each render their own
+     * script, rather than being mistaken for duplicates.
+     */
+    @Test
+    public void testSameTemplateTwiceOnOneComponent() throws Exception
+    {
+        WebMarkupContainer comp = new WebMarkupContainer("c");
+        comp.add(new DelegatedTestBehavior(1), new DelegatedTestBehavior(2));
+        WicketTestUtils.startComponentWithHtml(
+            this.tester, comp, "<div wicket:id=\"c\"></div>"
+        );
+        assertRenderedTimes(this.tester.getLastResponseAsString(), 2);
+    }
+    
+    private static ListView<Integer> newRows()
+    {
+        return new ListView<Integer>("rows", Arrays.asList(1, 2, 3)) {
+            @Override
+            protected void populateItem(ListItem<Integer> item)
+            {
+                item.add(new DelegatedTestBehavior(item.getModelObject()));
+            }
+        };
+    }
+    
+    private static void assertRenderedPerRow(String html)
+    {
+        String marker = "data-ff-template=\"" + DelegatedTestBehavior.class.getName() + "\"";
+        assertRenderedTimes(html, 3);
+        Assert.assertFalse(html, html.contains(marker));
+    }
+    
+    private static void assertRenderedTimes(String html, int times)
+    {
+        String selector = "[data-ff-template='" + DelegatedTestBehavior.class.getName() + "']";
+        Assert.assertEquals(html, times, html.split(Pattern.quote(selector)).length - 1);
+    }
 }
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.js;
+
+import fiftyfive.wicket.resource.MergedResourceBuilderTest;
+
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class MergedJavaScriptBuilderChunkTest extends MergedResourceBuilderTest
+{
+    private MergedJavaScriptBuilder scripts;
+    
+    /**
+     * Verify that scripts shared by both chunks are merged into the core, and that each chunk
+     * retains only the scripts unique to it.
+     */
+    @Test
+    public void testSharedScriptsMovedToCore() throws Exception
+    {
+        WicketTester tester = startPage("admin", false);
+        assertDownloaded(
+            tester,
+            "scripts/core.js",
+            "/fiftyfive/wicket/js/lib/fiftyfive-utils/55_utils.js",
+            "/fiftyfive/wicket/js/lib/fiftyfive-utils/jquery.55_utils.js");
+        assertDownloaded(
+            tester,
+            "scripts/home.js",
+            "/fiftyfive/wicket/js/lib/fiftyfive-utils/cookies.js");
+        assertDownloaded(
+            tester,
+            "scripts/admin.js",
+            "/fiftyfive/wicket/js/lib/fiftyfive-utils/strftime.js");
+    }
+    
+    /**
+     * Verify that a chunk contributor renders the core followed by the chunk, and nothing else.
+     */
+    @Test
+    public void testChunkContributor() throws Exception
+    {
+        String html = startPage("admin", false).getLastResponseAsString();
+        int core = html.indexOf("scripts/core.js\"");
+        int admin = html.indexOf("scripts/admin.js\"");
+        assertTrue(html, core >= 0);
+        assertTrue(html, admin > core);
+        assertFalse(html, html.contains("scripts/home.js"));
+    }
+    
+    /**
+     * Verify that the chunk loader renders the core as a script tag, but loads the chunk
+     * asynchronously from an inline script.
+     */
+    @Test
+    public void testChunkLoader() throws Exception
+    {
+        String html = startPage("home", true).getLastResponseAsString();
+        assertTrue(html, html.contains("scripts/core.js\""));
+        assertFalse(html, html.contains("scripts/home.js\""));
+        assertTrue(html, html.contains("scripts/home.js'"));
+        assertTrue(html, html.contains("s.async=false"));
+    }
+    
+    /**
+     * Verify that a chunk is loaded only once per page, whether it is requested by two loaders
+     * or by a loader followed by a chunk contributor.
+     */
+    @Test
+    public void testChunkLoaderDeduplicates() throws Exception
+    {
+        WicketTester tester = new WicketTester(new MergedApp());
+        MergedJavaScriptBuilderChunkTestPage page = new MergedJavaScriptBuilderChunkTestPage(
+            this.scripts.buildChunkLoader("home"));
+        page.add(this.scripts.buildChunkLoader("home"));
+        tester.startPage(page);
+        assertLoadedOnce(tester.getLastResponseAsString(), "scripts/home.js");
+        
+        page = new MergedJavaScriptBuilderChunkTestPage(this.scripts.buildChunkLoader("home"));
+        page.add(this.scripts.buildChunkContributor("home"));
+        tester.startPage(page);
+        assertLoadedOnce(tester.getLastResponseAsString(), "scripts/home.js");
+    }
+    
+    /**
+     * Verify that with asynchronous script loading, a script that is part of a merged bundle is
+     * loaded only once, whether the bundle's script tag or the loader is rendered first. The
+     * 55_utils dependency is part of the core bundle, so it maps to the same URL.
+     */
+    @Test
+    public void testAsyncLoadingWithMergedBundle() throws Exception
+    {
+        WicketTester tester = new WicketTester(new MergedApp());
+        JavaScriptDependencySettings.get().setScriptLoading(
+            JavaScriptDependencySettings.ScriptLoading.ASYNC);
+        
+        // Bundle's script tag first
+        MergedJavaScriptBuilderChunkTestPage page = new MergedJavaScriptBuilderChunkTestPage(
+            this.scripts.buildChunkContributor("admin"));
+        page.add(new JavaScriptDependency("55_utils"));
+        tester.startPage(page);
+        assertLoadedOnce(tester.getLastResponseAsString(), "scripts/core.js");
+        
+        // Loader first
+        page = new MergedJavaScriptBuilderChunkTestPage(new JavaScriptDependency("55_utils"));
+        page.add(this.scripts.buildChunkContributor("admin"));
+        tester.startPage(page);
+        assertLoadedOnce(tester.getLastResponseAsString(), "scripts/core.js");
+    }
+    
+    private void assertLoadedOnce(String html, String path)
+    {
+        int first = html.indexOf(path);
+        assertTrue(html, first >= 0);
+        assertEquals(html, -1, html.indexOf(path, first + 1));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnknownChunkThrowsException() throws Exception
+    {
+        startPage("missing", false);
+    }
+    
+    protected WicketTester startPage(String chunk, boolean lazy)
+    {
+        WicketTester tester = new WicketTester(new MergedApp());
+        tester.startPage(new MergedJavaScriptBuilderChunkTestPage(
+            lazy ? this.scripts.buildChunkLoader(chunk)
+                 : this.scripts.buildChunkContributor(chunk)));
+        return tester;
+    }
+    
+    protected void onAppInit(WebApplication app)
+    {
+        this.scripts = new MergedJavaScriptBuilder()
+            .setPath("/scripts/core.js")
+            .addChunk("home", new MergedJavaScriptBuilder()
+                .setPath("/scripts/home.js")
+                .addLibrary("jquery.55_utils")
+                .addLibrary("cookies"))
+            .addChunk("admin", new MergedJavaScriptBuilder()
+                .setPath("/scripts/admin.js")
+                .addLibrary("jquery.55_utils")
+                .addLibrary("strftime"))
+            .install(app);
+    }
+}
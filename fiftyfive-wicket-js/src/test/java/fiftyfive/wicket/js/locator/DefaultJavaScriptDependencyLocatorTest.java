@@ -0,0 +1,188 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.js.locator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fiftyfive.wicket.js.BaseJSTest;
+import fiftyfive.wicket.js.JavaScriptDependencySettings;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.util.time.Duration;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DefaultJavaScriptDependencyLocatorTest extends BaseJSTest
+{
+    private DefaultJavaScriptDependencyLocator locator;
+    private CountingParser parser;
+    
+    @Before
+    public void configure()
+    {
+        this.locator = new DefaultJavaScriptDependencyLocator();
+        this.parser = new CountingParser();
+        JavaScriptDependencySettings.get()
+            .setLocator(this.locator)
+            .setSprocketsParser(this.parser)
+            .setTraversalCacheDuration(Duration.minutes(1));
+    }
+    
+    /**
+     * Verify that concurrent requests for the same library parse it only once.
+     */
+    @Test
+    public void testConcurrentResolutionIsCoalesced() throws Exception
+    {
+        this.parser.delay = 200;
+        final Application app = this.tester.getApplication();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<DependencyCollection> results = new ArrayList<DependencyCollection>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i=0; i<8; i++)
+        {
+            final DependencyCollection scripts = new DependencyCollection();
+            results.add(scripts);
+            Thread t = new Thread() {
+                @Override
+                public void run()
+                {
+                    ThreadContext.setApplication(app);
+                    try
+                    {
+                        start.await();
+                        DefaultJavaScriptDependencyLocatorTest.this.locator.findLibraryScripts(
+                            "55_utils", scripts);
+                    }
+                    catch(InterruptedException ie)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally
+                    {
+                        ThreadContext.detach();
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for(Thread t : threads)
+        {
+            t.join();
+        }
+        
+        Assert.assertEquals(1, this.parser.count.get());
+        for(DependencyCollection scripts : results)
+        {
+            Assert.assertEquals(
+                "55_utils.js",
+                scripts.getRootReference().getName().replaceAll(".*/", ""));
+        }
+    }
+    
+    /**
+     * Verify that an expired tree is still returned while it is refreshed in the background.
+     */
+    @Test
+    public void testStaleWhileRevalidate() throws Exception
+    {
+        JavaScriptDependencySettings.get()
+            .setTraversalCacheDuration(Duration.milliseconds(1))
+            .setTraversalCacheStaleDuration(Duration.minutes(1));
+        
+        this.locator.findLibraryScripts("55_utils", new DependencyCollection());
+        Assert.assertEquals(1, this.parser.count.get());
+        Thread.sleep(10);
+        
+        // The refresh happens in the background and must not block this call
+        this.parser.delay = 500;
+        long misses = this.locator.getCache().getMissCount();
+        long start = System.currentTimeMillis();
+        DependencyCollection scripts = new DependencyCollection();
+        this.locator.findLibraryScripts("55_utils", scripts);
+        Assert.assertTrue(System.currentTimeMillis() - start < 500);
+        Assert.assertFalse(scripts.isEmpty());
+        Assert.assertEquals(1, this.locator.getCache().getStaleHitCount());
+        
+        // Wait for the background refresh
+        for(int i=0; i<50 && this.parser.count.get() < 2; i++)
+        {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(2, this.parser.count.get());
+        
+        // Neither the stale serve nor the background refresh counts as a miss
+        Assert.assertEquals(misses, this.locator.getCache().getMissCount());
+    }
+    
+    /**
+     * Verify that classes with no JavaScript file anywhere in their hierarchy are remembered,
+     * along with their superclasses, so that the classpath is not searched again.
+     */
+    @Test
+    public void testAssociatedScriptsAreRemembered()
+    {
+        DependencyCollection scripts = new DependencyCollection();
+        this.locator.findAssociatedScripts(NoScript.class, scripts);
+        Assert.assertTrue(scripts.isEmpty());
+        Assert.assertEquals(3, this.locator.getAssociationProbeCount());
+        Assert.assertEquals(0, this.locator.getAssociationProbesAvoidedCount());
+        
+        this.locator.findAssociatedScripts(NoScript.class, scripts);
+        this.locator.findAssociatedScripts(NoScriptBase.class, scripts);
+        Assert.assertTrue(scripts.isEmpty());
+        Assert.assertEquals(3, this.locator.getAssociationProbeCount());
+        Assert.assertEquals(5, this.locator.getAssociationProbesAvoidedCount());
+    }
+    
+    static class NoScriptBase
+    {
+    }
+    
+    static class NoScript extends NoScriptBase
+    {
+    }
+    
+    static class CountingParser implements SprocketsParser
+    {
+        final AtomicInteger count = new AtomicInteger();
+        volatile long delay = 0;
+        private final SprocketsParser delegate = new SprocketsParserImplV4();
+        
+        public List<Sprocket> parseSprockets(BufferedReader javascript) throws IOException
+        {
+            this.count.incrementAndGet();
+            try
+            {
+                Thread.sleep(this.delay);
+            }
+            catch(InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return this.delegate.parseSprockets(javascript);
+        }
+    }
+}
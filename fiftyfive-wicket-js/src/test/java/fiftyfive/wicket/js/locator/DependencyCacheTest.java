@@ -0,0 +1,169 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.js.locator;
+
+import org.apache.wicket.request.resource.PackageResourceReference;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.util.time.Duration;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DependencyCacheTest
+{
+    private static final ResourceReference A = ref("a.js");
+    private static final ResourceReference B = ref("b.js");
+    private static final ResourceReference C = ref("c.js");
+    
+    /**
+     * Verify that the least recently used trees are evicted once the total weight is exceeded.
+     */
+    @Test
+    public void testEvictsLeastRecentlyUsed()
+    {
+        // Each tree of two scripts weighs three
+        DependencyCache cache = new DependencyCache(6, Duration.minutes(5));
+        cache.put(A, tree(A, C), Duration.minutes(1));
+        cache.put(B, tree(B, C), Duration.minutes(1));
+        Assert.assertEquals(6, cache.getWeight());
+        
+        // Touch A so that B becomes the least recently used
+        Assert.assertNotNull(cache.get(A));
+        cache.put(C, tree(C, A), Duration.minutes(1));
+        
+        Assert.assertNull(cache.get(B));
+        Assert.assertNotNull(cache.get(A));
+        Assert.assertNotNull(cache.get(C));
+        Assert.assertEquals(1, cache.getEvictionCount());
+        Assert.assertEquals(6, cache.getWeight());
+    }
+    
+    /**
+     * Verify that a tree heavier than the whole cache is not stored.
+     */
+    @Test
+    public void testTooHeavy()
+    {
+        DependencyCache cache = new DependencyCache(2, Duration.minutes(5));
+        cache.put(A, tree(A, B), Duration.minutes(1));
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getWeight());
+    }
+    
+    /**
+     * Verify that expired entries are dropped on read and by sweeps.
+     */
+    @Test
+    public void testExpiration()
+    {
+        DependencyCache cache = new DependencyCache(100, Duration.NONE);
+        cache.put(A, tree(A), Duration.milliseconds(1));
+        cache.put(B, tree(B), Duration.MAXIMUM);
+        sleep(5);
+        
+        Assert.assertNull(cache.get(A));
+        Assert.assertNotNull(cache.get(B));
+        Assert.assertEquals(1, cache.getExpirationCount());
+        
+        cache.put(C, tree(C), Duration.milliseconds(1));
+        sleep(5);
+        cache.sweep();
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(2, cache.getExpirationCount());
+    }
+    
+    /**
+     * Verify that an expired entry is available as stale until its stale duration has passed.
+     */
+    @Test
+    public void testStale()
+    {
+        DependencyCache cache = new DependencyCache(100, Duration.minutes(5));
+        cache.setStaleDuration(Duration.minutes(1));
+        cache.put(A, tree(A), Duration.milliseconds(1));
+        sleep(5);
+        
+        Assert.assertNull(cache.get(A));
+        Assert.assertNotNull(cache.getStale(A));
+        Assert.assertEquals(1, cache.getStaleHitCount());
+        Assert.assertEquals(0, cache.getMissCount());
+        Assert.assertEquals(0, cache.getExpirationCount());
+        
+        cache.setStaleDuration(Duration.NONE);
+        Assert.assertNull(cache.getStale(A));
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(1, cache.getExpirationCount());
+    }
+    
+    /**
+     * Verify hit and miss counts, that peeking does not affect them, and that cached trees
+     * cannot be modified.
+     */
+    @Test
+    public void testStatistics()
+    {
+        DependencyCache cache = new DependencyCache(100, Duration.minutes(5));
+        Assert.assertNull(cache.get(A));
+        cache.put(A, tree(A, B), Duration.minutes(1));
+        DependencyCollection cached = cache.get(A);
+        Assert.assertSame(A, cached.getRootReference());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+        
+        Assert.assertSame(cached, cache.peek(A));
+        Assert.assertNull(cache.peek(B));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+        
+        try
+        {
+            cached.add(C);
+            Assert.fail("Cached tree should be frozen");
+        }
+        catch(IllegalStateException expected)
+        {
+        }
+    }
+    
+    private static DependencyCollection tree(ResourceReference root, ResourceReference... deps)
+    {
+        DependencyCollection scripts = new DependencyCollection();
+        scripts.add(root);
+        scripts.descend();
+        for(ResourceReference dep : deps)
+        {
+            scripts.add(dep);
+        }
+        scripts.ascend();
+        return scripts;
+    }
+    
+    private static ResourceReference ref(String name)
+    {
+        return new PackageResourceReference(DependencyCacheTest.class, name);
+    }
+    
+    private static void sleep(long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
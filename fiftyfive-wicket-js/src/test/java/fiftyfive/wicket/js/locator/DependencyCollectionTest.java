@@ -0,0 +1,123 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.js.locator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.wicket.request.resource.PackageResourceReference;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DependencyCollectionTest
+{
+    private static final ResourceReference A = ref("a.js");
+    private static final ResourceReference B = ref("b.js");
+    private static final ResourceReference C = ref("c.js");
+    private static final ResourceReference D = ref("d.js");
+    
+    /**
+     * Verify that descendents are ordered before their ancestors and duplicates are ignored.
+     */
+    @Test
+    public void testOrderAndDuplicates()
+    {
+        DependencyCollection scripts = new DependencyCollection();
+        Assert.assertTrue(scripts.add(A));
+        scripts.descend();
+        Assert.assertTrue(scripts.add(B));
+        scripts.descend();
+        Assert.assertTrue(scripts.add(C));
+        scripts.ascend();
+        Assert.assertFalse(scripts.add(C));
+        scripts.ascend();
+        Assert.assertFalse(scripts.add(null));
+        
+        Assert.assertEquals(Arrays.asList(C, B, A), list(scripts));
+        Assert.assertEquals(3, scripts.size());
+        Assert.assertSame(A, scripts.getRootReference());
+    }
+    
+    /**
+     * Verify that a copy of a frozen collection can be modified without affecting the
+     * original, and that it continues to insert at the copied position.
+     */
+    @Test
+    public void testCopyOfFrozenCollection()
+    {
+        DependencyCollection frozen = new DependencyCollection();
+        frozen.add(A);
+        frozen.descend();
+        frozen.add(B);
+        frozen.ascend();
+        frozen.freeze();
+        
+        DependencyCollection copy = new DependencyCollection();
+        frozen.copyTo(copy);
+        Assert.assertEquals(Arrays.asList(B, A), list(copy));
+        Assert.assertFalse(copy.add(B));
+        
+        Assert.assertTrue(copy.add(D));
+        Assert.assertEquals(Arrays.asList(B, A, D), list(copy));
+        Assert.assertEquals(Arrays.asList(B, A), list(frozen));
+        
+        // A copy of a copy shares the frozen original too
+        DependencyCollection second = new DependencyCollection();
+        DependencyCollection first = new DependencyCollection();
+        frozen.copyTo(first);
+        first.copyTo(second);
+        Assert.assertTrue(second.add(C));
+        Assert.assertEquals(Arrays.asList(B, A), list(first));
+        Assert.assertEquals(Arrays.asList(B, A, C), list(second));
+    }
+    
+    @Test(expected=UnsupportedOperationException.class)
+    public void testIteratorIsReadOnly()
+    {
+        DependencyCollection scripts = new DependencyCollection();
+        scripts.add(A);
+        scripts.freeze();
+        Iterator<ResourceReference> iter = scripts.iterator();
+        iter.next();
+        iter.remove();
+    }
+    
+    @Test(expected=IllegalStateException.class)
+    public void testFrozenCannotBeModified()
+    {
+        DependencyCollection scripts = new DependencyCollection();
+        scripts.freeze();
+        scripts.add(A);
+    }
+    
+    private static List<ResourceReference> list(DependencyCollection scripts)
+    {
+        List<ResourceReference> list = new ArrayList<ResourceReference>();
+        for(ResourceReference ref : scripts)
+        {
+            list.add(ref);
+        }
+        return list;
+    }
+    
+    private static ResourceReference ref(String name)
+    {
+        return new PackageResourceReference(DependencyCollectionTest.class, name);
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.js.locator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import fiftyfive.wicket.js.BaseJSTest;
+import fiftyfive.wicket.js.JavaScriptDependencySettings;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.StringResourceStream;
+import org.apache.wicket.util.resource.locator.ResourceStreamLocator;
+import org.apache.wicket.util.time.Duration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DependencyIndexTest extends BaseJSTest
+{
+    private File file;
+    private DefaultJavaScriptDependencyLocatorTest.CountingParser parser;
+    
+    @Before
+    public void configure() throws Exception
+    {
+        this.file = File.createTempFile("dependencies", ".idx");
+        this.file.delete();
+        this.parser = new DefaultJavaScriptDependencyLocatorTest.CountingParser();
+        JavaScriptDependencySettings.get()
+            .setSprocketsParser(this.parser)
+            .setTraversalCacheDuration(Duration.minutes(1));
+    }
+    
+    @After
+    public void deleteFile()
+    {
+        this.file.delete();
+    }
+    
+    /**
+     * Verify that trees saved by one locator are used by another without parsing.
+     */
+    @Test
+    public void testSaveAndLoad()
+    {
+        DefaultJavaScriptDependencyLocator first = new DefaultJavaScriptDependencyLocator();
+        DependencyCollection expected = new DependencyCollection();
+        first.findLibraryScripts("jquery.55_utils", expected);
+        first.saveIndex(new DependencyIndex(this.file));
+        Assert.assertTrue(this.file.isFile());
+        
+        int parsed = this.parser.count.get();
+        DefaultJavaScriptDependencyLocator second = new DefaultJavaScriptDependencyLocator();
+        Assert.assertEquals(1, second.loadIndex(new DependencyIndex(this.file)));
+        
+        DependencyCollection actual = new DependencyCollection();
+        second.findLibraryScripts("jquery.55_utils", actual);
+        Assert.assertEquals(parsed, this.parser.count.get());
+        Assert.assertEquals(list(expected), list(actual));
+    }
+    
+    /**
+     * Verify that a stored tree is not used once the content of one of its
+     * scripts has changed.
+     */
+    @Test
+    public void testChangedScriptInvalidatesTree()
+    {
+        DefaultJavaScriptDependencyLocator first = new DefaultJavaScriptDependencyLocator();
+        first.findLibraryScripts("jquery.55_utils", new DependencyCollection());
+        first.saveIndex(new DependencyIndex(this.file));
+        Assert.assertEquals(1, new DependencyIndex(this.file).load().size());
+        
+        Application.get().getResourceSettings().setResourceStreamLocator(
+            new ResourceStreamLocator() {
+                @Override
+                public IResourceStream locate(Class<?> scope, String path)
+                {
+                    if(path.endsWith("jquery.55_utils.js"))
+                    {
+                        return new StringResourceStream("// changed");
+                    }
+                    return super.locate(scope, path);
+                }
+            });
+        Assert.assertTrue(new DependencyIndex(this.file).load().isEmpty());
+    }
+    
+    /**
+     * Verify that the whole index is discarded when a setting that affects
+     * how trees are resolved changes, even though no script has changed.
+     */
+    @Test
+    public void testChangedSettingsInvalidateIndex()
+    {
+        JavaScriptDependencySettings settings = JavaScriptDependencySettings.get();
+        DefaultJavaScriptDependencyLocator locator = new DefaultJavaScriptDependencyLocator();
+        locator.findLibraryScripts("jquery.55_utils", new DependencyCollection());
+        
+        locator.saveIndex(new DependencyIndex(this.file));
+        Assert.assertEquals(1, new DependencyIndex(this.file).load().size());
+        settings.setJQueryResource(null);
+        Assert.assertTrue(new DependencyIndex(this.file).load().isEmpty());
+        
+        locator.saveIndex(new DependencyIndex(this.file));
+        Assert.assertEquals(1, new DependencyIndex(this.file).load().size());
+        settings.addLibraryPath(DependencyIndexTest.class, "customlib");
+        Assert.assertTrue(new DependencyIndex(this.file).load().isEmpty());
+        
+        locator.saveIndex(new DependencyIndex(this.file));
+        Assert.assertEquals(1, new DependencyIndex(this.file).load().size());
+        settings.setSprocketsParser(new SprocketsParserImplV3());
+        Assert.assertTrue(new DependencyIndex(this.file).load().isEmpty());
+    }
+    
+    /**
+     * Verify that failing to write the index is logged rather than thrown,
+     * since the index is only an optimization.
+     */
+    @Test
+    public void testUnwritableIndexIsIgnored() throws Exception
+    {
+        this.file.createNewFile();
+        File unwritable = new File(this.file, "dependencies.idx");
+        DefaultJavaScriptDependencyLocator locator = new DefaultJavaScriptDependencyLocator();
+        locator.findLibraryScripts("jquery.55_utils", new DependencyCollection());
+        locator.saveIndex(new DependencyIndex(unwritable));
+        Assert.assertFalse(unwritable.exists());
+    }
+    
+    /**
+     * Verify that an index in an unknown format is ignored.
+     */
+    @Test
+    public void testUnreadableIndexIsIgnored() throws Exception
+    {
+        FileOutputStream out = new FileOutputStream(this.file);
+        try
+        {
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        }
+        finally
+        {
+            out.close();
+        }
+        Map<ResourceReference,DependencyCollection> trees =
+            new DependencyIndex(this.file).load();
+        Assert.assertTrue(trees.isEmpty());
+    }
+    
+    /**
+     * Verify that a missing index is treated as empty.
+     */
+    @Test
+    public void testMissingIndex()
+    {
+        Assert.assertTrue(new DependencyIndex(this.file).load().isEmpty());
+    }
+    
+    private static List<ResourceReference> list(DependencyCollection scripts)
+    {
+        List<ResourceReference> list = new ArrayList<ResourceReference>();
+        for(ResourceReference ref : scripts)
+        {
+            list.add(ref);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.js.locator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import fiftyfive.wicket.js.BaseJSTest;
+import fiftyfive.wicket.js.IntegrationTest;
+import fiftyfive.wicket.js.IntegrationTestPanel;
+import fiftyfive.wicket.js.IntegrationTestTemplatePanel;
+import fiftyfive.wicket.js.JavaScriptDependencySettings;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.util.time.Duration;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DependencyWarmUpTest extends BaseJSTest
+{
+    private static final SearchLocation UTILS = new SearchLocation(
+        JavaScriptDependencySettings.class, "lib/fiftyfive-utils");
+    
+    /**
+     * Verify that only the JavaScript files directly within a location are listed.
+     */
+    @Test
+    public void testListScripts()
+    {
+        List<String> names = DependencyWarmUp.listScripts(UTILS);
+        Assert.assertTrue(names.contains("lib/fiftyfive-utils/55_utils.js"));
+        Assert.assertTrue(names.contains("lib/fiftyfive-utils/jquery.55_utils.js"));
+        Assert.assertFalse(names.contains("lib/fiftyfive-utils/README.md"));
+        
+        names = DependencyWarmUp.listScripts(
+            new SearchLocation(JavaScriptDependencySettings.class, "lib"));
+        Assert.assertTrue(names.contains("lib/jquery.js"));
+        Assert.assertFalse(names.contains("lib/fiftyfive-utils/55_utils.js"));
+    }
+    
+    /**
+     * Verify that every script is resolved, on threads that are bound to the application.
+     */
+    @Test
+    public void testRun()
+    {
+        RecordingLocator locator = new RecordingLocator();
+        new DependencyWarmUp(locator, 4).run(
+            this.tester.getApplication(), Collections.singletonList(UTILS));
+        
+        List<String> expected = DependencyWarmUp.listScripts(UTILS);
+        List<String> actual = new ArrayList<String>(locator.names);
+        Collections.sort(actual);
+        Assert.assertEquals(expected, actual);
+        Assert.assertFalse(locator.unbound);
+    }
+    
+    /**
+     * Verify that a failure to resolve one script does not prevent the others from being
+     * resolved.
+     */
+    @Test
+    public void testRun_failure()
+    {
+        RecordingLocator locator = new RecordingLocator() {
+            @Override
+            public void findResourceScripts(Class<?> cls, String fileName,
+                                            DependencyCollection scripts)
+            {
+                if(fileName.endsWith("/cookies.js"))
+                {
+                    throw new IllegalStateException("Intentional failure");
+                }
+                super.findResourceScripts(cls, fileName, scripts);
+            }
+        };
+        new DependencyWarmUp(locator, 2).run(
+            this.tester.getApplication(), Collections.singletonList(UTILS));
+        
+        Assert.assertEquals(
+            DependencyWarmUp.listScripts(UTILS).size() - 1,
+            locator.names.size());
+    }
+    
+    /**
+     * Verify that warming up the package of a panel caches the panel's associated script under
+     * the same key that rendering the panel looks it up with, so the render does not parse.
+     */
+    @Test
+    public void testWarmUpPackageIsHitByAssociatedLookup()
+    {
+        DefaultJavaScriptDependencyLocatorTest.CountingParser parser =
+            new DefaultJavaScriptDependencyLocatorTest.CountingParser();
+        JavaScriptDependencySettings.get()
+            .addLibraryPath(IntegrationTest.class, "customlib")
+            .setSprocketsParser(parser)
+            .setTraversalCacheDuration(Duration.minutes(1));
+        DefaultJavaScriptDependencyLocator locator = new DefaultJavaScriptDependencyLocator();
+        
+        new DependencyWarmUp(locator, 2).run(
+            this.tester.getApplication(),
+            Collections.singletonList(new SearchLocation(IntegrationTestPanel.class, "")));
+        
+        int parsed = parser.count.get();
+        long hits = locator.getCache().getHitCount();
+        long misses = locator.getCache().getMissCount();
+        locator.findAssociatedScripts(IntegrationTestPanel.class, new DependencyCollection());
+        locator.findAssociatedScripts(
+            IntegrationTestTemplatePanel.class, new DependencyCollection());
+        
+        Assert.assertEquals(parsed, parser.count.get());
+        Assert.assertEquals(hits + 2, locator.getCache().getHitCount());
+        Assert.assertEquals(misses, locator.getCache().getMissCount());
+    }
+    
+    /**
+     * Verify that a script is associated with the class of the same name, if there is one.
+     */
+    @Test
+    public void testFindAssociatedClass()
+    {
+        Assert.assertEquals(
+            IntegrationTestPanel.class,
+            DependencyWarmUp.findAssociatedClass(
+                IntegrationTest.class, "IntegrationTestPanel.js"));
+        Assert.assertNull(
+            DependencyWarmUp.findAssociatedClass(IntegrationTest.class, "another_file.js"));
+    }
+    
+    /**
+     * Verify that the warm-up is skipped when the traversal cache is disabled, as it is in
+     * development mode.
+     */
+    @Test
+    public void testWarmUp_disabled()
+    {
+        JavaScriptDependencySettings settings = JavaScriptDependencySettings.get();
+        RecordingLocator locator = new RecordingLocator();
+        settings.setLocator(locator);
+        settings.warmUp();
+        Assert.assertTrue(locator.names.isEmpty());
+    }
+    
+    static class RecordingLocator extends MockJavaScriptDependencyLocator
+    {
+        final List<String> names = Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean unbound = false;
+        
+        @Override
+        public void findResourceScripts(Class<?> cls, String fileName,
+                                        DependencyCollection scripts)
+        {
+            if(!Application.exists()) this.unbound = true;
+            this.names.add(fileName);
+        }
+    }
+}
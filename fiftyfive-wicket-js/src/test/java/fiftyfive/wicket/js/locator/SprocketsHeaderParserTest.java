@@ -0,0 +1,111 @@
+/**
+ * Copyright 2014 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.js.locator;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.List;
+
+import fiftyfive.wicket.js.JavaScriptDependencySettings;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SprocketsHeaderParserTest
+{
+    /**
+     * Verify that all quote styles are recognized, and relative paths are not libraries.
+     */
+    @Test
+    public void testQuoteStyles() throws Exception
+    {
+        List<Sprocket> sprockets = parse(
+            "//= require plain\n" +
+            "  //=require \"double\"  \n" +
+            "//= require 'single'\n" +
+            "//= require <angle>\n" +
+            "//= require ./relative\n" +
+            "//= require ../parent\n" +
+            "//= requirement\n" +
+            "// = require not_a_directive\n");
+        
+        Assert.assertEquals(6, sprockets.size());
+        assertSprocket(sprockets.get(0), true, "plain");
+        assertSprocket(sprockets.get(1), true, "double");
+        assertSprocket(sprockets.get(2), true, "single");
+        assertSprocket(sprockets.get(3), true, "angle");
+        assertSprocket(sprockets.get(4), false, "./relative");
+        assertSprocket(sprockets.get(5), false, "../parent");
+    }
+    
+    /**
+     * Verify that directives are found among block comments and blank lines, but not after
+     * the first line of code.
+     */
+    @Test
+    public void testStopsAtFirstLineOfCode() throws Exception
+    {
+        List<Sprocket> sprockets = parse(
+            "\uFEFF/*\n" +
+            " * License\n" +
+            " */\n" +
+            "\n" +
+            "/* one */ /* two */ //= require first\n" +
+            "//= require second\n" +
+            "var x = 1; //= require ignored\n" +
+            "//= require also_ignored\n");
+        
+        Assert.assertEquals(2, sprockets.size());
+        assertSprocket(sprockets.get(0), true, "first");
+        assertSprocket(sprockets.get(1), true, "second");
+    }
+    
+    /**
+     * Verify that the results match SprocketsParserImplV4 for a real script.
+     */
+    @Test
+    public void testMatchesV4() throws Exception
+    {
+        String path = "lib/fiftyfive-utils/jquery.55_utils.js";
+        List<Sprocket> expected = new SprocketsParserImplV4().parseSprockets(open(path));
+        List<Sprocket> actual = new SprocketsHeaderParser().parseSprockets(open(path));
+        
+        Assert.assertEquals(expected.size(), actual.size());
+        for(int i=0; i<expected.size(); i++)
+        {
+            assertSprocket(actual.get(i), expected.get(i).isLibrary(), expected.get(i).getPath());
+        }
+    }
+    
+    private static List<Sprocket> parse(String javascript) throws Exception
+    {
+        return new SprocketsHeaderParser().parseSprockets(
+            new BufferedReader(new StringReader(javascript)));
+    }
+    
+    private static BufferedReader open(String path) throws Exception
+    {
+        return new BufferedReader(new InputStreamReader(
+            JavaScriptDependencySettings.class.getResourceAsStream(path), "UTF-8"));
+    }
+    
+    private static void assertSprocket(Sprocket sp, boolean library, String path)
+    {
+        Assert.assertEquals(library, sp.isLibrary());
+        Assert.assertEquals(path, sp.getPath());
+    }
+}